@@ -1,21 +1,29 @@
 package com.nova.lyn.redis.config;
 
+import com.nova.lyn.redis.lock.LocalLockRegistry;
 import com.nova.lyn.redis.lock.RedisLockRegistry;
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.SocketOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.integration.support.locks.ExpirableLockRegistry;
 
 import java.time.Duration;
 
 /***
  * @ClassName: RedisLockConfig
- * @Description: TODO
+ * @Description: 锁注册表配置; redis.lock.mode=redis (默认) 使用 Redis 分布式锁, redis.lock.mode=local 使用单机内存锁.
+ * 两种模式的锁注册表都注册为 lockRegistry, 类型为 {@link ExpirableLockRegistry}, 切换模式不需要修改注入点.
+ * 容器中有 {@link MeterRegistry} 时 Redis 锁注册表的指标发布到其中
  * @Author: Lyn
  * @Date: 2019/3/26 下午9:41
  * @version : V1.0
@@ -25,10 +33,22 @@ public class RedisLockConfig {
 
     private static final int REDIS_PORT = 6379;
 
-    @Bean("redisLockRegistry")
-    public RedisLockRegistry getRedisLockRegistry(@Qualifier("redisConnectionFactory") RedisConnectionFactory redisConnectionFactory, String prefixKey) {
+    @Bean("lockRegistry")
+    @ConditionalOnProperty(name = "redis.lock.mode", havingValue = "redis", matchIfMissing = true)
+    public ExpirableLockRegistry getRedisLockRegistry(@Qualifier("redisConnectionFactory") RedisConnectionFactory redisConnectionFactory,
+                                                  @Value("${redis.lock.registry-key:redis-lock}") String prefixKey,
+                                                  ObjectProvider<MeterRegistry> meterRegistry) {
 
-        return new RedisLockRegistry(redisConnectionFactory,prefixKey);
+        RedisLockRegistry redisLockRegistry = new RedisLockRegistry(redisConnectionFactory,prefixKey);
+        meterRegistry.ifAvailable(redisLockRegistry::setMeterRegistry);
+        return redisLockRegistry;
+    }
+
+    @Bean("lockRegistry")
+    @ConditionalOnProperty(name = "redis.lock.mode", havingValue = "local")
+    public ExpirableLockRegistry getLocalLockRegistry() {
+
+        return new LocalLockRegistry();
     }
 
     @Bean("redisConnectionFactory")
@@ -0,0 +1,51 @@
+package com.nova.lyn.redis.config;
+
+import com.nova.lyn.redis.mapper.SeckillOrderMapper;
+import com.nova.lyn.redis.service.ReactiveSeckillService;
+import com.nova.lyn.redis.service.impl.ReactiveRedisSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.SeckillOrderPersister;
+import org.mybatis.spring.annotation.MapperScan;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.util.Assert;
+
+/***
+ * @ClassName: SeckillConfig
+ * @Description: 秒杀服务配置, 与锁注册表共用 redisConnectionFactory (Lettuce 同时支持阻塞和响应式命令).
+ * 订单落库使用 spring.datasource.* 配置的数据源, seckill.products 中列出的商品在启动时开始落库
+ * @Author: Lyn
+ * @Date: 2019/4/26 上午11:40
+ * @version : V1.0
+ */
+@Configuration
+@MapperScan("com.nova.lyn.redis.mapper")
+public class SeckillConfig {
+
+    @Bean("reactiveSeckillService")
+    public ReactiveSeckillService getReactiveSeckillService(@Qualifier("redisConnectionFactory") RedisConnectionFactory redisConnectionFactory) {
+
+        Assert.isInstanceOf(ReactiveRedisConnectionFactory.class, redisConnectionFactory,
+                "The reactive seckill service requires a reactive connection factory");
+        return new ReactiveRedisSeckillServiceImpl((ReactiveRedisConnectionFactory) redisConnectionFactory);
+    }
+
+    @Bean("seckillOrderPersister")
+    public SeckillOrderPersister getSeckillOrderPersister(@Qualifier("redisConnectionFactory") RedisConnectionFactory redisConnectionFactory,
+                                                          SeckillOrderMapper seckillOrderMapper,
+                                                          @Value("${seckill.persister.consumer-name:${random.uuid}}") String consumerName,
+                                                          @Value("${seckill.products:}") String[] productIds) {
+
+        SeckillOrderPersister persister = new SeckillOrderPersister(redisConnectionFactory, seckillOrderMapper, consumerName);
+        for (String productId : productIds) {
+            if (!productId.trim().isEmpty()) {
+                persister.watch(productId.trim());
+            }
+        }
+        return persister;
+    }
+
+}
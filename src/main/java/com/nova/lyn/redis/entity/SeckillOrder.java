@@ -0,0 +1,53 @@
+package com.nova.lyn.redis.entity;
+
+import java.util.Date;
+
+/***
+ * @ClassName: SeckillOrder
+ * @Description: 秒杀订单, 对应 seckill_order 表, 同一商品同一用户只有一条
+ * @Author: Lyn
+ * @Date: 2019/4/24 上午10:05
+ * @version : V1.0
+ */
+public class SeckillOrder {
+
+    private String productId;
+
+    private String userId;
+
+    private Date orderTime;
+
+    public SeckillOrder() {
+    }
+
+    public SeckillOrder(String productId, String userId, Date orderTime) {
+        this.productId = productId;
+        this.userId = userId;
+        this.orderTime = orderTime;
+    }
+
+    public String getProductId() {
+        return this.productId;
+    }
+
+    public void setProductId(String productId) {
+        this.productId = productId;
+    }
+
+    public String getUserId() {
+        return this.userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Date getOrderTime() {
+        return this.orderTime;
+    }
+
+    public void setOrderTime(Date orderTime) {
+        this.orderTime = orderTime;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.integration.support.locks.ExpirableLockRegistry;
+import org.springframework.util.Assert;
+
+/**
+ * An in-memory {@link ExpirableLockRegistry} for single-instance deployments, with the
+ * same API as {@link RedisLockRegistry}: locks are plain {@link ReentrantLock}s, one per
+ * key, so locking never leaves the JVM and unrelated keys never contend.
+ * <p>
+ * Lock instances are cached per key until {@link #expireUnusedOlderThan(long)} removes
+ * those neither held nor waited for; as with {@link RedisLockRegistry}, a lock obtained
+ * before such a removal but locked after it no longer excludes threads which obtain the
+ * key afterwards, so callers should obtain a lock right before locking it.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+public final class LocalLockRegistry implements ExpirableLockRegistry {
+
+    private final Map<String, LocalLock> locks = new ConcurrentHashMap<>();
+
+    @Override
+    public Lock obtain(Object lockKey) {
+        Assert.isInstanceOf(String.class, lockKey);
+        long now = System.currentTimeMillis();
+        return this.locks.compute((String) lockKey, (key, lock) -> {
+            LocalLock localLock = lock != null ? lock : new LocalLock();
+            localLock.lastUsed = now;
+            return localLock;
+        });
+    }
+
+    @Override
+    public void expireUnusedOlderThan(long age) {
+        long now = System.currentTimeMillis();
+        for (String key : this.locks.keySet()) {
+            this.locks.computeIfPresent(key, (k, lock) ->
+                    now - lock.lastUsed > age && !lock.isLocked() && !lock.hasQueuedThreads() ? null : lock);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class LocalLock extends ReentrantLock {
+
+        /**
+         * Last time this lock was resolved from the registry; drives expiration.
+         */
+        private volatile long lastUsed;
+
+        LocalLock() {
+        }
+
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * The meters of a {@link RedisLockRegistry}, all tagged with the {@code registryKey}.
+ * Until a {@link MeterRegistry} is provided the registry uses {@link #NONE}, whose meters
+ * belong to a {@link CompositeMeterRegistry} without members and therefore do nothing.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+final class LockRegistryMetrics {
+
+    static final LockRegistryMetrics NONE = new LockRegistryMetrics(new CompositeMeterRegistry(), "none");
+
+    /**
+     * Kinds of Redis round-trips made by the registry.
+     */
+    enum Operation {
+
+        OBTAIN, RELEASE, RENEW, OBTAIN_ALL, RELEASE_ALL, READ_WRITE, SEMAPHORE
+
+    }
+
+    /**
+     * Outcomes of an acquisition.
+     */
+    enum Outcome {
+
+        ACQUIRED, TIMEOUT, INTERRUPTED, ERROR
+
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    private final Tags tags;
+
+    private final Map<Outcome, Timer> acquireTimers = new EnumMap<>(Outcome.class);
+
+    private final Map<Operation, Counter> roundTrips = new EnumMap<>(Operation.class);
+
+    private final DistributionSummary acquireAttempts;
+
+    private final Timer holdTimer;
+
+    private final DistributionSummary reentrantDepth;
+
+    private final Counter expiredUnlocks;
+
+    private final Counter handoffs;
+
+    private final DistributionSummary releaseBatches;
+
+    private final Counter releasesRejected;
+
+    LockRegistryMetrics(MeterRegistry meterRegistry, String registryKey) {
+        this.meterRegistry = meterRegistry;
+        this.tags = Tags.of("registry", registryKey);
+        for (Outcome outcome : Outcome.values()) {
+            this.acquireTimers.put(outcome, Timer.builder("redis.lock.acquire")
+                    .description("Time to acquire a lock, including local and distributed waiting")
+                    .tags(this.tags)
+                    .tag("outcome", outcome.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+        for (Operation operation : Operation.values()) {
+            this.roundTrips.put(operation, Counter.builder("redis.lock.roundtrips")
+                    .description("Redis round-trips made by the lock registry")
+                    .tags(this.tags)
+                    .tag("operation", operation.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        this.acquireAttempts = DistributionSummary.builder("redis.lock.acquire.attempts")
+                .description("Obtain script executions per acquisition")
+                .tags(this.tags)
+                .register(meterRegistry);
+        this.holdTimer = Timer.builder("redis.lock.hold")
+                .description("Time a lock is held in the store")
+                .tags(this.tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.reentrantDepth = DistributionSummary.builder("redis.lock.reentrant.depth")
+                .description("Local hold count after each acquisition")
+                .tags(this.tags)
+                .register(meterRegistry);
+        this.expiredUnlocks = Counter.builder("redis.lock.expired.unlocks")
+                .description("Unlocks of locks which had already expired in the store")
+                .tags(this.tags)
+                .register(meterRegistry);
+        this.handoffs = Counter.builder("redis.lock.handoffs")
+                .description("Leases handed over to a local thread without releasing the key")
+                .tags(this.tags)
+                .register(meterRegistry);
+        this.releaseBatches = DistributionSummary.builder("redis.lock.release.batch")
+                .description("Keys released per script execution of the release queue")
+                .tags(this.tags)
+                .register(meterRegistry);
+        this.releasesRejected = Counter.builder("redis.lock.release.rejected")
+                .description("Releases run by the unlocking thread because the release queue was full")
+                .tags(this.tags)
+                .register(meterRegistry);
+    }
+
+    <T> void gauge(String name, String description, T target, ToDoubleFunction<T> value) {
+        Gauge.builder(name, target, value)
+                .description(description)
+                .tags(this.tags)
+                .register(this.meterRegistry);
+    }
+
+    void acquired(Outcome outcome, long startNanos, int attempts) {
+        this.acquireTimers.get(outcome).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        this.acquireAttempts.record(attempts);
+    }
+
+    void roundTrip(Operation operation) {
+        this.roundTrips.get(operation).increment();
+    }
+
+    void held(long startNanos) {
+        this.holdTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void reentrantDepth(int holdCount) {
+        this.reentrantDepth.record(holdCount);
+    }
+
+    void expiredUnlock() {
+        this.expiredUnlocks.increment();
+    }
+
+    void handoff() {
+        this.handoffs.increment();
+    }
+
+    void releaseBatch(int size) {
+        this.releaseBatches.record(size);
+    }
+
+    void releaseRejected() {
+        this.releasesRejected.increment();
+    }
+
+}
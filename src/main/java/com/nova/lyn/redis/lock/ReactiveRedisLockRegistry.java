@@ -0,0 +1,391 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.SignalType;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.ReactiveSubscription;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+/**
+ * A non-blocking counterpart of {@link RedisLockRegistry} on top of
+ * {@link ReactiveStringRedisTemplate}. Locks use the same {@code registryKey:lockKey}
+ * layout and obtain/release scripts, and unlock notifications are published on the same
+ * {@code registryKey:unlocks} channel, so both registries interoperate on the same keys.
+ * <p>
+ * Each {@link #obtain(String)} returns a new {@link ReactiveRedisLock} handle with its
+ * own owner token; there is no thread affinity. A handle is reentrant: acquiring it
+ * again while held only extends the lease, and the key is deleted by the matching
+ * number of releases. Waiting subscribers hold no thread; they resubscribe to the
+ * obtain script when an unlock notification arrives, or after
+ * {@link #setMaxWaitBetweenTries(Duration)} at the latest.
+ * <p>
+ * The registry keeps a single subscription to the unlock channel for its lifetime,
+ * started in {@link #afterPropertiesSet()}, or lazily by the first waiter outside of an
+ * application context. Every obtain attempt registers its interest in the notification
+ * before the obtain script is sent, so a release published between a failed attempt and
+ * the wait cannot be missed.
+ * <p>
+ * Releasing a handle whose key has expired in the store signals an
+ * {@link IllegalStateException}, just like {@link RedisLockRegistry}. Keys are deleted
+ * with {@code UNLINK} where the server supports it; the server's capabilities are probed
+ * once, see {@link #getServerCapabilities()}.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+public final class ReactiveRedisLockRegistry implements InitializingBean, DisposableBean {
+
+    private static final long DEFAULT_EXPIRE_AFTER = 60000L;
+
+    private static final Duration DEFAULT_MAX_WAIT_BETWEEN_TRIES = Duration.ofSeconds(1);
+
+    private static final Duration RESUBSCRIBE_BACKOFF = Duration.ofMillis(100);
+
+    private final String clientId = UUID.randomUUID().toString();
+
+    private final AtomicLong ownerSequence = new AtomicLong();
+
+    private final String registryKey;
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    private final RedisScript<Boolean> obtainLockScript;
+
+    private final RedisScript<Boolean> releaseLockScript;
+
+    private final long expireAfter;
+
+    private final String unlockChannel;
+
+    /**
+     * Paths released on {@link #unlockChannel}, as received by {@link #unlockSubscription};
+     * notifications nobody is waiting for are dropped.
+     */
+    private final DirectProcessor<String> unlocks = DirectProcessor.create();
+
+    private final Object monitor = new Object();
+
+    private volatile Disposable unlockSubscription;
+
+    private volatile RedisServerCapabilities serverCapabilities;
+
+    private volatile Duration maxWaitBetweenTries = DEFAULT_MAX_WAIT_BETWEEN_TRIES;
+
+    /**
+     * Constructs a lock registry with the default (60 second) lock expiration.
+     * @param connectionFactory The connection factory.
+     * @param registryKey The key prefix for locks.
+     */
+    public ReactiveRedisLockRegistry(ReactiveRedisConnectionFactory connectionFactory, String registryKey) {
+        this(connectionFactory, registryKey, DEFAULT_EXPIRE_AFTER);
+    }
+
+    /**
+     * Constructs a lock registry with the supplied lock expiration.
+     * @param connectionFactory The connection factory.
+     * @param registryKey The key prefix for locks.
+     * @param expireAfter The expiration in milliseconds.
+     */
+    public ReactiveRedisLockRegistry(ReactiveRedisConnectionFactory connectionFactory, String registryKey,
+            long expireAfter) {
+
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        Assert.notNull(registryKey, "'registryKey' cannot be null");
+        this.redisTemplate = new ReactiveStringRedisTemplate(connectionFactory);
+        this.obtainLockScript = new DefaultRedisScript<>(RedisLockRegistry.OBTAIN_LOCK_SCRIPT, Boolean.class);
+        this.releaseLockScript = new DefaultRedisScript<>(RedisLockRegistry.RELEASE_LOCK_SCRIPT, Boolean.class);
+        this.registryKey = registryKey;
+        this.expireAfter = expireAfter;
+        this.unlockChannel = registryKey + ":unlocks";
+    }
+
+    /**
+     * Subscribe to unlock notifications, so no waiter has to, and start probing the
+     * server's capabilities, so the first release does not wait for the probe.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        subscribeToUnlocksIfNecessary();
+        getServerCapabilities()
+                .onErrorResume(ex -> Mono.empty())
+                .subscribe();
+    }
+
+    /**
+     * Return the capabilities of the Redis server, probed on first use; a failed probe is
+     * retried by the next call.
+     * @return a {@link Mono} of the capabilities.
+     */
+    public Mono<RedisServerCapabilities> getServerCapabilities() {
+        RedisServerCapabilities capabilities = this.serverCapabilities;
+        if (capabilities != null) {
+            return Mono.just(capabilities);
+        }
+        return RedisServerCapabilities.probe(this.redisTemplate)
+                .doOnNext(probed -> this.serverCapabilities = probed);
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this.monitor) {
+            if (this.unlockSubscription != null) {
+                this.unlockSubscription.dispose();
+            }
+        }
+    }
+
+    private void subscribeToUnlocksIfNecessary() {
+        if (this.unlockSubscription == null) {
+            synchronized (this.monitor) {
+                if (this.unlockSubscription == null) {
+                    this.unlockSubscription = this.redisTemplate.listenToChannel(this.unlockChannel)
+                            .map(ReactiveSubscription.Message::getMessage)
+                            .retryBackoff(Long.MAX_VALUE, RESUBSCRIBE_BACKOFF, this.maxWaitBetweenTries)
+                            .subscribe(this.unlocks::onNext);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the maximum time a waiting subscriber parks before it retries the store even
+     * if no unlock notification has been received; default 1 second.
+     * @param maxWaitBetweenTries the maximum wait.
+     */
+    public void setMaxWaitBetweenTries(Duration maxWaitBetweenTries) {
+        Assert.isTrue(maxWaitBetweenTries != null && !maxWaitBetweenTries.isNegative()
+                && !maxWaitBetweenTries.isZero(), "'maxWaitBetweenTries' must be positive");
+        this.maxWaitBetweenTries = maxWaitBetweenTries;
+    }
+
+    /**
+     * Obtain a new lock handle for the key.
+     * @param lockKey the lock key.
+     * @return the lock handle; nothing is sent to Redis until one of its operations is subscribed.
+     */
+    public ReactiveRedisLock obtain(String lockKey) {
+        Assert.notNull(lockKey, "'lockKey' cannot be null");
+        return new ReactiveRedisLock(lockKey);
+    }
+
+    /**
+     * Subscribe to the {@code action} while holding the lock for the key; the lock is
+     * released when the action terminates, whatever its outcome, and also when the
+     * returned {@link Mono} is cancelled while acquiring or running the action.
+     * @param lockKey the lock key.
+     * @param action the action to guard.
+     * @param <T> the result type.
+     * @return the result of the action.
+     */
+    public <T> Mono<T> withLock(String lockKey, Mono<T> action) {
+        return Mono.defer(() -> {
+            ReactiveRedisLock lock = obtain(lockKey);
+            return lock.acquire()
+                    .then(action.materialize())
+                    .flatMap(signal -> lock.release().then(Mono.just(signal)))
+                    .<T>dematerialize()
+                    .doFinally(signal -> {
+                        if (signal == SignalType.CANCEL) {
+                            lock.abandon().subscribe();
+                        }
+                    });
+        });
+    }
+
+    /**
+     * A {@link Mono}-based distributed lock handle.
+     */
+    public final class ReactiveRedisLock {
+
+        private final String path;
+
+        private final String lockKey;
+
+        private final String owner;
+
+        private final AtomicInteger holdCount = new AtomicInteger();
+
+        private ReactiveRedisLock(String path) {
+            this.path = path;
+            this.lockKey = ReactiveRedisLockRegistry.this.registryKey + ":" + path;
+            this.owner = ReactiveRedisLockRegistry.this.clientId + ":"
+                    + ReactiveRedisLockRegistry.this.ownerSequence.incrementAndGet();
+        }
+
+        /**
+         * Acquire the lock, waiting without blocking for as long as necessary.
+         * @return a {@link Mono} completing when the lock is held.
+         */
+        public Mono<Void> acquire() {
+            return acquireBefore(Long.MAX_VALUE).then();
+        }
+
+        /**
+         * Make a single attempt to acquire the lock.
+         * @return a {@link Mono} of whether the lock is now held.
+         */
+        public Mono<Boolean> tryAcquire() {
+            return obtainLock();
+        }
+
+        /**
+         * Attempt to acquire the lock, waiting up to the timeout.
+         * @param timeout the maximum time to wait.
+         * @return a {@link Mono} of whether the lock is now held.
+         */
+        public Mono<Boolean> tryAcquire(Duration timeout) {
+            return Mono.defer(() -> acquireBefore(System.currentTimeMillis() + timeout.toMillis()));
+        }
+
+        /**
+         * Release one hold of the lock; the key is deleted when the last hold is released.
+         * @return a {@link Mono} completing when released, or signaling an
+         * {@link IllegalStateException} if the lock is not held or has expired in the store.
+         */
+        public Mono<Void> release() {
+            return Mono.defer(() -> {
+                int holds = this.holdCount.get();
+                if (holds <= 0) {
+                    return Mono.error(new IllegalStateException("You do not own lock at " + this.lockKey));
+                }
+                if (holds > 1) {
+                    this.holdCount.decrementAndGet();
+                    return Mono.empty();
+                }
+                return releaseKey()
+                        .flatMap(released -> {
+                            this.holdCount.set(0);
+                            if (!released) {
+                                return Mono.<Void>error(new IllegalStateException(
+                                        "Lock was released in the store due to expiration. " +
+                                        "The integrity of data protected by this lock may have been compromised."));
+                            }
+                            return Mono.<Void>empty();
+                        });
+            });
+        }
+
+        /**
+         * Drop all holds and delete the key if this handle still owns it. The release
+         * script checks the owner, so this is harmless when the lock was never obtained,
+         * and it is ordered after an obtain still in flight on the shared connection.
+         */
+        Mono<Void> abandon() {
+            return Mono.defer(() -> {
+                this.holdCount.set(0);
+                return releaseKey();
+            })
+                    .onErrorResume(ex -> Mono.empty())
+                    .then();
+        }
+
+        private Mono<Boolean> acquireBefore(long deadline) {
+            return Mono.defer(() -> attempt(deadline))
+                    .repeatWhenEmpty(attempts -> attempts);
+        }
+
+        /**
+         * One obtain attempt; listens for the release of the key before the script is
+         * sent, and waits for it when the attempt fails.
+         * @return the outcome, or empty after waiting, to try again.
+         */
+        private Mono<Boolean> attempt(long deadline) {
+            subscribeToUnlocksIfNecessary();
+            MonoProcessor<String> released = ReactiveRedisLockRegistry.this.unlocks
+                    .filter(this.path::equals)
+                    .next()
+                    .subscribeWith(MonoProcessor.create());
+            return obtainLock()
+                    .flatMap(acquired -> {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (acquired || remaining <= 0) {
+                            return Mono.just(acquired);
+                        }
+                        return awaitRelease(released, remaining).then(Mono.<Boolean>empty());
+                    })
+                    .doFinally(signal -> released.dispose());
+        }
+
+        private Mono<String> awaitRelease(Mono<String> released, long remaining) {
+            Duration wait = ReactiveRedisLockRegistry.this.maxWaitBetweenTries;
+            if (remaining < wait.toMillis()) {
+                wait = Duration.ofMillis(Math.max(remaining, 1));
+            }
+            return released.timeout(wait, Mono.just(this.path));
+        }
+
+        private Mono<Boolean> obtainLock() {
+            return execute(ReactiveRedisLockRegistry.this.obtainLockScript,
+                    String.valueOf(ReactiveRedisLockRegistry.this.expireAfter))
+                    .doOnNext(acquired -> {
+                        if (acquired) {
+                            this.holdCount.incrementAndGet();
+                        }
+                    });
+        }
+
+        /**
+         * Delete the key if this handle still owns it and publish the unlock notification,
+         * using {@code UNLINK} where the server supports it.
+         */
+        private Mono<Boolean> releaseKey() {
+            return getServerCapabilities()
+                    .flatMap(capabilities -> execute(ReactiveRedisLockRegistry.this.releaseLockScript,
+                            ReactiveRedisLockRegistry.this.unlockChannel, this.path, capabilities.getDeleteCommand()));
+        }
+
+        private Mono<Boolean> execute(RedisScript<Boolean> script, String... args) {
+            List<Object> scriptArgs = new ArrayList<>(args.length + 1);
+            scriptArgs.add(this.owner);
+            scriptArgs.addAll(Arrays.asList(args));
+            return ReactiveRedisLockRegistry.this.redisTemplate
+                    .execute(script, Collections.singletonList(this.lockKey), scriptArgs)
+                    .next()
+                    .map(Boolean.TRUE::equals)
+                    .defaultIfEmpty(false);
+        }
+
+        @Override
+        public String toString() {
+            return "ReactiveRedisLock [lockKey=" + this.lockKey
+                    + ", owner=" + this.owner
+                    + ", holdCount=" + this.holdCount.get()
+                    + "]";
+        }
+
+    }
+
+}
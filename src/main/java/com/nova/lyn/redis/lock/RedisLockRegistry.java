@@ -14,30 +14,59 @@
  * limitations under the License.
  */
 package com.nova.lyn.redis.lock;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.nova.lyn.redis.lock.LockRegistryMetrics.Operation;
+import com.nova.lyn.redis.lock.LockRegistryMetrics.Outcome;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.integration.support.locks.ExpirableLockRegistry;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
@@ -61,6 +90,57 @@ import org.springframework.util.ReflectionUtils;
  * <b>Note: This is not intended for low latency applications.</b> It is intended
  * for resource locking across multiple JVMs.
  * <p>
+ * Releasing a lock publishes the lock path on the {@code registryKey:unlocks} channel.
+ * Threads waiting for a lock park until such a notification arrives (or until
+ * {@link #setMaxWaitBetweenTries(long)} elapses, to cover missed notifications and
+ * expired locks) instead of polling the store.
+ * <p>
+ * With {@link #enableLeaseRenewal(long)} a watchdog periodically extends the lease of
+ * every lock held by this registry, so a short {@code expireAfter} can be used without
+ * risking expiration in long critical sections, while keys of crashed owners still
+ * expire quickly. All held keys are renewed by one script execution per tick, and all
+ * held read-write locks by another.
+ * <p>
+ * {@link #obtainAll(Collection)} returns a lock over several keys which are acquired
+ * all-or-nothing by a single script execution; keys are always taken in sorted order,
+ * so callers listing the same keys in different orders cannot deadlock.
+ * <p>
+ * {@link #obtainReadWriteLock(String)} returns a distributed {@link ReadWriteLock}: any
+ * number of readers, from any registry, share a key while a writer excludes them all.
+ * Its state is a single hash under {@code registryKey:lockKey:rw} with one hold counter
+ * per reading or writing registry and each registry's lease deadline, so its holds expire
+ * after {@code expireAfter} like the exclusive locks, and the watchdog renews them too.
+ * Both halves are reentrant and a writer may downgrade by taking the read lock.
+ * <p>
+ * {@link #obtainSemaphore(String, int)} returns a {@link RedisSemaphore} sharing the
+ * registry's key prefix, client id, lease expiration and watchdog. Exclusive locks, read-write
+ * locks and semaphores announce releases on separate channels under
+ * {@code registryKey:unlocks}, so waiters are only woken by releases of their own kind.
+ * <p>
+ * Releases which cannot run on the unlocking thread, because it is interrupted or
+ * {@link #setAsyncRelease(boolean)} is on, are queued and drained by a few workers on the
+ * {@link #setExecutor(Executor) executor}, up to 500 keys per script execution. When the
+ * queue is full the unlocking thread releases its key itself. A queued release not yet
+ * sent is cancelled when the lock is obtained again in this registry.
+ * <p>
+ * With {@link #setLocalHandoff(int, long)} a lock released while other threads of this
+ * registry queue for it keeps its key, and the next local thread takes over the lease
+ * without any store access; after the configured number of consecutive handoffs, or time
+ * spent handing off, the key is released normally and the next local thread holds back
+ * briefly before obtaining it again, so that other registries get their chance.
+ * <p>
+ * With {@link #setMeterRegistry(MeterRegistry)} the registry publishes acquisition
+ * latency by outcome, obtain attempts per acquisition, Redis round-trips by operation,
+ * hold time, reentrant depth, unlocks of expired locks, the number of cached locks and the
+ * state of the release queue.
+ * <p>
+ * Lock instances are cached per key; {@link #enableIdleEviction(long)} removes idle ones
+ * in the background without any store access, as an alternative to calling
+ * {@link #expireUnusedOlderThan(long)}.
+ * <p>
+ * The server's capabilities, such as {@code UNLINK} support, are probed once in
+ * {@link #afterPropertiesSet()}, or on first use outside of an application context.
+ * <p>
  * {@link Condition}s are not supported.
  *
  * @author Gary Russell
@@ -71,13 +151,33 @@ import org.springframework.util.ReflectionUtils;
  * @since 4.0
  *
  */
-public final class RedisLockRegistry implements ExpirableLockRegistry, DisposableBean {
+public final class RedisLockRegistry implements ExpirableLockRegistry, InitializingBean, DisposableBean {
 
     private static final Log logger = LogFactory.getLog(RedisLockRegistry.class);
 
     private static final long DEFAULT_EXPIRE_AFTER = 60000L;
 
-    private static final String OBTAIN_LOCK_SCRIPT =
+    private static final long DEFAULT_MAX_WAIT_BETWEEN_TRIES = 1000L;
+
+    private static final int RENEWAL_BATCH_SIZE = 500;
+
+    private static final int DEFAULT_RELEASE_WORKERS = 2;
+
+    private static final int DEFAULT_RELEASE_QUEUE_CAPACITY = 10000;
+
+    /**
+     * How long the next local thread holds back after a handoff streak ended, so that a
+     * notified waiter of another registry can take the key.
+     */
+    private static final long HANDOFF_YIELD = 10L;
+
+    private static final int RELEASE_NONE = 0;
+
+    private static final int RELEASE_PENDING = 1;
+
+    private static final int RELEASE_IN_FLIGHT = 2;
+
+    static final String OBTAIN_LOCK_SCRIPT =
             "local lockClientId = redis.call('GET', KEYS[1])\n" +
                     "if lockClientId == ARGV[1] then\n" +
                     "  redis.call('PEXPIRE', KEYS[1], ARGV[2])\n" +
@@ -88,9 +188,219 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
                     "end\n" +
                     "return false";
 
+    static final String RELEASE_LOCK_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+                    "  redis.call(ARGV[4], KEYS[1])\n" +
+                    "  redis.call('PUBLISH', ARGV[2], ARGV[3])\n" +
+                    "  return true\n" +
+                    "end\n" +
+                    "return false";
+
+
+    static final String RENEW_LOCKS_SCRIPT =
+            "local renewed = {}\n" +
+                    "for i, key in ipairs(KEYS) do\n" +
+                    "  if redis.call('GET', key) == ARGV[1] then\n" +
+                    "    redis.call('PEXPIRE', key, ARGV[2])\n" +
+                    "    renewed[i] = 1\n" +
+                    "  else\n" +
+                    "    renewed[i] = 0\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "return renewed";
+
+    private static final String OBTAIN_LOCKS_SCRIPT =
+            "for i, key in ipairs(KEYS) do\n" +
+                    "  local lockClientId = redis.call('GET', key)\n" +
+                    "  if lockClientId and lockClientId ~= ARGV[1] then\n" +
+                    "    return i\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "for i, key in ipairs(KEYS) do\n" +
+                    "  redis.call('SET', key, ARGV[1], 'PX', ARGV[2])\n" +
+                    "end\n" +
+                    "return 0";
+
+    private static final String RELEASE_LOCKS_SCRIPT =
+            "local released = 0\n" +
+                    "for i, key in ipairs(KEYS) do\n" +
+                    "  if redis.call('GET', key) == ARGV[1] then\n" +
+                    "    redis.call(ARGV[3], key)\n" +
+                    "    redis.call('PUBLISH', ARGV[2], ARGV[i + 3])\n" +
+                    "    released = released + 1\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "return released";
+
+    /**
+     * Lua prelude of the read-write lock scripts. Each owner's holds are the hash fields
+     * {@code r:owner} and {@code w:owner}, and its lease deadline, in server time, is
+     * {@code e:owner}; {@code purge} drops the fields of owners whose lease has lapsed and
+     * recomputes the mode, and {@code lease} extends an owner's deadline and the hash's
+     * own expiry. Everything lives in the one hash, so the scripts touch only their KEYS.
+     */
+    private static final String PURGE_READ_WRITE_LOCK =
+            "redis.replicate_commands()\n" +
+                    "local time = redis.call('TIME')\n" +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n" +
+                    "local function purge(h)\n" +
+                    "  local fields = redis.call('HGETALL', h)\n" +
+                    "  local alive = {}\n" +
+                    "  for i = 1, #fields, 2 do\n" +
+                    "    if string.sub(fields[i], 1, 2) == 'e:' and tonumber(fields[i + 1]) > now then\n" +
+                    "      alive[string.sub(fields[i], 3)] = true\n" +
+                    "    end\n" +
+                    "  end\n" +
+                    "  local readers = 0\n" +
+                    "  local writers = 0\n" +
+                    "  for i = 1, #fields, 2 do\n" +
+                    "    local field = fields[i]\n" +
+                    "    if field ~= 'mode' then\n" +
+                    "      local kind = string.sub(field, 1, 1)\n" +
+                    "      if not alive[string.sub(field, 3)] then\n" +
+                    "        redis.call('HDEL', h, field)\n" +
+                    "      elseif kind == 'w' then\n" +
+                    "        writers = writers + 1\n" +
+                    "      elseif kind == 'r' then\n" +
+                    "        readers = readers + 1\n" +
+                    "      end\n" +
+                    "    end\n" +
+                    "  end\n" +
+                    "  if writers > 0 then\n" +
+                    "    redis.call('HSET', h, 'mode', 'write')\n" +
+                    "  elseif readers > 0 then\n" +
+                    "    redis.call('HSET', h, 'mode', 'read')\n" +
+                    "  else\n" +
+                    "    redis.call('DEL', h)\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "local function lease(h, owner, expireAfter)\n" +
+                    "  redis.call('HSET', h, 'e:' .. owner, now + tonumber(expireAfter))\n" +
+                    "  if redis.call('PTTL', h) < tonumber(expireAfter) then\n" +
+                    "    redis.call('PEXPIRE', h, expireAfter)\n" +
+                    "  end\n" +
+                    "end\n";
+
+    private static final String OBTAIN_READ_LOCK_SCRIPT = PURGE_READ_WRITE_LOCK +
+            "purge(KEYS[1])\n" +
+            "local mode = redis.call('HGET', KEYS[1], 'mode')\n" +
+            "if mode == 'write' and redis.call('HEXISTS', KEYS[1], 'w:' .. ARGV[1]) == 0 then\n" +
+            "  return false\n" +
+            "end\n" +
+            "if not mode then\n" +
+            "  redis.call('HSET', KEYS[1], 'mode', 'read')\n" +
+            "end\n" +
+            "redis.call('HINCRBY', KEYS[1], 'r:' .. ARGV[1], 1)\n" +
+            "lease(KEYS[1], ARGV[1], ARGV[2])\n" +
+            "return true";
+
+    private static final String OBTAIN_WRITE_LOCK_SCRIPT = PURGE_READ_WRITE_LOCK +
+            "purge(KEYS[1])\n" +
+            "local mode = redis.call('HGET', KEYS[1], 'mode')\n" +
+            "if not mode then\n" +
+            "  redis.call('HSET', KEYS[1], 'mode', 'write')\n" +
+            "  redis.call('HSET', KEYS[1], 'w:' .. ARGV[1], 1)\n" +
+            "elseif mode ~= 'write' or redis.call('HEXISTS', KEYS[1], 'w:' .. ARGV[1]) == 0 then\n" +
+            "  return false\n" +
+            "end\n" +
+            "lease(KEYS[1], ARGV[1], ARGV[2])\n" +
+            "return true";
+
+    private static final String RELEASE_READ_WRITE_LOCK_SCRIPT = PURGE_READ_WRITE_LOCK +
+            "local deadline = tonumber(redis.call('HGET', KEYS[1], 'e:' .. ARGV[1]))\n" +
+            "local field = ARGV[2] .. ':' .. ARGV[1]\n" +
+            "if not deadline or deadline <= now or redis.call('HEXISTS', KEYS[1], field) == 0 then\n" +
+            "  purge(KEYS[1])\n" +
+            "  return false\n" +
+            "end\n" +
+            "if redis.call('HINCRBY', KEYS[1], field, -1) <= 0 then\n" +
+            "  redis.call('HDEL', KEYS[1], field)\n" +
+            "end\n" +
+            "if redis.call('HEXISTS', KEYS[1], 'r:' .. ARGV[1]) == 0\n" +
+            "    and redis.call('HEXISTS', KEYS[1], 'w:' .. ARGV[1]) == 0 then\n" +
+            "  redis.call('HDEL', KEYS[1], 'e:' .. ARGV[1])\n" +
+            "end\n" +
+            "purge(KEYS[1])\n" +
+            "redis.call('PUBLISH', ARGV[3], ARGV[4])\n" +
+            "return true";
+
+    /**
+     * KEYS: read-write lock hashes; ARGV: client id, expireAfter. Returns 1 for each hash
+     * in which the client's holds were still alive and have been extended, 0 otherwise.
+     */
+    private static final String RENEW_READ_WRITE_LOCKS_SCRIPT = PURGE_READ_WRITE_LOCK +
+            "local renewed = {}\n" +
+            "for i, key in ipairs(KEYS) do\n" +
+            "  purge(key)\n" +
+            "  if redis.call('HEXISTS', key, 'e:' .. ARGV[1]) == 1 then\n" +
+            "    lease(key, ARGV[1], ARGV[2])\n" +
+            "    renewed[i] = 1\n" +
+            "  else\n" +
+            "    renewed[i] = 0\n" +
+            "  end\n" +
+            "end\n" +
+            "return renewed";
+
+    /**
+     * KEYS: lock key, waiter queue, waiter timeouts; ARGV: client id, expireAfter, waiter timeout.
+     * Waiters whose timeout has lapsed are dropped from the head of the queue; the lock is
+     * only granted to the head, and any other caller joins the tail or refreshes its timeout.
+     */
+    private static final String OBTAIN_FAIR_LOCK_SCRIPT =
+            "redis.replicate_commands()\n" +
+                    "local time = redis.call('TIME')\n" +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n" +
+                    "local head = redis.call('LINDEX', KEYS[2], 0)\n" +
+                    "while head do\n" +
+                    "  local timeout = redis.call('ZSCORE', KEYS[3], head)\n" +
+                    "  if timeout and tonumber(timeout) > now then\n" +
+                    "    break\n" +
+                    "  end\n" +
+                    "  redis.call('LPOP', KEYS[2])\n" +
+                    "  redis.call('ZREM', KEYS[3], head)\n" +
+                    "  head = redis.call('LINDEX', KEYS[2], 0)\n" +
+                    "end\n" +
+                    "local lockClientId = redis.call('GET', KEYS[1])\n" +
+                    "if lockClientId == ARGV[1] or (not lockClientId and (not head or head == ARGV[1])) then\n" +
+                    "  redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])\n" +
+                    "  if redis.call('ZREM', KEYS[3], ARGV[1]) == 1 then\n" +
+                    "    redis.call('LREM', KEYS[2], 1, ARGV[1])\n" +
+                    "  end\n" +
+                    "  return true\n" +
+                    "end\n" +
+                    "if redis.call('ZADD', KEYS[3], now + tonumber(ARGV[3]), ARGV[1]) == 1 then\n" +
+                    "  redis.call('RPUSH', KEYS[2], ARGV[1])\n" +
+                    "end\n" +
+                    "redis.call('PEXPIRE', KEYS[2], ARGV[3])\n" +
+                    "redis.call('PEXPIRE', KEYS[3], ARGV[3])\n" +
+                    "return false";
+
+    /**
+     * KEYS: waiter queue, waiter timeouts; ARGV: client id. Publishes on the unlock
+     * channel (ARGV[2], ARGV[3]) if the leaving waiter was the head, so the next one moves up.
+     */
+    private static final String LEAVE_FAIR_QUEUE_SCRIPT =
+            "local head = redis.call('LINDEX', KEYS[1], 0)\n" +
+                    "redis.call('LREM', KEYS[1], 0, ARGV[1])\n" +
+                    "redis.call('ZREM', KEYS[2], ARGV[1])\n" +
+                    "if head == ARGV[1] then\n" +
+                    "  redis.call('PUBLISH', ARGV[2], ARGV[3])\n" +
+                    "end\n" +
+                    "return true";
+
 
     private final Map<String, RedisLock> locks = new ConcurrentHashMap<>();
 
+    private final Map<String, RedisReadWriteLock> readWriteLocks = new ConcurrentHashMap<>();
+
+    private final Map<String, RedisSemaphore> semaphores = new ConcurrentHashMap<>();
+
+    /**
+     * Locks currently held in the store by a thread of this registry, by path
+     * ({@link RedisLock#hashCode()} changes with every acquisition).
+     */
+    private final Map<String, RedisLock> heldLocks = new ConcurrentHashMap<>();
+
     private final String clientId = UUID.randomUUID().toString();
 
     private final String registryKey;
@@ -99,14 +409,90 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
 
     private final RedisScript<Boolean> obtainLockScript;
 
+    private final RedisScript<Boolean> releaseLockScript;
+
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> renewLocksScript;
+
+    private final RedisScript<Long> obtainLocksScript;
+
+    private final RedisScript<Long> releaseLocksScript;
+
+    private final RedisScript<Boolean> obtainReadLockScript;
+
+    private final RedisScript<Boolean> obtainWriteLockScript;
+
+    private final RedisScript<Boolean> releaseReadWriteLockScript;
+
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> renewReadWriteLocksScript;
+
+    private final RedisScript<Boolean> obtainFairLockScript;
+
+    private final RedisScript<Boolean> leaveFairQueueScript;
+
     private final long expireAfter;
 
+    private final RedisConnectionFactory connectionFactory;
+
+    private final String unlockChannel;
+
+    private final String readWriteUnlockChannel;
+
+    private final String semaphoreUnlockChannel;
+
+    private final Object monitor = new Object();
+
+    private volatile long maxWaitBetweenTries = DEFAULT_MAX_WAIT_BETWEEN_TRIES;
+
+    private volatile LockRegistryMetrics metrics = LockRegistryMetrics.NONE;
+
+    private volatile RedisServerCapabilities serverCapabilities;
+
+    private volatile int maxLocalHandoffs;
+
+    private volatile long maxLocalHandoffTime = Long.MAX_VALUE;
+
     /**
-     * An {@link ExecutorService} to call {@link StringRedisTemplate#delete(Object)} in
-     * the separate thread when the current one is interrupted.
+     * Subscribed to the unlock channels in {@link #afterPropertiesSet()}, or lazily, when the
+     * first thread has to wait for a lock, outside of an application context.
      */
-    private Executor executor =
-            Executors.newCachedThreadPool(new CustomizableThreadFactory("redis-lock-registry-"));
+    private volatile RedisMessageListenerContainer unlockListenerContainer;
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> leaseRenewalTask;
+
+    private ScheduledFuture<?> idleEvictionTask;
+
+    /**
+     * Locks by the eviction window of their last use, oldest first; a lock is queued again
+     * only when it is used in a later window, so a sweep visits the locks of the windows
+     * that went idle rather than every cached lock. Only maintained while idle eviction is
+     * enabled.
+     */
+    private final ConcurrentSkipListMap<Long, Queue<RedisLock>> idleWindows = new ConcurrentSkipListMap<>();
+
+    /**
+     * Length of an eviction window in milliseconds; 0 while idle eviction is disabled.
+     */
+    private volatile long idleWindow;
+
+    /**
+     * An {@link ExecutorService} to drain the release queue, and to run the release script
+     * of read/write locks, when the unlocking thread is interrupted.
+     */
+    private Executor executor = newReleaseExecutor(DEFAULT_RELEASE_WORKERS);
+
+    private volatile int releaseWorkers = DEFAULT_RELEASE_WORKERS;
+
+    private volatile BlockingQueue<RedisLock> releaseQueue = new ArrayBlockingQueue<>(DEFAULT_RELEASE_QUEUE_CAPACITY);
+
+    private final AtomicInteger releaseDrainers = new AtomicInteger();
+
+    private volatile boolean asyncRelease;
+
+    private volatile boolean fair;
 
     /**
      * Flag to denote whether the {@link ExecutorService} was provided via the setter and
@@ -132,15 +518,59 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
     public RedisLockRegistry(RedisConnectionFactory connectionFactory, String registryKey, long expireAfter) {
         Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
         Assert.notNull(registryKey, "'registryKey' cannot be null");
+        this.connectionFactory = connectionFactory;
         this.redisTemplate = new StringRedisTemplate(connectionFactory);
         this.obtainLockScript = new DefaultRedisScript<>(OBTAIN_LOCK_SCRIPT, Boolean.class);
+        this.releaseLockScript = new DefaultRedisScript<>(RELEASE_LOCK_SCRIPT, Boolean.class);
+        this.renewLocksScript = new DefaultRedisScript<>(RENEW_LOCKS_SCRIPT, List.class);
+        this.obtainLocksScript = new DefaultRedisScript<>(OBTAIN_LOCKS_SCRIPT, Long.class);
+        this.releaseLocksScript = new DefaultRedisScript<>(RELEASE_LOCKS_SCRIPT, Long.class);
+        this.obtainReadLockScript = new DefaultRedisScript<>(OBTAIN_READ_LOCK_SCRIPT, Boolean.class);
+        this.obtainWriteLockScript = new DefaultRedisScript<>(OBTAIN_WRITE_LOCK_SCRIPT, Boolean.class);
+        this.releaseReadWriteLockScript = new DefaultRedisScript<>(RELEASE_READ_WRITE_LOCK_SCRIPT, Boolean.class);
+        this.renewReadWriteLocksScript = new DefaultRedisScript<>(RENEW_READ_WRITE_LOCKS_SCRIPT, List.class);
+        this.obtainFairLockScript = new DefaultRedisScript<>(OBTAIN_FAIR_LOCK_SCRIPT, Boolean.class);
+        this.leaveFairQueueScript = new DefaultRedisScript<>(LEAVE_FAIR_QUEUE_SCRIPT, Boolean.class);
         this.registryKey = registryKey;
         this.expireAfter = expireAfter;
+        this.unlockChannel = registryKey + ":unlocks";
+        this.readWriteUnlockChannel = this.unlockChannel + ":rw";
+        this.semaphoreUnlockChannel = this.unlockChannel + ":semaphore";
+    }
+
+    /**
+     * Subscribe to unlock notifications and probe the server's capabilities, so no lock
+     * operation has to; a waiter can then never miss the release it waits for because the
+     * subscription was still being set up.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        subscribeToUnlocksIfNecessary();
+        getServerCapabilities();
+    }
+
+    /**
+     * @return the capabilities of the Redis server, probed on first call.
+     */
+    public RedisServerCapabilities getServerCapabilities() {
+        RedisServerCapabilities capabilities = this.serverCapabilities;
+        if (capabilities == null) {
+            capabilities = RedisUtils.capabilities(this.redisTemplate);
+            this.serverCapabilities = capabilities;
+        }
+        return capabilities;
+    }
+
+    private static ExecutorService newReleaseExecutor(int workers) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory("redis-lock-registry-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
      * Set the {@link Executor}, where is not provided then a default of
-     * cached thread pool Executor will be used.
+     * fixed thread pool Executor with a thread per release worker will be used.
      * @param executor the executor service
      * @since 5.0.5
      */
@@ -149,11 +579,222 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
         this.executorExplicitlySet = true;
     }
 
+    /**
+     * Configure the release queue.
+     * @param workers the maximum number of tasks draining the queue at once; default 2.
+     * @param capacity the maximum number of queued releases, beyond which unlocking threads
+     * release their keys themselves; default 10000.
+     */
+    public void setReleaseQueue(int workers, int capacity) {
+        Assert.isTrue(workers > 0, "'workers' must be greater than 0");
+        Assert.isTrue(capacity > 0, "'capacity' must be greater than 0");
+        synchronized (this.monitor) {
+            Assert.state(this.releaseQueue.isEmpty(), "The release queue cannot be changed while in use");
+            this.releaseQueue = new ArrayBlockingQueue<>(capacity);
+            if (!this.executorExplicitlySet && workers != this.releaseWorkers) {
+                ((ExecutorService) this.executor).shutdown();
+                this.executor = newReleaseExecutor(workers);
+            }
+            this.releaseWorkers = workers;
+        }
+    }
+
+    /**
+     * Queue every release instead of only those of interrupted threads, so {@code unlock()}
+     * makes no store access. An unlock then detects an expired lock only from the local
+     * lease, and a key whose release fails stays locked until it expires.
+     * @param asyncRelease true to release asynchronously; default false.
+     */
+    public void setAsyncRelease(boolean asyncRelease) {
+        this.asyncRelease = asyncRelease;
+    }
+
+    /**
+     * Set the maximum time a waiting thread parks before it retries the store even if
+     * no unlock notification has been received; default 1000 milliseconds.
+     * @param maxWaitBetweenTries the maximum wait in milliseconds.
+     */
+    public void setMaxWaitBetweenTries(long maxWaitBetweenTries) {
+        Assert.isTrue(maxWaitBetweenTries > 0, "'maxWaitBetweenTries' must be greater than 0");
+        this.maxWaitBetweenTries = maxWaitBetweenTries;
+    }
+
+    /**
+     * Grant the locks returned by {@link #obtain(Object)} in FIFO order across registries:
+     * a registry failing to obtain a key joins a queue under {@code registryKey:lockKey:queue},
+     * and only the head of the queue may take the key when it is free. Each registry is one
+     * waiter, whichever of its threads is waiting, and refreshes its place on every attempt;
+     * a waiter not heard from for three times {@link #setMaxWaitBetweenTries(long)} is dropped
+     * when it reaches the head, so a crashed waiter delays the others by that much at most.
+     * All registries using the same keys must be fair for the order to hold; locks from
+     * {@link #obtainAll(Collection)} do not take part in the queue.
+     * @param fair true for FIFO ordering; default false.
+     */
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Keep the key of a lock released while other local threads wait for it, and hand its
+     * lease over to the next of them; this saves the release and obtain round-trips and
+     * the race against other registries. The lease is handed over as is, so unless the
+     * {@link #enableLeaseRenewal(long) watchdog} is on, a thread taking over a lease with
+     * less than half of {@code expireAfter} left renews it in the store first.
+     * @param maxConsecutiveHandoffs the number of consecutive handoffs after which the key
+     * is released in the store anyway, bounding how long other registries can starve;
+     * 0 (the default) disables handoff.
+     */
+    public void setLocalHandoff(int maxConsecutiveHandoffs) {
+        setLocalHandoff(maxConsecutiveHandoffs, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #setLocalHandoff(int)}, also bounding the time a key may stay in this
+     * registry through consecutive handoffs. When either bound is reached the key is
+     * released in the store and the next local thread waits a few milliseconds before
+     * obtaining it again, so a waiter of another registry woken by the release can win.
+     * @param maxConsecutiveHandoffs the number of consecutive handoffs after which the key
+     * is released in the store anyway; 0 disables handoff.
+     * @param maxHandoffTime the time in milliseconds, from the first handoff, after which
+     * the key is released in the store anyway.
+     */
+    public void setLocalHandoff(int maxConsecutiveHandoffs, long maxHandoffTime) {
+        Assert.isTrue(maxConsecutiveHandoffs >= 0, "'maxConsecutiveHandoffs' cannot be negative");
+        Assert.isTrue(maxHandoffTime > 0, "'maxHandoffTime' must be greater than 0");
+        this.maxLocalHandoffs = maxConsecutiveHandoffs;
+        this.maxLocalHandoffTime = maxHandoffTime;
+    }
+
+    /**
+     * Publish the registry's metrics to the {@link MeterRegistry}.
+     * @param meterRegistry the meter registry.
+     */
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        Assert.notNull(meterRegistry, "'meterRegistry' cannot be null");
+        LockRegistryMetrics metrics = new LockRegistryMetrics(meterRegistry, this.registryKey);
+        metrics.gauge("redis.lock.registry.size", "Locks cached by the registry", this.locks, Map::size);
+        metrics.gauge("redis.lock.release.backlog", "Releases waiting in the release queue",
+                this, registry -> registry.releaseQueue.size());
+        metrics.gauge("redis.lock.release.workers", "Tasks draining the release queue",
+                this.releaseDrainers, AtomicInteger::get);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start the lease renewal watchdog: every {@code renewalInterval} milliseconds the
+     * expiration of all locks and semaphore permits held by this registry is reset to
+     * {@code expireAfter}.
+     * @param renewalInterval the renewal period in milliseconds; must be less than
+     * {@code expireAfter}, typically a third of it.
+     */
+    public void enableLeaseRenewal(long renewalInterval) {
+        Assert.isTrue(renewalInterval > 0 && renewalInterval < this.expireAfter,
+                "'renewalInterval' must be greater than 0 and less than 'expireAfter'");
+        synchronized (this.monitor) {
+            if (this.leaseRenewalTask != null) {
+                this.leaseRenewalTask.cancel(false);
+            }
+            this.leaseRenewalTask = getScheduler().scheduleWithFixedDelay(this::renewLeases,
+                    renewalInterval, renewalInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        synchronized (this.monitor) {
+            if (this.scheduler == null) {
+                this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                        new CustomizableThreadFactory("redis-lock-registry-scheduler-"));
+            }
+            return this.scheduler;
+        }
+    }
+
     @Override
     public Lock obtain(Object lockKey) {
         Assert.isInstanceOf(String.class, lockKey);
         String path = (String) lockKey;
-        return this.locks.computeIfAbsent(path, RedisLock::new);
+        return lockFor(path);
+    }
+
+    /**
+     * Resolve the lock for the path and mark it as used; atomic with respect to idle eviction.
+     */
+    private RedisLock lockFor(String path) {
+        long now = System.currentTimeMillis();
+        return this.locks.compute(path, (key, lock) -> {
+            RedisLock redisLock = lock != null ? lock : new RedisLock(key);
+            used(redisLock, now);
+            return redisLock;
+        });
+    }
+
+    /**
+     * Obtain a lock over all the keys. Locking it acquires every key or none with a
+     * single script execution; the keys share the local state of the locks returned by
+     * {@link #obtain(Object)} for the same keys, so reentrancy works across both.
+     * @param lockKeys the lock keys; duplicates are ignored.
+     * @return the composite lock.
+     */
+    public Lock obtainAll(Collection<String> lockKeys) {
+        Assert.notEmpty(lockKeys, "'lockKeys' cannot be empty");
+        return new MultiRedisLock(new ArrayList<>(new TreeSet<>(lockKeys)));
+    }
+
+    /**
+     * Obtain the distributed read-write lock for the key.
+     * @param lockKey the lock key.
+     * @return the read-write lock.
+     */
+    public ReadWriteLock obtainReadWriteLock(String lockKey) {
+        Assert.notNull(lockKey, "'lockKey' cannot be null");
+        return this.readWriteLocks.computeIfAbsent(lockKey, RedisReadWriteLock::new);
+    }
+
+    /**
+     * Obtain the distributed semaphore for the key.
+     * @param key the semaphore key.
+     * @param permits the total number of permits; all users of the key must agree on it.
+     * @return the semaphore.
+     */
+    public RedisSemaphore obtainSemaphore(String key, int permits) {
+        Assert.notNull(key, "'key' cannot be null");
+        Assert.isTrue(permits > 0, "'permits' must be greater than 0");
+        RedisSemaphore semaphore = this.semaphores.computeIfAbsent(key, k -> new RedisSemaphore(this, k, permits));
+        Assert.isTrue(semaphore.getPermits() == permits,
+                () -> "Semaphore " + key + " was already obtained with " + semaphore.getPermits() + " permits");
+        return semaphore;
+    }
+
+    StringRedisTemplate getRedisTemplate() {
+        return this.redisTemplate;
+    }
+
+    String getRegistryKey() {
+        return this.registryKey;
+    }
+
+    String getClientId() {
+        return this.clientId;
+    }
+
+    long getExpireAfter() {
+        return this.expireAfter;
+    }
+
+    LockRegistryMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    long getMaxWaitBetweenTries() {
+        return this.maxWaitBetweenTries;
+    }
+
+    String getSemaphoreUnlockChannel() {
+        return this.semaphoreUnlockChannel;
+    }
+
+    private String deleteCommand() {
+        return getServerCapabilities().getDeleteCommand();
     }
 
     @Override
@@ -163,46 +804,924 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
         while (iterator.hasNext()) {
             Map.Entry<String, RedisLock> entry = iterator.next();
             RedisLock lock = entry.getValue();
-            if (now - lock.getLockedAt() > age && !lock.isAcquiredInThisProcess()) {
+            if (now - lock.getLockedAt() > age && !lock.isAcquiredInThisProcess() && !lock.isReleasing()) {
                 iterator.remove();
             }
         }
-    }
+        for (String path : this.readWriteLocks.keySet()) {
+            this.readWriteLocks.computeIfPresent(path, (key, lock) ->
+                    now - lock.lockedAt > age && !lock.isLocallyUsed() ? null : lock);
+        }
+    }
+
+    /**
+     * Start evicting locks which have not been resolved via {@link #obtain(Object)} or
+     * {@link #obtainAll(Collection)}, acquired or unlocked for {@code idleTimeout}
+     * milliseconds and are neither held nor waited for locally, nor awaiting a queued
+     * release of their key. Idleness is decided from local state only, so a sweep makes no
+     * calls to Redis. The sweep runs every half {@code idleTimeout} and only visits locks
+     * last used in the windows that went idle since the previous sweep, plus those still
+     * held from earlier windows.
+     * <p>
+     * Callers must not keep lock instances across idle periods; an evicted instance is no
+     * longer mutually exclusive with the one {@link #obtain(Object)} creates afterwards.
+     * @param idleTimeout the idle time in milliseconds after which a lock is evicted.
+     */
+    public void enableIdleEviction(long idleTimeout) {
+        Assert.isTrue(idleTimeout > 1, "'idleTimeout' must be greater than 1");
+        synchronized (this.monitor) {
+            if (this.idleEvictionTask != null) {
+                this.idleEvictionTask.cancel(false);
+            }
+            this.idleWindow = idleTimeout / 2;
+            this.idleWindows.clear();
+            for (RedisLock lock : this.locks.values()) {
+                lock.idleWindowIndex.set(-1);
+                queueIdle(lock, lock.lastUsed);
+            }
+            this.idleEvictionTask = getScheduler().scheduleWithFixedDelay(() -> evictIdle(idleTimeout),
+                    idleTimeout / 2, idleTimeout / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void evictIdle(long idleTimeout) {
+        long now = System.currentTimeMillis();
+        long window = this.idleWindow;
+        Map.Entry<Long, Queue<RedisLock>> oldest;
+        // every lock of a window ending before now - idleTimeout was last used longer than idleTimeout ago
+        while ((oldest = this.idleWindows.firstEntry()) != null && (oldest.getKey() + 1) * window <= now - idleTimeout) {
+            this.idleWindows.remove(oldest.getKey());
+            for (RedisLock lock : oldest.getValue()) {
+                if (lock.idleWindowIndex.get() != oldest.getKey()) {
+                    continue; // used again, queued in a later window
+                }
+                RedisLock kept = this.locks.computeIfPresent(lock.path, (key, cached) ->
+                        cached == lock && lock.isIdle(now, idleTimeout) ? null : cached);
+                if (kept == lock) {
+                    // still held, waited for or releasing: look at it again in a later sweep
+                    queueIdle(lock, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a use of the lock for idle eviction.
+     */
+    private void used(RedisLock lock, long now) {
+        lock.lastUsed = now;
+        queueIdle(lock, now);
+    }
+
+    private void queueIdle(RedisLock lock, long time) {
+        long window = this.idleWindow;
+        if (window > 0) {
+            long index = time / window;
+            long previous = lock.idleWindowIndex.get();
+            if (previous < index && lock.idleWindowIndex.compareAndSet(previous, index)) {
+                this.idleWindows.computeIfAbsent(index, key -> new ConcurrentLinkedQueue<>()).add(lock);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (!this.executorExplicitlySet) {
+            ((ExecutorService) this.executor).shutdown();
+        }
+        synchronized (this.monitor) {
+            if (this.scheduler != null) {
+                this.scheduler.shutdownNow();
+            }
+        }
+        RedisMessageListenerContainer container = this.unlockListenerContainer;
+        if (container != null) {
+            try {
+                container.destroy();
+            }
+            catch (Exception e) {
+                logger.warn("Failed to stop the unlock notification listener container", e);
+            }
+        }
+    }
+
+    /**
+     * Queue the release of the lock's key; if the queue is full, release it on the calling
+     * thread, with its interrupt status cleared for the duration of the call.
+     */
+    private void releaseAsync(RedisLock lock) {
+        lock.releaseState.set(RELEASE_PENDING);
+        if (this.releaseQueue.offer(lock)) {
+            scheduleReleaseDrain();
+            return;
+        }
+        this.metrics.releaseRejected();
+        if (!lock.releaseState.compareAndSet(RELEASE_PENDING, RELEASE_NONE)) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!lock.removeLockKey()) {
+                logger.warn("The lock had expired in the store before its release; " + lock);
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void scheduleReleaseDrain() {
+        int drainers;
+        while ((drainers = this.releaseDrainers.get()) < this.releaseWorkers) {
+            if (this.releaseDrainers.compareAndSet(drainers, drainers + 1)) {
+                try {
+                    this.executor.execute(this::drainReleases);
+                }
+                catch (RuntimeException e) {
+                    this.releaseDrainers.decrementAndGet();
+                    logger.error("Failed to schedule the release queue drain; " +
+                            "queued keys stay locked until they expire", e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void drainReleases() {
+        try {
+            List<RedisLock> batch = new ArrayList<>();
+            while (this.releaseQueue.drainTo(batch, RENEWAL_BATCH_SIZE) > 0) {
+                releaseBatch(batch);
+                batch.clear();
+            }
+        }
+        finally {
+            this.releaseDrainers.decrementAndGet();
+        }
+        // a release queued after the final drainTo may have found all workers still busy
+        if (!this.releaseQueue.isEmpty()) {
+            scheduleReleaseDrain();
+        }
+    }
+
+    /**
+     * Release the keys of the batch's locks whose release has not been cancelled meanwhile,
+     * in a single script execution.
+     */
+    private void releaseBatch(List<RedisLock> batch) {
+        List<RedisLock> claimed = new ArrayList<>(batch.size());
+        for (RedisLock lock : batch) {
+            if (lock.releaseState.compareAndSet(RELEASE_PENDING, RELEASE_IN_FLIGHT)) {
+                claimed.add(lock);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(claimed.size());
+        Object[] args = new Object[claimed.size() + 3];
+        args[0] = this.clientId;
+        args[1] = this.unlockChannel;
+        args[2] = deleteCommand();
+        for (int i = 0; i < claimed.size(); i++) {
+            keys.add(claimed.get(i).lockKey);
+            args[i + 3] = claimed.get(i).path;
+        }
+        try {
+            this.metrics.roundTrip(Operation.RELEASE_ALL);
+            this.metrics.releaseBatch(claimed.size());
+            Long released = this.redisTemplate.execute(this.releaseLocksScript, keys, args);
+            if (released == null || released < claimed.size()) {
+                logger.warn("Some locks had expired in the store before their queued release: " + keys);
+            }
+        }
+        catch (Exception e) {
+            logger.error("Failed to release " + keys.size() + " locks; they stay locked until they expire", e);
+        }
+        finally {
+            for (RedisLock lock : claimed) {
+                lock.releaseState.set(RELEASE_NONE);
+            }
+        }
+    }
+
+    /**
+     * Extend the leases of all held locks, {@link #RENEWAL_BATCH_SIZE} keys per script
+     * execution. A lock whose key no longer belongs to this registry keeps its old local
+     * deadline, so its eventual unlock reports the expiration.
+     */
+    private void renewLeases() {
+        List<RedisLock> held = new ArrayList<>(this.heldLocks.size());
+        for (RedisLock lock : this.heldLocks.values()) {
+            if (!lock.releaseAbandonedLease()) {
+                held.add(lock);
+            }
+        }
+        for (int from = 0; from < held.size(); from += RENEWAL_BATCH_SIZE) {
+            List<RedisLock> batch = held.subList(from, Math.min(from + RENEWAL_BATCH_SIZE, held.size()));
+            List<String> keys = new ArrayList<>(batch.size());
+            for (RedisLock lock : batch) {
+                keys.add(lock.lockKey);
+            }
+            long start = System.currentTimeMillis();
+            try {
+                this.metrics.roundTrip(Operation.RENEW);
+                List<?> renewed = this.redisTemplate.execute(this.renewLocksScript, keys, this.clientId,
+                        String.valueOf(this.expireAfter));
+                for (int i = 0; renewed != null && i < renewed.size(); i++) {
+                    RedisLock lock = batch.get(i);
+                    if (Long.valueOf(1L).equals(renewed.get(i))) {
+                        lock.leaseRenewed(start);
+                    }
+                    else if (this.heldLocks.containsKey(lock.path)) {
+                        logger.warn("Lease could not be renewed, the lock expired in the store; " + lock);
+                    }
+                }
+            }
+            catch (Exception e) {
+                logger.error("Failed to renew the leases of " + keys.size() + " locks", e);
+            }
+        }
+        renewReadWriteLeases();
+        renewPermits();
+    }
+
+    private void renewReadWriteLeases() {
+        List<String> keys = new ArrayList<>();
+        for (RedisReadWriteLock lock : this.readWriteLocks.values()) {
+            if (lock.isHeldInStore()) {
+                keys.add(lock.lockKey);
+            }
+        }
+        for (int from = 0; from < keys.size(); from += RENEWAL_BATCH_SIZE) {
+            List<String> batch = keys.subList(from, Math.min(from + RENEWAL_BATCH_SIZE, keys.size()));
+            try {
+                this.metrics.roundTrip(Operation.RENEW);
+                List<?> renewed = this.redisTemplate.execute(this.renewReadWriteLocksScript, batch, this.clientId,
+                        String.valueOf(this.expireAfter));
+                for (int i = 0; renewed != null && i < renewed.size(); i++) {
+                    if (!Long.valueOf(1L).equals(renewed.get(i))) {
+                        logger.warn("Lease could not be renewed, the read-write lock expired in the store; "
+                                + batch.get(i));
+                    }
+                }
+            }
+            catch (Exception e) {
+                logger.error("Failed to renew the leases of " + batch.size() + " read-write locks", e);
+            }
+        }
+    }
+
+    private void renewPermits() {
+        for (RedisSemaphore semaphore : this.semaphores.values()) {
+            try {
+                if (!semaphore.renewPermits()) {
+                    logger.warn("Lease could not be renewed, some permits expired in the store; " + semaphore);
+                }
+            }
+            catch (Exception e) {
+                logger.error("Failed to renew the permits of " + semaphore, e);
+            }
+        }
+    }
+
+    void subscribeToUnlocksIfNecessary() {
+        if (this.unlockListenerContainer == null) {
+            synchronized (this.monitor) {
+                if (this.unlockListenerContainer == null) {
+                    RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+                    container.setConnectionFactory(this.connectionFactory);
+                    container.addMessageListener(new UnlockNotificationListener(),
+                            Arrays.asList(new ChannelTopic(this.unlockChannel),
+                                    new ChannelTopic(this.readWriteUnlockChannel),
+                                    new ChannelTopic(this.semaphoreUnlockChannel)));
+                    container.afterPropertiesSet();
+                    container.start();
+                    this.unlockListenerContainer = container;
+                }
+            }
+        }
+    }
+
+    /**
+     * Exclusive locks, read-write locks and semaphores publish on channels of their own, so
+     * a release only wakes the waiters of the same kind of primitive for that path.
+     */
+    private final class UnlockNotificationListener implements MessageListener {
+
+        UnlockNotificationListener() {
+        }
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+            String path = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (RedisLockRegistry.this.unlockChannel.equals(channel)) {
+                RedisLock lock = RedisLockRegistry.this.locks.get(path);
+                if (lock != null) {
+                    lock.signalRelease();
+                }
+            }
+            else if (RedisLockRegistry.this.readWriteUnlockChannel.equals(channel)) {
+                RedisReadWriteLock readWriteLock = RedisLockRegistry.this.readWriteLocks.get(path);
+                if (readWriteLock != null) {
+                    readWriteLock.signalRelease();
+                }
+            }
+            else if (RedisLockRegistry.this.semaphoreUnlockChannel.equals(channel)) {
+                RedisSemaphore semaphore = RedisLockRegistry.this.semaphores.get(path);
+                if (semaphore != null) {
+                    semaphore.signalRelease();
+                }
+            }
+        }
+
+    }
+
+    private final class RedisLock implements Lock {
+
+        private final String path;
+
+        private final String lockKey;
+
+        private final ReentrantLock localLock = new ReentrantLock();
+
+        /**
+         * Receives a permit for every unlock notification; only the thread holding
+         * {@link #localLock} ever waits on it.
+         */
+        private final Semaphore releaseSignal = new Semaphore(0);
+
+        private volatile long lockedAt;
+
+        /**
+         * Last time this lock was resolved from the registry, acquired or unlocked; drives
+         * idle eviction.
+         */
+        private volatile long lastUsed;
+
+        /**
+         * The latest eviction window this lock is queued in, -1 if none.
+         */
+        private final AtomicLong idleWindowIndex = new AtomicLong(-1);
+
+        /**
+         * Local view of the lease: the store key expires no earlier than this, since the
+         * deadline is measured from before the obtain script was sent.
+         */
+        private volatile long leaseDeadline;
+
+        /**
+         * Set when the last holder kept the key for a queued local thread; guarded by
+         * {@link #localLock} for writes, read without it to detect abandoned leases.
+         */
+        private volatile boolean leaseRetained;
+
+        /**
+         * Whether the key is queued for an asynchronous release, or being released.
+         */
+        private final AtomicInteger releaseState = new AtomicInteger(RELEASE_NONE);
+
+        /**
+         * Handoffs since the key was last released in the store; guarded by {@link #localLock}.
+         */
+        private int consecutiveHandoffs;
+
+        /**
+         * When the first handoff of the current streak happened; guarded by {@link #localLock}.
+         */
+        private long handoffStartedAt;
+
+        /**
+         * Until when the next store acquisition holds back after a handoff streak ended;
+         * guarded by {@link #localLock}.
+         */
+        private long yieldUntil;
+
+        /**
+         * Obtain script executions of the current acquisition; guarded by {@link #localLock}.
+         */
+        private int obtainAttempts;
+
+        /**
+         * When the outermost hold was acquired; guarded by {@link #localLock}.
+         */
+        private long heldSinceNanos;
+
+        private final List<String> fairKeys;
+
+        private RedisLock(String path) {
+            this.path = path;
+            this.lockKey = constructLockKey(path);
+            this.fairKeys = Arrays.asList(this.lockKey, this.lockKey + ":queue", this.lockKey + ":timeouts");
+        }
+
+        private String constructLockKey(String path) {
+            return RedisLockRegistry.this.registryKey + ":" + path;
+        }
+
+        public long getLockedAt() {
+            return this.lockedAt;
+        }
+
+        private boolean isIdle(long now, long idleTimeout) {
+            return now - this.lastUsed > idleTimeout && !this.leaseRetained && !isReleasing()
+                    && !this.localLock.isLocked() && !this.localLock.hasQueuedThreads();
+        }
+
+        /**
+         * Whether the key's release is queued or being sent; a new instance for the path
+         * would not see it and could obtain the key before the queued release deletes it.
+         */
+        private boolean isReleasing() {
+            return this.releaseState.get() != RELEASE_NONE;
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            this.localLock.lock();
+            this.obtainAttempts = 0;
+            while (true) {
+                try {
+                    while (!obtainLock()) {
+                        awaitRelease(RedisLockRegistry.this.maxWaitBetweenTries);
+                    }
+                    acquired(Outcome.ACQUIRED, start);
+                    break;
+                }
+                catch (InterruptedException e) {
+                    /*
+                     * This method must be uninterruptible so catch and ignore
+                     * interrupts and only break out of the while loop when
+                     * we get the lock.
+                     */
+                }
+                catch (Exception e) {
+                    acquired(Outcome.ERROR, start);
+                    giveUp();
+                    rethrowAsLockException(e);
+                }
+            }
+        }
+
+        /**
+         * Release the local lock after a failed acquisition; in fair mode also leave the
+         * store queue, unless another local thread is about to take over the place in it.
+         */
+        private void giveUp() {
+            try {
+                if (RedisLockRegistry.this.fair && !this.localLock.hasQueuedThreads()) {
+                    leaveQueue();
+                }
+            }
+            finally {
+                this.localLock.unlock();
+            }
+        }
+
+        private void leaveQueue() {
+            boolean interrupted = Thread.interrupted();
+            try {
+                RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.leaveFairQueueScript,
+                        this.fairKeys.subList(1, 3), RedisLockRegistry.this.clientId,
+                        RedisLockRegistry.this.unlockChannel, this.path);
+            }
+            catch (Exception e) {
+                logger.warn("Failed to leave the waiter queue; the place lapses after its timeout; " + this, e);
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void acquired(Outcome outcome, long startNanos) {
+            LockRegistryMetrics metrics = RedisLockRegistry.this.metrics;
+            metrics.acquired(outcome, startNanos, this.obtainAttempts);
+            if (outcome == Outcome.ACQUIRED) {
+                int holdCount = this.localLock.getHoldCount();
+                metrics.reentrantDepth(holdCount);
+                if (holdCount == 1) {
+                    this.heldSinceNanos = System.nanoTime();
+                }
+            }
+        }
+
+        private void rethrowAsLockException(Exception e) {
+            throw new CannotAcquireLockException("Failed to lock mutex at " + this.lockKey, e);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                this.localLock.lockInterruptibly();
+            }
+            catch (InterruptedException ie) {
+                releaseAbandonedLease();
+                throw ie;
+            }
+            this.obtainAttempts = 0;
+            try {
+                while (!obtainLock()) {
+                    awaitRelease(RedisLockRegistry.this.maxWaitBetweenTries);
+                }
+                acquired(Outcome.ACQUIRED, start);
+            }
+            catch (InterruptedException ie) {
+                acquired(Outcome.INTERRUPTED, start);
+                giveUp();
+                Thread.currentThread().interrupt();
+                throw ie;
+            }
+            catch (Exception e) {
+                acquired(Outcome.ERROR, start);
+                giveUp();
+                rethrowAsLockException(e);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            try {
+                return tryLock(0, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            boolean locked;
+            try {
+                locked = this.localLock.tryLock(time, unit);
+            }
+            catch (InterruptedException ie) {
+                releaseAbandonedLease();
+                throw ie;
+            }
+            if (!locked) {
+                RedisLockRegistry.this.metrics.acquired(Outcome.TIMEOUT, start, 0);
+                releaseAbandonedLease();
+                return false;
+            }
+            this.obtainAttempts = 0;
+            try {
+                long expire = now + TimeUnit.MILLISECONDS.convert(time, unit);
+                boolean acquired;
+                long remaining;
+                while (!(acquired = obtainLock()) && (remaining = expire - System.currentTimeMillis()) > 0) { //NOSONAR
+                    awaitRelease(Math.min(remaining, RedisLockRegistry.this.maxWaitBetweenTries));
+                }
+                acquired(acquired ? Outcome.ACQUIRED : Outcome.TIMEOUT, start);
+                if (!acquired) {
+                    giveUp();
+                }
+                return acquired;
+            }
+            catch (InterruptedException ie) {
+                acquired(Outcome.INTERRUPTED, start);
+                giveUp();
+                throw ie;
+            }
+            catch (Exception e) {
+                acquired(Outcome.ERROR, start);
+                giveUp();
+                rethrowAsLockException(e);
+            }
+            return false;
+        }
+
+        /**
+         * Park until an unlock notification for this lock arrives or the timeout elapses.
+         * @param timeout the maximum time to wait in milliseconds.
+         * @throws InterruptedException if the waiting thread is interrupted.
+         */
+        private void awaitRelease(long timeout) throws InterruptedException {
+            subscribeToUnlocksIfNecessary();
+            this.releaseSignal.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        private void signalRelease() {
+            if (this.releaseSignal.availablePermits() == 0) {
+                this.releaseSignal.release();
+            }
+        }
+
+        private boolean obtainLock() {
+            if (takeOverRetainedLease()) {
+                return true;
+            }
+            yieldAfterHandoffs();
+            cancelOrAwaitQueuedRelease();
+            // Forget notifications for earlier releases; only those after this attempt matter
+            this.releaseSignal.drainPermits();
+            this.obtainAttempts++;
+            RedisLockRegistry.this.metrics.roundTrip(Operation.OBTAIN);
+            long start = System.currentTimeMillis();
+            Boolean success;
+            if (RedisLockRegistry.this.fair) {
+                success = RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.obtainFairLockScript,
+                        this.fairKeys, RedisLockRegistry.this.clientId,
+                        String.valueOf(RedisLockRegistry.this.expireAfter),
+                        String.valueOf(3 * RedisLockRegistry.this.maxWaitBetweenTries));
+            }
+            else {
+                success = RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.obtainLockScript,
+                        Collections.singletonList(this.lockKey), RedisLockRegistry.this.clientId,
+                        String.valueOf(RedisLockRegistry.this.expireAfter));
+            }
+
+            boolean result = Boolean.TRUE.equals(success);
+
+            if (result) {
+                obtained(start);
+            }
+            return result;
+        }
+
+        /**
+         * Give waiters of other registries a head start on a key released at the end of a
+         * handoff streak; otherwise the next local thread, already awake, would mostly win.
+         */
+        private void yieldAfterHandoffs() {
+            long wait = this.yieldUntil - System.currentTimeMillis();
+            this.yieldUntil = 0;
+            if (wait > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+            }
+        }
+
+        /**
+         * Make sure no queued release deletes the key after it is obtained again: a release
+         * not yet sent is cancelled, leaving the key to the obtain script, which succeeds for
+         * the same client id; a release being sent is waited for.
+         */
+        private void cancelOrAwaitQueuedRelease() {
+            if (!this.releaseState.compareAndSet(RELEASE_PENDING, RELEASE_NONE)) {
+                while (this.releaseState.get() == RELEASE_IN_FLIGHT) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        }
+
+        /**
+         * Take over the lease the previous local holder kept; a lease with less than half
+         * of {@code expireAfter} left is forgotten and renewed by the obtain script instead,
+         * which succeeds for the same client id while the key has not expired.
+         * @return true if the lock is now held without any store access.
+         */
+        private boolean takeOverRetainedLease() {
+            if (!this.leaseRetained) {
+                return false;
+            }
+            this.leaseRetained = false;
+            long now = System.currentTimeMillis();
+            if (this.leaseDeadline - now > RedisLockRegistry.this.expireAfter / 2) {
+                this.lockedAt = now;
+                return true;
+            }
+            released();
+            return false;
+        }
+
+        /**
+         * Keep the key for the next queued local thread, unless one of the fairness bounds
+         * has been reached or the lease has run out.
+         * @return true if the lease was retained and the local lock released.
+         */
+        private boolean handOffLease() {
+            long now = System.currentTimeMillis();
+            boolean queued = this.localLock.hasQueuedThreads();
+            if (this.consecutiveHandoffs < RedisLockRegistry.this.maxLocalHandoffs
+                    && (this.consecutiveHandoffs == 0
+                            || now - this.handoffStartedAt < RedisLockRegistry.this.maxLocalHandoffTime)
+                    && queued && isAcquiredInThisProcess()) {
+                if (this.consecutiveHandoffs == 0) {
+                    this.handoffStartedAt = now;
+                }
+                this.consecutiveHandoffs++;
+                this.leaseRetained = true;
+                RedisLockRegistry.this.metrics.handoff();
+                RedisLockRegistry.this.metrics.held(this.heldSinceNanos);
+                this.localLock.unlock();
+                return true;
+            }
+            if (this.consecutiveHandoffs > 0 && queued) {
+                this.yieldUntil = now + HANDOFF_YIELD;
+            }
+            this.consecutiveHandoffs = 0;
+            return false;
+        }
+
+        /**
+         * Release a lease that was retained for local threads which all gave up waiting.
+         * @return true if such a lease was found.
+         */
+        private boolean releaseAbandonedLease() {
+            if (!this.leaseRetained || this.localLock.hasQueuedThreads() || !this.localLock.tryLock()) {
+                return false;
+            }
+            try {
+                if (!this.leaseRetained || this.localLock.getHoldCount() > 1) {
+                    return false;
+                }
+                removeLockKey();
+                released();
+                this.consecutiveHandoffs = 0;
+                return true;
+            }
+            catch (Exception e) {
+                logger.warn("Failed to release an abandoned lease; it expires after 'expireAfter'; " + this, e);
+                return false;
+            }
+            finally {
+                this.localLock.unlock();
+            }
+        }
+
+        private void obtained(long start) {
+            this.lockedAt = System.currentTimeMillis();
+            this.leaseDeadline = start + RedisLockRegistry.this.expireAfter;
+            RedisLockRegistry.this.heldLocks.put(this.path, this);
+            used(this, this.lockedAt);
+        }
+
+        private void released() {
+            RedisLockRegistry.this.heldLocks.remove(this.path);
+            this.leaseDeadline = 0;
+            this.leaseRetained = false;
+        }
+
+        private void leaseRenewed(long start) {
+            if (this.localLock.isLocked() || this.leaseRetained) {
+                this.leaseDeadline = start + RedisLockRegistry.this.expireAfter;
+            }
+        }
+
+        @Override
+        public void unlock() {
+            if (!this.localLock.isHeldByCurrentThread()) {
+                throw new IllegalStateException("You do not own lock at " + this.lockKey);
+            }
+            if (this.localLock.getHoldCount() > 1) {
+                this.localLock.unlock();
+                return;
+            }
+            if (handOffLease()) {
+                return;
+            }
+            try {
+                if (RedisLockRegistry.this.asyncRelease || Thread.currentThread().isInterrupted()) {
+                    if (!isAcquiredInThisProcess()) {
+                        throwExpired();
+                    }
+                    releaseAsync(this);
+                }
+                else if (!removeLockKey()) {
+                    throwExpired();
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Released lock; " + this);
+                }
+            }
+            catch (Exception e) {
+                ReflectionUtils.rethrowRuntimeException(e);
+            }
+            finally {
+                RedisLockRegistry.this.metrics.held(this.heldSinceNanos);
+                released();
+                used(this, System.currentTimeMillis());
+                this.localLock.unlock();
+            }
+        }
 
-    @Override
-    public void destroy() {
-        if (!this.executorExplicitlySet) {
-            ((ExecutorService) this.executor).shutdown();
+        private void throwExpired() {
+            RedisLockRegistry.this.metrics.expiredUnlock();
+            throw new IllegalStateException("Lock was released in the store due to expiration. " +
+                    "The integrity of data protected by this lock may have been compromised.");
         }
-    }
 
-    private final class RedisLock implements Lock {
+        /**
+         * Delete the key and publish the unlock notification in a single round-trip,
+         * provided the key still belongs to this registry.
+         * @return false if the key had already expired or been taken by another client.
+         */
+        private boolean removeLockKey() {
+            RedisLockRegistry.this.metrics.roundTrip(Operation.RELEASE);
+            Boolean released =
+                    RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.releaseLockScript,
+                            Collections.singletonList(this.lockKey), RedisLockRegistry.this.clientId,
+                            RedisLockRegistry.this.unlockChannel, this.path, deleteCommand());
+            return Boolean.TRUE.equals(released);
+        }
 
-        private final String lockKey;
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("Conditions are not supported");
+        }
 
-        private final ReentrantLock localLock = new ReentrantLock();
+        /**
+         * Check the local lease; no network call is made.
+         * @return true if a thread of this registry holds the lock and its lease has not run out.
+         */
+        public boolean isAcquiredInThisProcess() {
+            return this.localLock.isLocked() && System.currentTimeMillis() < this.leaseDeadline;
+        }
 
-        private volatile long lockedAt;
+        @Override
+        public String toString() {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("YYYY-MM-dd@HH:mm:ss.SSS");
+            return "RedisLock [lockKey=" + this.lockKey
+                    + ",lockedAt=" + dateFormat.format(new Date(this.lockedAt))
+                    + ", clientId=" + RedisLockRegistry.this.clientId
+                    + "]";
+        }
 
-        private RedisLock(String path) {
-            this.lockKey = constructLockKey(path);
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + getOuterType().hashCode();
+            result = prime * result + ((this.lockKey == null) ? 0 : this.lockKey.hashCode());
+            result = prime * result + (int) (this.lockedAt ^ (this.lockedAt >>> 32));
+            result = prime * result + RedisLockRegistry.this.clientId.hashCode();
+            return result;
         }
 
-        private String constructLockKey(String path) {
-            return RedisLockRegistry.this.registryKey + ":" + path;
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            RedisLock other = (RedisLock) obj;
+            if (!getOuterType().equals(other.getOuterType())) {
+                return false;
+            }
+            if (!this.lockKey.equals(other.lockKey)) {
+                return false;
+            }
+            return this.lockedAt == other.lockedAt;
         }
 
-        public long getLockedAt() {
-            return this.lockedAt;
+        private RedisLockRegistry getOuterType() {
+            return RedisLockRegistry.this;
+        }
+
+    }
+
+    private final class MultiRedisLock implements Lock {
+
+        private final List<String> paths;
+
+        private final List<String> lockKeys;
+
+        MultiRedisLock(List<String> paths) {
+            this.paths = paths;
+            this.lockKeys = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                this.lockKeys.add(RedisLockRegistry.this.registryKey + ":" + path);
+            }
+        }
+
+        /**
+         * Resolve the registry's current lock for every key; a held lock is never evicted,
+         * so the same instances are resolved again by {@link #unlock()}.
+         */
+        private List<RedisLock> resolve() {
+            List<RedisLock> locks = new ArrayList<>(this.paths.size());
+            for (String path : this.paths) {
+                locks.add(lockFor(path));
+            }
+            return locks;
         }
 
         @Override
         public void lock() {
-            this.localLock.lock();
+            List<RedisLock> locks = resolve();
+            for (RedisLock lock : locks) {
+                lock.localLock.lock();
+            }
             while (true) {
                 try {
-                    while (!obtainLock()) {
-                        Thread.sleep(100); //NOSONAR
+                    int blocked;
+                    while ((blocked = obtainLocks(locks)) > 0) {
+                        locks.get(blocked - 1).awaitRelease(RedisLockRegistry.this.maxWaitBetweenTries);
                     }
                     break;
                 }
@@ -210,35 +1729,37 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
                     /*
                      * This method must be uninterruptible so catch and ignore
                      * interrupts and only break out of the while loop when
-                     * we get the lock.
+                     * we get the locks.
                      */
                 }
                 catch (Exception e) {
-                    this.localLock.unlock();
+                    unlockLocal(locks, locks.size());
                     rethrowAsLockException(e);
                 }
             }
         }
 
-        private void rethrowAsLockException(Exception e) {
-            throw new CannotAcquireLockException("Failed to lock mutex at " + this.lockKey, e);
-        }
-
         @Override
         public void lockInterruptibly() throws InterruptedException {
-            this.localLock.lockInterruptibly();
+            List<RedisLock> locks = resolve();
+            int locked = 0;
             try {
-                while (!obtainLock()) {
-                    Thread.sleep(100); //NOSONAR
+                for (RedisLock lock : locks) {
+                    lock.localLock.lockInterruptibly();
+                    locked++;
+                }
+                int blocked;
+                while ((blocked = obtainLocks(locks)) > 0) {
+                    locks.get(blocked - 1).awaitRelease(RedisLockRegistry.this.maxWaitBetweenTries);
                 }
             }
             catch (InterruptedException ie) {
-                this.localLock.unlock();
+                unlockLocal(locks, locked);
                 Thread.currentThread().interrupt();
                 throw ie;
             }
             catch (Exception e) {
-                this.localLock.unlock();
+                unlockLocal(locks, locked);
                 rethrowAsLockException(e);
             }
         }
@@ -256,82 +1777,139 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
 
         @Override
         public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-            long now = System.currentTimeMillis();
-            if (!this.localLock.tryLock(time, unit)) {
-                return false;
-            }
+            List<RedisLock> locks = resolve();
+            long expire = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(time, unit);
+            int locked = 0;
             try {
-                long expire = now + TimeUnit.MILLISECONDS.convert(time, unit);
-                boolean acquired;
-                while (!(acquired = obtainLock()) && System.currentTimeMillis() < expire) { //NOSONAR
-                    Thread.sleep(100); //NOSONAR
+                for (RedisLock lock : locks) {
+                    if (!lock.localLock.tryLock(Math.max(expire - System.currentTimeMillis(), 0),
+                            TimeUnit.MILLISECONDS)) {
+                        unlockLocal(locks, locked);
+                        return false;
+                    }
+                    locked++;
                 }
-                if (!acquired) {
-                    this.localLock.unlock();
+                int blocked;
+                long remaining;
+                while ((blocked = obtainLocks(locks)) > 0 && (remaining = expire - System.currentTimeMillis()) > 0) { //NOSONAR
+                    locks.get(blocked - 1)
+                            .awaitRelease(Math.min(remaining, RedisLockRegistry.this.maxWaitBetweenTries));
                 }
-                return acquired;
+                if (blocked > 0) {
+                    unlockLocal(locks, locked);
+                }
+                return blocked == 0;
+            }
+            catch (InterruptedException ie) {
+                unlockLocal(locks, locked);
+                throw ie;
             }
             catch (Exception e) {
-                this.localLock.unlock();
+                unlockLocal(locks, locked);
                 rethrowAsLockException(e);
             }
             return false;
         }
 
-        private boolean obtainLock() {
-            Boolean success =
-                    RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.obtainLockScript,
-                            Collections.singletonList(this.lockKey), RedisLockRegistry.this.clientId,
-                            String.valueOf(RedisLockRegistry.this.expireAfter));
-
-            boolean result = Boolean.TRUE.equals(success);
-
-            if (result) {
-                this.lockedAt = System.currentTimeMillis();
+        /**
+         * Run the all-or-nothing obtain script.
+         * @return 0 if all keys are now held, otherwise the 1-based index of a key held by another client.
+         */
+        private int obtainLocks(List<RedisLock> locks) {
+            for (RedisLock lock : locks) {
+                lock.cancelOrAwaitQueuedRelease();
+                lock.releaseSignal.drainPermits();
             }
-            return result;
+            RedisLockRegistry.this.metrics.roundTrip(Operation.OBTAIN_ALL);
+            long start = System.currentTimeMillis();
+            Long blocked = RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.obtainLocksScript,
+                    this.lockKeys, RedisLockRegistry.this.clientId, String.valueOf(RedisLockRegistry.this.expireAfter));
+            if (blocked == null) {
+                throw new IllegalStateException("No result from the obtain script for " + this.lockKeys);
+            }
+            if (blocked == 0) {
+                for (RedisLock lock : locks) {
+                    lock.obtained(start);
+                }
+            }
+            return blocked.intValue();
+        }
+
+        private void rethrowAsLockException(Exception e) {
+            throw new CannotAcquireLockException("Failed to lock mutexes at " + this.lockKeys, e);
         }
 
         @Override
         public void unlock() {
-            if (!this.localLock.isHeldByCurrentThread()) {
-                throw new IllegalStateException("You do not own lock at " + this.lockKey);
-            }
-            if (this.localLock.getHoldCount() > 1) {
-                this.localLock.unlock();
-                return;
+            List<RedisLock> locks = resolve();
+            List<RedisLock> toRelease = new ArrayList<>(locks.size());
+            for (RedisLock lock : locks) {
+                if (!lock.localLock.isHeldByCurrentThread()) {
+                    throw new IllegalStateException("You do not own lock at " + lock.lockKey);
+                }
+                if (lock.localLock.getHoldCount() == 1) {
+                    toRelease.add(lock);
+                }
             }
             try {
-                if (!isAcquiredInThisProcess()) {
-                    throw new IllegalStateException("Lock was released in the store due to expiration. " +
-                            "The integrity of data protected by this lock may have been compromised.");
+                if (toRelease.isEmpty()) {
+                    return;
                 }
-
-                if (Thread.currentThread().isInterrupted()) {
-                    RedisLockRegistry.this.executor.execute(this::removeLockKey);
+                if (RedisLockRegistry.this.asyncRelease || Thread.currentThread().isInterrupted()) {
+                    for (RedisLock lock : toRelease) {
+                        if (!lock.isAcquiredInThisProcess()) {
+                            throwExpired(lock);
+                        }
+                    }
+                    toRelease.forEach(RedisLockRegistry.this::releaseAsync);
                 }
-                else {
-                    removeLockKey();
+                else if (removeLockKeys(toRelease) < toRelease.size()) {
+                    throwExpired(toRelease);
                 }
 
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Released lock; " + this);
+                    logger.debug("Released locks; " + toRelease);
                 }
             }
             catch (Exception e) {
                 ReflectionUtils.rethrowRuntimeException(e);
             }
             finally {
-                this.localLock.unlock();
+                for (RedisLock lock : toRelease) {
+                    lock.released();
+                }
+                unlockLocal(locks, locks.size());
             }
         }
 
-        private void removeLockKey() {
-            if (RedisUtils.isUnlinkAvailable(RedisLockRegistry.this.redisTemplate)) {
-                RedisLockRegistry.this.redisTemplate.unlink(this.lockKey);
+        private void throwExpired(Object locks) {
+            RedisLockRegistry.this.metrics.expiredUnlock();
+            throw new IllegalStateException("Lock was released in the store due to expiration: " + locks +
+                    ". The integrity of data protected by this lock may have been compromised.");
+        }
+
+        private long removeLockKeys(List<RedisLock> toRelease) {
+            List<String> keys = new ArrayList<>(toRelease.size());
+            Object[] args = new Object[toRelease.size() + 3];
+            args[0] = RedisLockRegistry.this.clientId;
+            args[1] = RedisLockRegistry.this.unlockChannel;
+            args[2] = deleteCommand();
+            for (int i = 0; i < toRelease.size(); i++) {
+                keys.add(toRelease.get(i).lockKey);
+                args[i + 3] = toRelease.get(i).path;
             }
-            else {
-                RedisLockRegistry.this.redisTemplate.delete(this.lockKey);
+            RedisLockRegistry.this.metrics.roundTrip(Operation.RELEASE_ALL);
+            Long released = RedisLockRegistry.this.redisTemplate.execute(RedisLockRegistry.this.releaseLocksScript,
+                    keys, args);
+            return released == null ? 0 : released;
+        }
+
+        /**
+         * Unlock the first {@code count} local locks, in reverse order.
+         */
+        private void unlockLocal(List<RedisLock> locks, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                locks.get(i).localLock.unlock();
             }
         }
 
@@ -340,54 +1918,284 @@ public final class RedisLockRegistry implements ExpirableLockRegistry, Disposabl
             throw new UnsupportedOperationException("Conditions are not supported");
         }
 
-        public boolean isAcquiredInThisProcess() {
-            return RedisLockRegistry.this.clientId.equals(
-                    RedisLockRegistry.this.redisTemplate.boundValueOps(this.lockKey).get());
-        }
-
         @Override
         public String toString() {
-            SimpleDateFormat dateFormat = new SimpleDateFormat("YYYY-MM-dd@HH:mm:ss.SSS");
-            return "RedisLock [lockKey=" + this.lockKey
-                    + ",lockedAt=" + dateFormat.format(new Date(this.lockedAt))
+            return "MultiRedisLock [lockKeys=" + this.lockKeys
                     + ", clientId=" + RedisLockRegistry.this.clientId
                     + "]";
         }
 
+    }
+
+    private final class RedisReadWriteLock implements ReadWriteLock {
+
+        private final String path;
+
+        private final String lockKey;
+
+        /**
+         * Outermost holds of this registry's threads registered in the store.
+         */
+        private final AtomicInteger storeHolds = new AtomicInteger();
+
+        private final ReentrantReadWriteLock localLock = new ReentrantReadWriteLock();
+
+        private final Lock readLock = new ModeLock(false);
+
+        private final Lock writeLock = new ModeLock(true);
+
+        /**
+         * Several local readers may wait at once, so releases are signaled to all of them
+         * by bumping a generation.
+         */
+        private final Object releaseMonitor = new Object();
+
+        private long releaseGeneration;
+
+        private volatile long lockedAt;
+
+        private RedisReadWriteLock(String path) {
+            this.path = path;
+            this.lockKey = RedisLockRegistry.this.registryKey + ":" + path + ":rw";
+        }
+
         @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getOuterType().hashCode();
-            result = prime * result + ((this.lockKey == null) ? 0 : this.lockKey.hashCode());
-            result = prime * result + (int) (this.lockedAt ^ (this.lockedAt >>> 32));
-            result = prime * result + RedisLockRegistry.this.clientId.hashCode();
-            return result;
+        public Lock readLock() {
+            return this.readLock;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
+        public Lock writeLock() {
+            return this.writeLock;
+        }
+
+        private boolean isHeldInStore() {
+            return this.storeHolds.get() > 0;
+        }
+
+        private boolean isLocallyUsed() {
+            return this.localLock.isWriteLocked() || this.localLock.getReadLockCount() > 0
+                    || this.localLock.hasQueuedThreads();
+        }
+
+        private long releaseGeneration() {
+            synchronized (this.releaseMonitor) {
+                return this.releaseGeneration;
             }
-            if (obj == null) {
-                return false;
+        }
+
+        private void awaitRelease(long observedGeneration, long timeout) throws InterruptedException {
+            subscribeToUnlocksIfNecessary();
+            synchronized (this.releaseMonitor) {
+                if (this.releaseGeneration == observedGeneration) {
+                    this.releaseMonitor.wait(timeout);
+                }
             }
-            if (getClass() != obj.getClass()) {
-                return false;
+        }
+
+        private void signalRelease() {
+            synchronized (this.releaseMonitor) {
+                this.releaseGeneration++;
+                this.releaseMonitor.notifyAll();
             }
-            RedisLock other = (RedisLock) obj;
-            if (!getOuterType().equals(other.getOuterType())) {
-                return false;
+        }
+
+        @Override
+        public String toString() {
+            return "RedisReadWriteLock [lockKey=" + this.lockKey
+                    + ", clientId=" + RedisLockRegistry.this.clientId
+                    + ", localLock=" + this.localLock
+                    + "]";
+        }
+
+        private final class ModeLock implements Lock {
+
+            private final boolean write;
+
+            private final Lock local;
+
+            ModeLock(boolean write) {
+                this.write = write;
+                this.local = write ? RedisReadWriteLock.this.localLock.writeLock()
+                        : RedisReadWriteLock.this.localLock.readLock();
             }
-            if (!this.lockKey.equals(other.lockKey)) {
+
+            /**
+             * Only the outermost hold of each thread is registered in the store.
+             */
+            private boolean isOutermostHold() {
+                return this.write
+                        ? RedisReadWriteLock.this.localLock.getWriteHoldCount() == 1
+                        : RedisReadWriteLock.this.localLock.getReadHoldCount() == 1;
+            }
+
+            private boolean isHeldByCurrentThread() {
+                return this.write
+                        ? RedisReadWriteLock.this.localLock.isWriteLockedByCurrentThread()
+                        : RedisReadWriteLock.this.localLock.getReadHoldCount() > 0;
+            }
+
+            @Override
+            public void lock() {
+                this.local.lock();
+                if (!isOutermostHold()) {
+                    return;
+                }
+                while (true) {
+                    try {
+                        long generation;
+                        while (!obtainLock(generation = releaseGeneration())) {
+                            awaitRelease(generation, RedisLockRegistry.this.maxWaitBetweenTries);
+                        }
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        /*
+                         * This method must be uninterruptible so catch and ignore
+                         * interrupts and only break out of the while loop when
+                         * we get the lock.
+                         */
+                    }
+                    catch (Exception e) {
+                        this.local.unlock();
+                        rethrowAsLockException(e);
+                    }
+                }
+            }
+
+            @Override
+            public void lockInterruptibly() throws InterruptedException {
+                this.local.lockInterruptibly();
+                if (!isOutermostHold()) {
+                    return;
+                }
+                try {
+                    long generation;
+                    while (!obtainLock(generation = releaseGeneration())) {
+                        awaitRelease(generation, RedisLockRegistry.this.maxWaitBetweenTries);
+                    }
+                }
+                catch (InterruptedException ie) {
+                    this.local.unlock();
+                    Thread.currentThread().interrupt();
+                    throw ie;
+                }
+                catch (Exception e) {
+                    this.local.unlock();
+                    rethrowAsLockException(e);
+                }
+            }
+
+            @Override
+            public boolean tryLock() {
+                try {
+                    return tryLock(0, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            @Override
+            public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+                long now = System.currentTimeMillis();
+                if (!this.local.tryLock(time, unit)) {
+                    return false;
+                }
+                if (!isOutermostHold()) {
+                    return true;
+                }
+                try {
+                    long expire = now + TimeUnit.MILLISECONDS.convert(time, unit);
+                    boolean acquired;
+                    long generation;
+                    long remaining;
+                    while (!(acquired = obtainLock(generation = releaseGeneration())) //NOSONAR
+                            && (remaining = expire - System.currentTimeMillis()) > 0) {
+                        awaitRelease(generation, Math.min(remaining, RedisLockRegistry.this.maxWaitBetweenTries));
+                    }
+                    if (!acquired) {
+                        this.local.unlock();
+                    }
+                    return acquired;
+                }
+                catch (Exception e) {
+                    this.local.unlock();
+                    rethrowAsLockException(e);
+                }
                 return false;
             }
-            return this.lockedAt == other.lockedAt;
-        }
 
-        private RedisLockRegistry getOuterType() {
-            return RedisLockRegistry.this;
+            private boolean obtainLock(long generation) {
+                RedisLockRegistry.this.metrics.roundTrip(Operation.READ_WRITE);
+                Boolean success = RedisLockRegistry.this.redisTemplate.execute(
+                        this.write ? RedisLockRegistry.this.obtainWriteLockScript
+                                : RedisLockRegistry.this.obtainReadLockScript,
+                        Collections.singletonList(RedisReadWriteLock.this.lockKey), RedisLockRegistry.this.clientId,
+                        String.valueOf(RedisLockRegistry.this.expireAfter));
+                boolean result = Boolean.TRUE.equals(success);
+                if (result) {
+                    RedisReadWriteLock.this.lockedAt = System.currentTimeMillis();
+                    RedisReadWriteLock.this.storeHolds.incrementAndGet();
+                }
+                return result;
+            }
+
+            private void rethrowAsLockException(Exception e) {
+                throw new CannotAcquireLockException("Failed to lock " + (this.write ? "write" : "read")
+                        + " mutex at " + RedisReadWriteLock.this.lockKey, e);
+            }
+
+            @Override
+            public void unlock() {
+                if (!isHeldByCurrentThread()) {
+                    throw new IllegalStateException("You do not own " + (this.write ? "write" : "read")
+                            + " lock at " + RedisReadWriteLock.this.lockKey);
+                }
+                if (!isOutermostHold()) {
+                    this.local.unlock();
+                    return;
+                }
+                RedisReadWriteLock.this.storeHolds.decrementAndGet();
+                try {
+                    if (Thread.currentThread().isInterrupted()) {
+                        RedisLockRegistry.this.executor.execute(this::removeHold);
+                    }
+                    else if (!removeHold()) {
+                        RedisLockRegistry.this.metrics.expiredUnlock();
+                        throw new IllegalStateException("Lock was released in the store due to expiration. " +
+                                "The integrity of data protected by this lock may have been compromised.");
+                    }
+                }
+                catch (Exception e) {
+                    ReflectionUtils.rethrowRuntimeException(e);
+                }
+                finally {
+                    this.local.unlock();
+                }
+            }
+
+            private boolean removeHold() {
+                RedisLockRegistry.this.metrics.roundTrip(Operation.READ_WRITE);
+                Boolean released = RedisLockRegistry.this.redisTemplate.execute(
+                        RedisLockRegistry.this.releaseReadWriteLockScript,
+                        Collections.singletonList(RedisReadWriteLock.this.lockKey), RedisLockRegistry.this.clientId,
+                        this.write ? "w" : "r", RedisLockRegistry.this.readWriteUnlockChannel,
+                        RedisReadWriteLock.this.path);
+                return Boolean.TRUE.equals(released);
+            }
+
+            @Override
+            public Condition newCondition() {
+                throw new UnsupportedOperationException("Conditions are not supported");
+            }
+
+            @Override
+            public String toString() {
+                return (this.write ? "WriteLock" : "ReadLock") + " of " + RedisReadWriteLock.this;
+            }
+
         }
 
     }
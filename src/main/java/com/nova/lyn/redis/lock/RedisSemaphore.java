@@ -0,0 +1,344 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+/**
+ * A distributed counting semaphore obtained from
+ * {@link RedisLockRegistry#obtainSemaphore(String, int)}.
+ * <p>
+ * Permits in use are the members of a sorted set under {@code registryKey:key:semaphore},
+ * scored with their expiration time taken from the Redis server clock. Acquiring or
+ * releasing any number of permits is a single script execution, and every acquisition
+ * first removes the permits whose lease ({@code expireAfter} of the registry) has lapsed,
+ * so permits of crashed holders are reclaimed automatically. While the registry's lease
+ * renewal watchdog runs, the permits this instance holds are renewed with its locks.
+ * <p>
+ * As with {@link java.util.concurrent.Semaphore}, permits are not bound to threads: any
+ * thread may release permits this instance acquired. Releasing permits which have already
+ * lapsed in the store throws an {@link IllegalStateException}, like unlocking an expired
+ * {@link RedisLockRegistry} lock.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+public final class RedisSemaphore {
+
+    private static final String TIME =
+            "local time = redis.call('TIME')\n" +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n";
+
+    private static final String ACQUIRE_PERMITS_SCRIPT =
+            "redis.replicate_commands()\n" +
+                    TIME +
+                    "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now)\n" +
+                    "if redis.call('ZCARD', KEYS[1]) + #ARGV - 2 > tonumber(ARGV[1]) then\n" +
+                    "  return false\n" +
+                    "end\n" +
+                    "for i = 3, #ARGV do\n" +
+                    "  redis.call('ZADD', KEYS[1], now + tonumber(ARGV[2]), ARGV[i])\n" +
+                    "end\n" +
+                    "if redis.call('PTTL', KEYS[1]) < tonumber(ARGV[2]) then\n" +
+                    "  redis.call('PEXPIRE', KEYS[1], ARGV[2])\n" +
+                    "end\n" +
+                    "return true";
+
+    private static final String RELEASE_PERMITS_SCRIPT =
+            "local removed = 0\n" +
+                    "for i = 3, #ARGV do\n" +
+                    "  removed = removed + redis.call('ZREM', KEYS[1], ARGV[i])\n" +
+                    "end\n" +
+                    "redis.call('PUBLISH', ARGV[1], ARGV[2])\n" +
+                    "return removed";
+
+    private static final String RENEW_PERMITS_SCRIPT =
+            "redis.replicate_commands()\n" +
+                    TIME +
+                    "local renewed = 0\n" +
+                    "for i = 2, #ARGV do\n" +
+                    "  local expiresAt = redis.call('ZSCORE', KEYS[1], ARGV[i])\n" +
+                    "  if expiresAt and tonumber(expiresAt) > now then\n" +
+                    "    redis.call('ZADD', KEYS[1], now + tonumber(ARGV[1]), ARGV[i])\n" +
+                    "    renewed = renewed + 1\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "if renewed > 0 and redis.call('PTTL', KEYS[1]) < tonumber(ARGV[1]) then\n" +
+                    "  redis.call('PEXPIRE', KEYS[1], ARGV[1])\n" +
+                    "end\n" +
+                    "return renewed";
+
+    private static final String AVAILABLE_PERMITS_SCRIPT =
+            TIME +
+                    "return tonumber(ARGV[1]) - redis.call('ZCOUNT', KEYS[1], '(' .. now, '+inf')";
+
+    private static final RedisScript<Boolean> acquirePermitsScript =
+            new DefaultRedisScript<>(ACQUIRE_PERMITS_SCRIPT, Boolean.class);
+
+    private static final RedisScript<Long> releasePermitsScript =
+            new DefaultRedisScript<>(RELEASE_PERMITS_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> renewPermitsScript =
+            new DefaultRedisScript<>(RENEW_PERMITS_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> availablePermitsScript =
+            new DefaultRedisScript<>(AVAILABLE_PERMITS_SCRIPT, Long.class);
+
+    private final RedisLockRegistry registry;
+
+    private final String path;
+
+    private final String semaphoreKey;
+
+    private final int permits;
+
+    private final AtomicLong permitSequence = new AtomicLong();
+
+    /**
+     * Tokens of the permits this instance currently holds in the store.
+     */
+    private final Deque<String> heldPermits = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Several threads may wait at once, so releases are signaled to all of them by
+     * bumping a generation.
+     */
+    private final Object releaseMonitor = new Object();
+
+    private long releaseGeneration;
+
+    RedisSemaphore(RedisLockRegistry registry, String path, int permits) {
+        this.registry = registry;
+        this.path = path;
+        this.semaphoreKey = registry.getRegistryKey() + ":" + path + ":semaphore";
+        this.permits = permits;
+    }
+
+    /**
+     * @return the total number of permits.
+     */
+    public int getPermits() {
+        return this.permits;
+    }
+
+    /**
+     * @return the number of permits currently not held by anyone, according to the store.
+     */
+    public int availablePermits() {
+        Long available = this.registry.getRedisTemplate().execute(availablePermitsScript,
+                Collections.singletonList(this.semaphoreKey), String.valueOf(this.permits));
+        return available == null ? this.permits : available.intValue();
+    }
+
+    /**
+     * Acquire one permit, waiting as long as necessary.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Acquire the permits, all at once, waiting as long as necessary.
+     * @param permits the number of permits.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        checkPermits(permits);
+        long generation;
+        while (!obtainPermits(permits, generation = releaseGeneration())) {
+            awaitRelease(generation, this.registry.getMaxWaitBetweenTries());
+        }
+    }
+
+    /**
+     * Make a single attempt to acquire one permit.
+     * @return true if the permit was acquired.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Make a single attempt to acquire the permits, all at once.
+     * @param permits the number of permits.
+     * @return true if the permits were acquired.
+     */
+    public boolean tryAcquire(int permits) {
+        checkPermits(permits);
+        return obtainPermits(permits, 0);
+    }
+
+    /**
+     * Acquire the permits, all at once, waiting up to the timeout.
+     * @param permits the number of permits.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the permits were acquired.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        checkPermits(permits);
+        long expire = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(timeout, unit);
+        boolean acquired;
+        long generation;
+        long remaining;
+        while (!(acquired = obtainPermits(permits, generation = releaseGeneration())) //NOSONAR
+                && (remaining = expire - System.currentTimeMillis()) > 0) {
+            awaitRelease(generation, Math.min(remaining, this.registry.getMaxWaitBetweenTries()));
+        }
+        return acquired;
+    }
+
+    /**
+     * Release one permit.
+     */
+    public void release() {
+        release(1);
+    }
+
+    /**
+     * Release permits acquired by this instance.
+     * @param permits the number of permits.
+     * @throws IllegalStateException if this instance does not hold that many permits, or
+     * if some of them had already lapsed in the store.
+     */
+    public void release(int permits) {
+        checkPermits(permits);
+        List<String> tokens = new ArrayList<>(permits);
+        String token;
+        while (tokens.size() < permits && (token = this.heldPermits.pollLast()) != null) {
+            tokens.add(token);
+        }
+        if (tokens.size() < permits) {
+            tokens.forEach(this.heldPermits::addLast);
+            throw new IllegalStateException("You do not hold " + permits + " permits of " + this.semaphoreKey);
+        }
+        Object[] args = new Object[permits + 2];
+        args[0] = this.registry.getSemaphoreUnlockChannel();
+        args[1] = this.path;
+        for (int i = 0; i < permits; i++) {
+            args[i + 2] = tokens.get(i);
+        }
+        this.registry.getMetrics().roundTrip(LockRegistryMetrics.Operation.SEMAPHORE);
+        Long released = this.registry.getRedisTemplate().execute(releasePermitsScript,
+                Collections.singletonList(this.semaphoreKey), args);
+        if (released == null || released < permits) {
+            this.registry.getMetrics().expiredUnlock();
+            throw new IllegalStateException("Permits were released in the store due to expiration. " +
+                    "The integrity of data protected by this semaphore may have been compromised.");
+        }
+    }
+
+    /**
+     * Extend the lease of the permits held by this instance to {@code expireAfter}.
+     * @return false if some of them, still held locally, had already lapsed in the store.
+     */
+    boolean renewPermits() {
+        List<String> tokens = new ArrayList<>(this.heldPermits);
+        if (tokens.isEmpty()) {
+            return true;
+        }
+        Object[] args = new Object[tokens.size() + 1];
+        args[0] = String.valueOf(this.registry.getExpireAfter());
+        for (int i = 0; i < tokens.size(); i++) {
+            args[i + 1] = tokens.get(i);
+        }
+        this.registry.getMetrics().roundTrip(LockRegistryMetrics.Operation.RENEW);
+        Long renewed = this.registry.getRedisTemplate().execute(renewPermitsScript,
+                Collections.singletonList(this.semaphoreKey), args);
+        if (renewed != null && renewed == tokens.size()) {
+            return true;
+        }
+        // permits released concurrently are gone from the store, but no longer held either
+        tokens.retainAll(this.heldPermits);
+        return renewed != null && renewed >= tokens.size();
+    }
+
+    private void checkPermits(int permits) {
+        Assert.isTrue(permits > 0 && permits <= this.permits,
+                () -> "'permits' must be between 1 and " + this.permits);
+    }
+
+    private boolean obtainPermits(int permits, long generation) {
+        Object[] args = new Object[permits + 2];
+        args[0] = String.valueOf(this.permits);
+        args[1] = String.valueOf(this.registry.getExpireAfter());
+        for (int i = 0; i < permits; i++) {
+            args[i + 2] = this.registry.getClientId() + ":" + this.permitSequence.incrementAndGet();
+        }
+        Boolean acquired;
+        try {
+            this.registry.getMetrics().roundTrip(LockRegistryMetrics.Operation.SEMAPHORE);
+            acquired = this.registry.getRedisTemplate().execute(acquirePermitsScript,
+                    Collections.singletonList(this.semaphoreKey), args);
+        }
+        catch (Exception e) {
+            throw new CannotAcquireLockException("Failed to acquire " + permits + " permits at "
+                    + this.semaphoreKey, e);
+        }
+        if (Boolean.TRUE.equals(acquired)) {
+            for (int i = 0; i < permits; i++) {
+                this.heldPermits.addLast((String) args[i + 2]);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private long releaseGeneration() {
+        synchronized (this.releaseMonitor) {
+            return this.releaseGeneration;
+        }
+    }
+
+    private void awaitRelease(long observedGeneration, long timeout) throws InterruptedException {
+        this.registry.subscribeToUnlocksIfNecessary();
+        synchronized (this.releaseMonitor) {
+            if (this.releaseGeneration == observedGeneration) {
+                this.releaseMonitor.wait(timeout);
+            }
+        }
+    }
+
+    void signalRelease() {
+        synchronized (this.releaseMonitor) {
+            this.releaseGeneration++;
+            this.releaseMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RedisSemaphore [semaphoreKey=" + this.semaphoreKey
+                + ", permits=" + this.permits
+                + ", held=" + this.heldPermits.size()
+                + ", clientId=" + this.registry.getClientId()
+                + "]";
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import reactor.core.publisher.Mono;
+
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+
+/**
+ * The commands a Redis server supports, probed once with {@code INFO server} so that
+ * callers can pick the cheapest command without checking on every call. Support is
+ * derived from the server version, except for the script cache, which proxies and
+ * managed services may disable and which is therefore tried with {@code SCRIPT EXISTS}.
+ * <p>
+ * Instances are immutable; {@link RedisUtils#capabilities(RedisOperations)} caches them
+ * per {@link RedisOperations}. {@link #probe(ReactiveRedisOperations)} probes the same
+ * way without blocking; its callers cache the result themselves.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+public final class RedisServerCapabilities {
+
+    private static final Log logger = LogFactory.getLog(RedisServerCapabilities.class);
+
+    private static final String SECTION = "server";
+
+    private static final String VERSION_PROPERTY = "redis_version";
+
+    private final String version;
+
+    private final int major;
+
+    private final int minor;
+
+    private final boolean scriptCacheAvailable;
+
+    private RedisServerCapabilities(String version, boolean scriptCacheAvailable) {
+        this.version = version;
+        String[] parts = version.split("\\.");
+        this.major = Integer.parseInt(parts[0]);
+        this.minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        this.scriptCacheAvailable = scriptCacheAvailable;
+    }
+
+    /**
+     * Probe the server behind the {@link RedisOperations}.
+     * @param redisOperations the {@link RedisOperations} to perform {@code INFO} command.
+     * @return the capabilities.
+     * @throws IllegalStateException when {@code INFO} returns null from the Redis.
+     */
+    public static RedisServerCapabilities probe(RedisOperations<?, ?> redisOperations) {
+        Properties info = redisOperations.execute(
+                (RedisCallback<Properties>) connection -> connection.serverCommands().info(SECTION));
+        if (info == null) {
+            throw new IllegalStateException("The INFO command cannot be used in pipeline/transaction.");
+        }
+        RedisServerCapabilities capabilities = new RedisServerCapabilities(info.getProperty(VERSION_PROPERTY),
+                isScriptCacheAvailable(redisOperations));
+        if (logger.isDebugEnabled()) {
+            logger.debug("Probed " + capabilities);
+        }
+        return capabilities;
+    }
+
+    /**
+     * Probe the server behind the {@link ReactiveRedisOperations} without blocking.
+     * @param redisOperations the {@link ReactiveRedisOperations} to perform {@code INFO} command.
+     * @return a {@link Mono} of the capabilities, signaling an {@link IllegalStateException}
+     * when {@code INFO} returns no reply.
+     */
+    public static Mono<RedisServerCapabilities> probe(ReactiveRedisOperations<?, ?> redisOperations) {
+        Mono<Properties> info = redisOperations.execute(connection -> connection.serverCommands().info(SECTION))
+                .next()
+                .switchIfEmpty(Mono.error(new IllegalStateException("The INFO command returned no reply.")));
+        Mono<Boolean> scriptCache = redisOperations.execute(connection ->
+                connection.scriptingCommands().scriptExists("0000000000000000000000000000000000000000"))
+                .next()
+                .map(exists -> true)
+                .defaultIfEmpty(true)
+                .onErrorResume(e -> {
+                    logger.info("SCRIPT commands are not available, scripts are sent in full on every execution: "
+                            + e.getMessage());
+                    return Mono.just(false);
+                });
+        return info.zipWith(scriptCache, (properties, scriptCacheAvailable) ->
+                new RedisServerCapabilities(properties.getProperty(VERSION_PROPERTY), scriptCacheAvailable))
+                .doOnNext(capabilities -> {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Probed " + capabilities);
+                    }
+                });
+    }
+
+    private static boolean isScriptCacheAvailable(RedisOperations<?, ?> redisOperations) {
+        try {
+            redisOperations.execute((RedisCallback<Object>) connection ->
+                    connection.scriptingCommands().scriptExists("0000000000000000000000000000000000000000"));
+            return true;
+        }
+        catch (Exception e) {
+            logger.info("SCRIPT commands are not available, scripts are sent in full on every execution: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isAtLeast(int major, int minor) {
+        return this.major > major || (this.major == major && this.minor >= minor);
+    }
+
+    /**
+     * @return the server version.
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return true if {@code UNLINK} (Redis 4.0) is available.
+     */
+    public boolean isUnlinkAvailable() {
+        return isAtLeast(4, 0);
+    }
+
+    /**
+     * @return true if {@code CLIENT TRACKING} (Redis 6.0) is available.
+     */
+    public boolean isClientTrackingAvailable() {
+        return isAtLeast(6, 0);
+    }
+
+    /**
+     * @return true if {@code GETDEL} (Redis 6.2) is available.
+     */
+    public boolean isGetDelAvailable() {
+        return isAtLeast(6, 2);
+    }
+
+    /**
+     * @return true if the {@code GET} option of {@code SET} (Redis 6.2) is available.
+     */
+    public boolean isSetGetAvailable() {
+        return isAtLeast(6, 2);
+    }
+
+    /**
+     * @return true if the {@code PXAT} option of {@code SET} (Redis 6.2) is available.
+     */
+    public boolean isPxAtAvailable() {
+        return isAtLeast(6, 2);
+    }
+
+    /**
+     * @return true if scripts can be run by their SHA1 from the server's script cache.
+     */
+    public boolean isScriptCacheAvailable() {
+        return this.scriptCacheAvailable;
+    }
+
+    /**
+     * @return the command deleting a key the cheapest way: {@code UNLINK} if available, else {@code DEL}.
+     */
+    public String getDeleteCommand() {
+        return isUnlinkAvailable() ? "UNLINK" : "DEL";
+    }
+
+    @Override
+    public String toString() {
+        return "RedisServerCapabilities [version=" + this.version
+                + ", unlink=" + isUnlinkAvailable()
+                + ", clientTracking=" + isClientTrackingAvailable()
+                + ", getDel=" + isGetDelAvailable()
+                + ", setGet=" + isSetGetAvailable()
+                + ", pxAt=" + isPxAtAvailable()
+                + ", scriptCache=" + this.scriptCacheAvailable
+                + "]";
+    }
+
+}
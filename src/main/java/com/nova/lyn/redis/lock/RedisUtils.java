@@ -14,12 +14,12 @@
  * limitations under the License.
  */
 package com.nova.lyn.redis.lock;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Properties;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
 
 /**
@@ -32,20 +32,62 @@ import org.springframework.data.redis.core.RedisOperations;
  */
 public final class RedisUtils {
 
-    private static final String SECTION = "server";
+    private static final int MAX_ENTRIES = 100;
 
-    private static final String VERSION_PROPERTY = "redis_version";
-
-    @SuppressWarnings("serial")
-    private static final Map<RedisOperations<?, ?>, Boolean> unlinkAvailable =
-            new LinkedHashMap<RedisOperations<?, ?>, Boolean>() {
+    /**
+     * Probes by {@link RedisOperations}, bounded, since operations may be created on the fly.
+     * The thread which registers a probe runs it outside of the map, so a slow server only
+     * delays the callers waiting for its own capabilities.
+     */
+    private static final ConcurrentMap<RedisOperations<?, ?>, CompletableFuture<RedisServerCapabilities>> capabilities =
+            new ConcurrentHashMap<>();
 
-                @Override
-                protected boolean removeEldestEntry(Entry<RedisOperations<?, ?>, Boolean> eldest) {
-                    return size() > 100;
+    /**
+     * Return the capabilities of the server behind the {@link RedisOperations}, probing
+     * it on first use only; concurrent first calls probe once. A failed probe is not
+     * cached, the next call tries again.
+     * @param redisOperations the {@link RedisOperations} to perform {@code INFO} command.
+     * @return the capabilities.
+     * @throws IllegalStateException when {@code INFO} returns null from the Redis.
+     */
+    public static RedisServerCapabilities capabilities(RedisOperations<?, ?> redisOperations) {
+        CompletableFuture<RedisServerCapabilities> probe = capabilities.get(redisOperations);
+        if (probe == null) {
+            CompletableFuture<RedisServerCapabilities> newProbe = new CompletableFuture<>();
+            probe = capabilities.putIfAbsent(redisOperations, newProbe);
+            if (probe == null) {
+                evictIfNecessary(redisOperations);
+                try {
+                    RedisServerCapabilities probed = RedisServerCapabilities.probe(redisOperations);
+                    newProbe.complete(probed);
+                    return probed;
+                }
+                catch (RuntimeException e) {
+                    capabilities.remove(redisOperations, newProbe);
+                    newProbe.completeExceptionally(e);
+                    throw e;
                 }
+            }
+        }
+        try {
+            return probe.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
 
-            };
+    private static void evictIfNecessary(RedisOperations<?, ?> keep) {
+        Iterator<RedisOperations<?, ?>> iterator = capabilities.keySet().iterator();
+        while (capabilities.size() > MAX_ENTRIES && iterator.hasNext()) {
+            if (iterator.next() != keep) {
+                iterator.remove();
+            }
+        }
+    }
 
     /**
      * Perform an {@code INFO} command on the provided {@link RedisOperations} to check
@@ -55,17 +97,7 @@ public final class RedisUtils {
      * @throws IllegalStateException when {@code INFO} returns null from the Redis.
      */
     public static boolean isUnlinkAvailable(RedisOperations<?, ?> redisOperations) {
-        return unlinkAvailable.computeIfAbsent(redisOperations, key -> {
-            Properties info = redisOperations.execute(
-                    (RedisCallback<Properties>) connection -> connection.serverCommands().info(SECTION));
-            if (info != null) {
-                int majorVersion = Integer.parseInt(info.getProperty(VERSION_PROPERTY).split("\\.")[0]);
-                return majorVersion >= 4;
-            }
-            else {
-                throw new IllegalStateException("The INFO command cannot be used in pipeline/transaction.");
-            }
-        });
+        return capabilities(redisOperations).isUnlinkAvailable();
     }
 
     private RedisUtils() {
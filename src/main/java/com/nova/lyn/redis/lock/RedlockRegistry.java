@@ -0,0 +1,596 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nova.lyn.redis.lock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.integration.support.locks.ExpirableLockRegistry;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Implementation of {@link ExpirableLockRegistry} providing a quorum lock over N
+ * independent Redis nodes (the Redlock algorithm). Each node stores the lock exactly like
+ * {@link RedisLockRegistry} does, under {@code registryKey:lockKey}, using the same
+ * obtain and release scripts.
+ * <p>
+ * An acquisition sends the obtain script to all nodes in parallel and succeeds as soon as
+ * a majority has granted it, provided the time spent leaves a positive validity: the
+ * lease minus the elapsed time and an allowance for clock drift between the nodes. Its
+ * latency is therefore that of the majority-th fastest node; a node that has not answered
+ * within {@link #setNodeTimeout(long)} of its execution starting counts as a refusal. Every attempt stores a fresh
+ * owner token, and a failed attempt releases that token on every node that granted it
+ * before retrying after a randomized delay, so a late undo can never delete a later
+ * acquisition of the same lock. Unlocking releases the key on
+ * all nodes in parallel; an {@link IllegalStateException} is thrown if the validity had
+ * run out or fewer than a majority of nodes still held the lock.
+ * <p>
+ * Locks are reentrant; only the outermost acquisition talks to the nodes.
+ * {@link Condition}s are not supported.
+ *
+ * @author Lyn
+ *
+ * @since 1.0
+ */
+public final class RedlockRegistry implements ExpirableLockRegistry, InitializingBean, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(RedlockRegistry.class);
+
+    private static final long DEFAULT_EXPIRE_AFTER = 60000L;
+
+    private static final long DEFAULT_RETRY_DELAY = 50L;
+
+    private static final long DEFAULT_NODE_TIMEOUT = 50L;
+
+    private static final long WARM_UP_TIMEOUT = 10000L;
+
+    /**
+     * Clock drift allowance as a fraction of the lease, as suggested by the Redlock
+     * description, plus {@link #MIN_CLOCK_DRIFT} milliseconds.
+     */
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;
+
+    private static final long MIN_CLOCK_DRIFT = 2L;
+
+    private final Map<String, RedlockLock> locks = new ConcurrentHashMap<>();
+
+    private final String clientId = UUID.randomUUID().toString();
+
+    private final AtomicLong attemptSequence = new AtomicLong();
+
+    private final String registryKey;
+
+    private final List<StringRedisTemplate> redisTemplates;
+
+    private final RedisScript<Boolean> obtainLockScript;
+
+    private final RedisScript<Boolean> releaseLockScript;
+
+    private final long expireAfter;
+
+    private final int quorum;
+
+    private final String unlockChannel;
+
+    private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private volatile long nodeTimeout = DEFAULT_NODE_TIMEOUT;
+
+    /**
+     * Runs the per-node script executions in parallel.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Times out the per-node script executions, from when each starts running.
+     */
+    private final ScheduledExecutorService timeouts =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("redlock-timeout-"));
+
+    private boolean executorExplicitlySet;
+
+    /**
+     * Constructs a lock registry with the default (60 second) lock expiration.
+     * @param connectionFactories The connection factories, one per independent node.
+     * @param registryKey The key prefix for locks.
+     */
+    public RedlockRegistry(List<RedisConnectionFactory> connectionFactories, String registryKey) {
+        this(connectionFactories, registryKey, DEFAULT_EXPIRE_AFTER);
+    }
+
+    /**
+     * Constructs a lock registry with the supplied lock expiration.
+     * @param connectionFactories The connection factories, one per independent node.
+     * @param registryKey The key prefix for locks.
+     * @param expireAfter The expiration in milliseconds.
+     */
+    public RedlockRegistry(List<RedisConnectionFactory> connectionFactories, String registryKey,
+            long expireAfter) {
+
+        Assert.notEmpty(connectionFactories, "'connectionFactories' cannot be empty");
+        Assert.noNullElements(connectionFactories.toArray(), "'connectionFactories' cannot contain null");
+        Assert.notNull(registryKey, "'registryKey' cannot be null");
+        this.redisTemplates = new ArrayList<>(connectionFactories.size());
+        for (RedisConnectionFactory connectionFactory : connectionFactories) {
+            this.redisTemplates.add(new StringRedisTemplate(connectionFactory));
+        }
+        this.obtainLockScript = new DefaultRedisScript<>(RedisLockRegistry.OBTAIN_LOCK_SCRIPT, Boolean.class);
+        this.releaseLockScript = new DefaultRedisScript<>(RedisLockRegistry.RELEASE_LOCK_SCRIPT, Boolean.class);
+        this.registryKey = registryKey;
+        this.expireAfter = expireAfter;
+        this.quorum = connectionFactories.size() / 2 + 1;
+        this.unlockChannel = registryKey + ":unlocks";
+        this.executor = Executors.newFixedThreadPool(connectionFactories.size() * 4,
+                new CustomizableThreadFactory("redlock-registry-"));
+    }
+
+    /**
+     * Set the {@link ExecutorService} running the script executions against the nodes;
+     * by default a fixed pool of four threads per node.
+     * @param executor the executor service.
+     */
+    public void setExecutor(ExecutorService executor) {
+        Assert.notNull(executor, "'executor' cannot be null");
+        if (!this.executorExplicitlySet) {
+            this.executor.shutdown();
+        }
+        this.executor = executor;
+        this.executorExplicitlySet = true;
+    }
+
+    /**
+     * Set the base delay before retrying a failed acquisition; a random delay of up to
+     * the same amount is added so competing clients do not retry in lockstep.
+     * Default 50 milliseconds.
+     * @param retryDelay the delay in milliseconds.
+     */
+    public void setRetryDelay(long retryDelay) {
+        Assert.isTrue(retryDelay > 0, "'retryDelay' must be greater than 0");
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Set how long an acquisition or a release waits for a node to answer, from when the
+     * script execution for that node starts running on the executor, so time spent queued
+     * behind other executions does not count; it should be small compared with the lease
+     * so a slow or unreachable node does not eat into the validity. A node that has not
+     * answered in time counts as a refusal. Connections and scripts are set up in
+     * {@link #afterPropertiesSet()}, so the timeout only has to cover the script itself.
+     * Default 50 milliseconds.
+     * @param nodeTimeout the timeout in milliseconds.
+     */
+    public void setNodeTimeout(long nodeTimeout) {
+        Assert.isTrue(nodeTimeout > 0, "'nodeTimeout' must be greater than 0");
+        this.nodeTimeout = nodeTimeout;
+    }
+
+    /**
+     * Connect to every node, probe its capabilities and load the scripts into its script
+     * cache, in parallel, so that the first acquisition does not spend its node timeout
+     * on connecting or on the fallback from {@code EVALSHA} to {@code EVAL}. A node that
+     * cannot be warmed up is logged and set up on first use instead.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        List<CompletableFuture<Void>> warmUps = new ArrayList<>(this.redisTemplates.size());
+        for (StringRedisTemplate template : this.redisTemplates) {
+            warmUps.add(CompletableFuture.runAsync(() -> warmUp(template), this.executor));
+        }
+        long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT;
+        for (int i = 0; i < warmUps.size(); i++) {
+            try {
+                warmUps.get(i).get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException | TimeoutException e) {
+                logger.warn("Failed to warm up node " + i + "; its first script executions may time out", e);
+            }
+        }
+    }
+
+    private void warmUp(StringRedisTemplate template) {
+        RedisUtils.capabilities(template);
+        template.execute((RedisCallback<Object>) connection -> {
+            connection.scriptingCommands().scriptLoad(
+                    this.obtainLockScript.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            connection.scriptingCommands().scriptLoad(
+                    this.releaseLockScript.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    @Override
+    public Lock obtain(Object lockKey) {
+        Assert.isInstanceOf(String.class, lockKey);
+        String path = (String) lockKey;
+        return this.locks.computeIfAbsent(path, RedlockLock::new);
+    }
+
+    @Override
+    public void expireUnusedOlderThan(long age) {
+        Iterator<Map.Entry<String, RedlockLock>> iterator = this.locks.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (iterator.hasNext()) {
+            RedlockLock lock = iterator.next().getValue();
+            if (now - lock.lockedAt > age && !lock.localLock.isLocked()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (!this.executorExplicitlySet) {
+            this.executor.shutdown();
+        }
+        this.timeouts.shutdown();
+    }
+
+    private List<CompletableFuture<Boolean>> executeOnAllNodes(RedisScript<Boolean> script, String lockKey,
+            Object... args) {
+
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(this.redisTemplates.size());
+        for (StringRedisTemplate template : this.redisTemplates) {
+            results.add(executeOnNode(template, script, lockKey, args));
+        }
+        return results;
+    }
+
+    private CompletableFuture<Boolean> executeOnNode(StringRedisTemplate template, RedisScript<Boolean> script,
+            String lockKey, Object... args) {
+
+        return onNode(lockKey, () -> Boolean.TRUE.equals(
+                template.execute(script, Collections.singletonList(lockKey), args)));
+    }
+
+    /**
+     * Run the release script on the node with the node's cheapest delete command; the
+     * capabilities are resolved on the executor, so a node that cannot be probed only
+     * fails its own release.
+     */
+    private CompletableFuture<Boolean> releaseOnNode(StringRedisTemplate template, String lockKey, String token,
+            String path) {
+
+        return onNode(lockKey, () -> Boolean.TRUE.equals(
+                template.execute(this.releaseLockScript, Collections.singletonList(lockKey), token,
+                        this.unlockChannel, path, RedisUtils.capabilities(template).getDeleteCommand())));
+    }
+
+    /**
+     * Run the call on the executor; the result is false if the call fails, or has not
+     * answered within the node timeout after it started running.
+     */
+    private CompletableFuture<Boolean> onNode(String lockKey, Supplier<Boolean> call) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> {
+                ScheduledFuture<?> timeout = this.timeouts.schedule(() -> result.complete(false),
+                        this.nodeTimeout, TimeUnit.MILLISECONDS);
+                try {
+                    result.complete(call.get());
+                }
+                catch (Exception e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Script failed on a node for " + lockKey, e);
+                    }
+                    result.complete(false);
+                }
+                finally {
+                    timeout.cancel(false);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            result.complete(false);
+        }
+        return result;
+    }
+
+    private final class RedlockLock implements Lock {
+
+        private final String path;
+
+        private final String lockKey;
+
+        private final ReentrantLock localLock = new ReentrantLock();
+
+        private volatile long lockedAt;
+
+        /**
+         * The end of the validity of the current acquisition.
+         */
+        private volatile long validUntil;
+
+        /**
+         * The owner token stored on the nodes by the current acquisition.
+         */
+        private volatile String token;
+
+        private RedlockLock(String path) {
+            this.path = path;
+            this.lockKey = RedlockRegistry.this.registryKey + ":" + path;
+        }
+
+        @Override
+        public void lock() {
+            this.localLock.lock();
+            if (this.localLock.getHoldCount() > 1) {
+                return;
+            }
+            while (true) {
+                try {
+                    while (!obtainLock()) {
+                        backOff();
+                    }
+                    break;
+                }
+                catch (InterruptedException e) {
+                    /*
+                     * This method must be uninterruptible so catch and ignore
+                     * interrupts and only break out of the while loop when
+                     * we get the lock.
+                     */
+                }
+                catch (Exception e) {
+                    this.localLock.unlock();
+                    rethrowAsLockException(e);
+                }
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            this.localLock.lockInterruptibly();
+            if (this.localLock.getHoldCount() > 1) {
+                return;
+            }
+            try {
+                while (!obtainLock()) {
+                    backOff();
+                }
+            }
+            catch (InterruptedException ie) {
+                this.localLock.unlock();
+                Thread.currentThread().interrupt();
+                throw ie;
+            }
+            catch (Exception e) {
+                this.localLock.unlock();
+                rethrowAsLockException(e);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            try {
+                return tryLock(0, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long now = System.currentTimeMillis();
+            if (!this.localLock.tryLock(time, unit)) {
+                return false;
+            }
+            if (this.localLock.getHoldCount() > 1) {
+                return true;
+            }
+            try {
+                long expire = now + TimeUnit.MILLISECONDS.convert(time, unit);
+                boolean acquired;
+                while (!(acquired = obtainLock()) && System.currentTimeMillis() < expire) { //NOSONAR
+                    backOff();
+                }
+                if (!acquired) {
+                    this.localLock.unlock();
+                }
+                return acquired;
+            }
+            catch (Exception e) {
+                this.localLock.unlock();
+                rethrowAsLockException(e);
+            }
+            return false;
+        }
+
+        private void backOff() throws InterruptedException {
+            long delay = RedlockRegistry.this.retryDelay;
+            Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay)); //NOSONAR
+        }
+
+        private void rethrowAsLockException(Exception e) {
+            throw new CannotAcquireLockException("Failed to lock mutex at " + this.lockKey, e);
+        }
+
+        /**
+         * Send the obtain script with a fresh token to all nodes and wait for a majority of
+         * grants or a majority of refusals, each node answering or timing out within the
+         * node timeout after its execution started; the wait never outlasts the validity.
+         */
+        private boolean obtainLock() throws InterruptedException {
+            int nodes = RedlockRegistry.this.redisTemplates.size();
+            int quorum = RedlockRegistry.this.quorum;
+            String token = RedlockRegistry.this.clientId + ":" + RedlockRegistry.this.attemptSequence.incrementAndGet();
+            long start = System.currentTimeMillis();
+            long drift = (long) (RedlockRegistry.this.expireAfter * CLOCK_DRIFT_FACTOR) + MIN_CLOCK_DRIFT;
+            long validUntil = start + RedlockRegistry.this.expireAfter - drift;
+            List<CompletableFuture<Boolean>> results = executeOnAllNodes(RedlockRegistry.this.obtainLockScript,
+                    this.lockKey, token, String.valueOf(RedlockRegistry.this.expireAfter));
+            AtomicInteger granted = new AtomicInteger();
+            AtomicInteger refused = new AtomicInteger();
+            CompletableFuture<Boolean> decision = new CompletableFuture<>();
+            for (CompletableFuture<Boolean> result : results) {
+                result.thenAccept(success -> {
+                    if (success ? granted.incrementAndGet() >= quorum
+                            : refused.incrementAndGet() > nodes - quorum) {
+                        decision.complete(success);
+                    }
+                });
+            }
+            boolean majority;
+            try {
+                majority = decision.get(Math.max(validUntil - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException | TimeoutException e) {
+                majority = false;
+            }
+            catch (InterruptedException e) {
+                undoGrants(results, token);
+                throw e;
+            }
+            if (majority && System.currentTimeMillis() < validUntil) {
+                this.lockedAt = System.currentTimeMillis();
+                this.validUntil = validUntil;
+                this.token = token;
+                return true;
+            }
+            undoGrants(results, token);
+            return false;
+        }
+
+        /**
+         * Release the attempt's token on each node as soon as that node has granted it, so
+         * grants arriving after the decision are undone as well; the token is unique to
+         * the attempt, so this never touches another acquisition.
+         */
+        private void undoGrants(List<CompletableFuture<Boolean>> results, String token) {
+            for (int i = 0; i < results.size(); i++) {
+                StringRedisTemplate template = RedlockRegistry.this.redisTemplates.get(i);
+                results.get(i).thenAccept(granted -> {
+                    if (granted) {
+                        releaseOnNode(template, this.lockKey, token, this.path);
+                    }
+                });
+            }
+        }
+
+        private List<CompletableFuture<Boolean>> releaseOnAllNodes(String token) {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>(RedlockRegistry.this.redisTemplates.size());
+            for (StringRedisTemplate template : RedlockRegistry.this.redisTemplates) {
+                results.add(releaseOnNode(template, this.lockKey, token, this.path));
+            }
+            return results;
+        }
+
+        @Override
+        public void unlock() {
+            if (!this.localLock.isHeldByCurrentThread()) {
+                throw new IllegalStateException("You do not own lock at " + this.lockKey);
+            }
+            if (this.localLock.getHoldCount() > 1) {
+                this.localLock.unlock();
+                return;
+            }
+            try {
+                boolean valid = System.currentTimeMillis() < this.validUntil;
+                List<CompletableFuture<Boolean>> results = releaseOnAllNodes(this.token);
+                if (!Thread.currentThread().isInterrupted()) {
+                    // every node answers or times out within the node timeout once its release runs;
+                    // queued releases are waited for while the lease is still valid
+                    long deadline = Math.max(this.validUntil, System.currentTimeMillis() + RedlockRegistry.this.nodeTimeout);
+                    int released = 0;
+                    for (CompletableFuture<Boolean> result : results) {
+                        if (awaitNode(result, deadline)) {
+                            released++;
+                        }
+                    }
+                    valid &= released >= RedlockRegistry.this.quorum;
+                }
+                if (!valid) {
+                    throw new IllegalStateException("Lock was released in the store due to expiration. " +
+                            "The integrity of data protected by this lock may have been compromised.");
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Released lock; " + this);
+                }
+            }
+            finally {
+                this.validUntil = 0;
+                this.token = null;
+                this.localLock.unlock();
+            }
+        }
+
+        private boolean awaitNode(CompletableFuture<Boolean> result, long deadline) {
+            try {
+                return result.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("Conditions are not supported");
+        }
+
+        @Override
+        public String toString() {
+            return "RedlockLock [lockKey=" + this.lockKey
+                    + ", nodes=" + RedlockRegistry.this.redisTemplates.size()
+                    + ", token=" + this.token
+                    + "]";
+        }
+
+    }
+
+}
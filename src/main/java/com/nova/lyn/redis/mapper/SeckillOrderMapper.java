@@ -0,0 +1,37 @@
+package com.nova.lyn.redis.mapper;
+
+import com.nova.lyn.redis.entity.SeckillOrder;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+/***
+ * @ClassName: SeckillOrderMapper
+ * @Description: 秒杀订单表, 建表语句见 sql/seckill_order.sql
+ * @Author: Lyn
+ * @Date: 2019/4/24 上午10:10
+ * @version : V1.0
+ */
+@Mapper
+public interface SeckillOrderMapper {
+
+    /**
+     * 一条多行 INSERT 写入一批订单; (product_id, user_id) 上有唯一约束, 已存在的订单被忽略, 重复写入同一批是安全的
+     * @param orders 订单, 不能为空
+     * @return 实际写入的行数
+     */
+    @Insert({"<script>",
+            "INSERT IGNORE INTO seckill_order (product_id, user_id, order_time) VALUES",
+            "<foreach collection='orders' item='order' separator=','>",
+            "(#{order.productId}, #{order.userId}, #{order.orderTime})",
+            "</foreach>",
+            "</script>"})
+    int insertIgnore(@Param("orders") List<SeckillOrder> orders);
+
+    @Select("SELECT COUNT(*) FROM seckill_order WHERE product_id = #{productId}")
+    long countByProduct(@Param("productId") String productId);
+
+}
@@ -0,0 +1,24 @@
+package com.nova.lyn.redis.service;
+
+import reactor.core.publisher.Mono;
+
+/***
+ * @ClassName: ReactiveSeckillService
+ * @Description: 非阻塞的秒杀服务, 语义与 {@link SeckillService} 相同; 返回的 Mono 在订阅前不访问存储
+ * @Author: Lyn
+ * @Date: 2019/4/26 上午10:10
+ * @version : V1.0
+ */
+public interface ReactiveSeckillService {
+
+    Mono<String> queryProductStore(String productId);
+
+    /**
+     * 秒杀: 检查库存, 拒绝重复购买, 扣减库存并记录订单, 整个过程是原子的
+     * @param productId 商品id
+     * @param userId 用户id
+     * @return 秒杀结果
+     */
+    Mono<SeckillResult> seckill(String productId, String userId);
+
+}
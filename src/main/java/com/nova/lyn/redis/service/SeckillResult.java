@@ -0,0 +1,32 @@
+package com.nova.lyn.redis.service;
+
+/***
+ * @ClassName: SeckillResult
+ * @Description: 秒杀结果
+ * @Author: Lyn
+ * @Date: 2019/4/12 上午10:05
+ * @version : V1.0
+ */
+public enum SeckillResult {
+
+    /**
+     * 抢购成功, 库存已扣减, 订单已记录
+     */
+    SUCCESS,
+
+    /**
+     * 库存不足
+     */
+    SOLD_OUT,
+
+    /**
+     * 该用户已抢购过该商品
+     */
+    REPEATED,
+
+    /**
+     * 商品不存在或未开始秒杀
+     */
+    NOT_FOUND
+
+}
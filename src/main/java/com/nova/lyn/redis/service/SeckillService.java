@@ -11,4 +11,12 @@ public interface SeckillService {
 
     String queryProductStore(String productId);
 
+    /**
+     * 秒杀: 检查库存, 拒绝重复购买, 扣减库存并记录订单, 整个过程是原子的
+     * @param productId 商品id
+     * @param userId 用户id
+     * @return 秒杀结果
+     */
+    SeckillResult seckill(String productId, String userId);
+
 }
@@ -0,0 +1,240 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * @ClassName: BatchingSeckillServiceImpl
+ * @Description: 批量秒杀实现: 抢购请求按商品放入无锁环形队列 ({@link RingBuffer}), 由一个合并线程每隔 flushInterval 微秒,
+ * 或者某个商品攒够 batchSize 个请求时, 把同一商品的一批请求用一次 Lua 脚本调用处理完, 脚本为每个请求返回一个结果.
+ * 数据结构与 {@link RedisSeckillServiceImpl} 相同, 两者可以同时使用.
+ * <p>
+ * 队列满时请求不排队, 直接在调用线程上执行单次抢购脚本. 关闭后才入队成功的请求由调用线程自己处理,
+ * 不会因为合并线程已经退出而永远得不到结果; 同一队列的消费者之间用队列本身做互斥.
+ * @Author: Lyn
+ * @Date: 2019/4/19 上午10:30
+ * @version : V1.0
+ */
+public class BatchingSeckillServiceImpl implements SeckillService, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(BatchingSeckillServiceImpl.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 128;
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 200L;
+
+    private static final int DEFAULT_RING_CAPACITY = 8192;
+
+    /**
+     * KEYS: 库存, 订单, 订单流, 已购用户数; ARGV: 下单时间, userId...
+     * 按顺序为每个 userId 返回 1 成功, 0 库存不足, -1 商品不存在, -2 重复购买
+     */
+    private static final String BATCH_SECKILL_SCRIPT = RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "local stock = tonumber(redis.call('GET', KEYS[1]))\n" +
+                    "local results = {}\n" +
+                    "local sold = 0\n" +
+                    "for i = 2, #ARGV do\n" +
+                    "  if not stock then\n" +
+                    "    results[i - 1] = -1\n" +
+                    "  elseif has_bought(KEYS[4], KEYS[2], ARGV[i]) then\n" +
+                    "    results[i - 1] = -2\n" +
+                    "  elseif stock - sold <= 0 then\n" +
+                    "    results[i - 1] = 0\n" +
+                    "  else\n" +
+                    "    sold = sold + 1\n" +
+                    "    record_buyer(KEYS[4], KEYS[2], ARGV[i], ARGV[1])\n" +
+                    "    redis.call('XADD', KEYS[3], 'MAXLEN', '~', " + RedisSeckillServiceImpl.STREAM_MAX_LEN
+                    + ", '*', 'userId', ARGV[i], 'time', ARGV[1])\n" +
+                    "    results[i - 1] = 1\n" +
+                    "  end\n" +
+                    "end\n" +
+                    "if sold > 0 then\n" +
+                    "  redis.call('DECRBY', KEYS[1], sold)\n" +
+                    "end\n" +
+                    "return results";
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> batchSeckillScript = new DefaultRedisScript<>(BATCH_SECKILL_SCRIPT, List.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisSeckillServiceImpl redisSeckillService;
+
+    private final Map<String, RingBuffer<Purchase>> rings = new ConcurrentHashMap<>();
+
+    private final int batchSize;
+
+    private final long flushIntervalNanos;
+
+    private final int ringCapacity;
+
+    private final Thread batcher;
+
+    private volatile boolean running = true;
+
+    public BatchingSeckillServiceImpl(RedisConnectionFactory connectionFactory) {
+        this(connectionFactory, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * @param connectionFactory Redis 连接
+     * @param batchSize 一次脚本调用最多处理的请求数
+     * @param flushInterval 合并周期, 微秒, 即请求最多额外等待的时间
+     * @param ringCapacity 每个商品的队列容量
+     */
+    public BatchingSeckillServiceImpl(RedisConnectionFactory connectionFactory, int batchSize, long flushInterval,
+                                      int ringCapacity) {
+        Assert.isTrue(batchSize > 0, "'batchSize' must be greater than 0");
+        Assert.isTrue(flushInterval > 0, "'flushInterval' must be greater than 0");
+        Assert.isTrue(ringCapacity >= batchSize, "'ringCapacity' cannot be less than 'batchSize'");
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.redisSeckillService = new RedisSeckillServiceImpl(connectionFactory);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MICROSECONDS.toNanos(flushInterval);
+        this.ringCapacity = ringCapacity;
+        this.batcher = new Thread(this::runBatches, "seckill-batcher");
+        this.batcher.setDaemon(true);
+        this.batcher.start();
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        return this.redisSeckillService.queryProductStore(productId);
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        try {
+            return seckillAsync(productId, userId).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 提交抢购请求, 在下一批中处理
+     * @param productId 商品id
+     * @param userId 用户id
+     * @return 秒杀结果
+     */
+    public CompletableFuture<SeckillResult> seckillAsync(String productId, String userId) {
+        Purchase purchase = new Purchase(userId);
+        RingBuffer<Purchase> ring = this.rings.computeIfAbsent(productId, key -> new RingBuffer<>(this.ringCapacity));
+        if (!this.running || !ring.offer(purchase)) {
+            try {
+                purchase.result.complete(this.redisSeckillService.seckill(productId, userId));
+            }
+            catch (RuntimeException e) {
+                purchase.result.completeExceptionally(e);
+            }
+            return purchase.result;
+        }
+        if (ring.size() >= this.batchSize) {
+            LockSupport.unpark(this.batcher);
+        }
+        if (!this.running) {
+            // 入队时合并线程可能已经做完最后一次处理
+            drain(productId, ring, new ArrayList<>(this.batchSize));
+        }
+        return purchase.result;
+    }
+
+    private void runBatches() {
+        List<Purchase> batch = new ArrayList<>(this.batchSize);
+        while (this.running) {
+            LockSupport.parkNanos(this, this.flushIntervalNanos);
+            flush(batch);
+        }
+        flush(batch);
+    }
+
+    private void flush(List<Purchase> batch) {
+        for (Map.Entry<String, RingBuffer<Purchase>> entry : this.rings.entrySet()) {
+            drain(entry.getKey(), entry.getValue(), batch);
+        }
+    }
+
+    private void drain(String productId, RingBuffer<Purchase> ring, List<Purchase> batch) {
+        synchronized (ring) {
+            while (ring.drainTo(batch, this.batchSize) > 0) {
+                apply(productId, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(String productId, List<Purchase> batch) {
+        Object[] args = new Object[batch.size() + 1];
+        args[0] = String.valueOf(System.currentTimeMillis());
+        for (int i = 0; i < batch.size(); i++) {
+            args[i + 1] = batch.get(i).userId;
+        }
+        try {
+            List<?> results = this.redisTemplate.execute(batchSeckillScript,
+                    Arrays.asList(RedisSeckillServiceImpl.stockKey(productId), RedisSeckillServiceImpl.ordersKey(productId),
+                            RedisSeckillServiceImpl.streamKey(productId), RedisBuyerBitmap.countKey(productId)),
+                    args);
+            if (results == null || results.size() != batch.size()) {
+                throw new IllegalStateException("Unexpected result from the batch seckill script: " + results);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(RedisSeckillServiceImpl.toResult((Long) results.get(i)));
+            }
+        }
+        catch (RuntimeException e) {
+            logger.error("Failed to apply a batch of " + batch.size() + " purchases of product " + productId, e);
+            for (Purchase purchase : batch) {
+                purchase.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 停止合并线程, 处理完队列中剩余的请求
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        this.running = false;
+        LockSupport.unpark(this.batcher);
+        this.batcher.join(TimeUnit.SECONDS.toMillis(10));
+        if (!this.batcher.isAlive()) {
+            // 合并线程退出后才入队的请求
+            flush(new ArrayList<>());
+        }
+    }
+
+    private static final class Purchase {
+
+        private final String userId;
+
+        private final CompletableFuture<SeckillResult> result = new CompletableFuture<>();
+
+        Purchase(String userId) {
+            this.userId = userId;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.nova.lyn.redis.service.impl;
+
+import java.util.Arrays;
+
+/***
+ * @ClassName: BuyerBitmap
+ * @Description: 按商品记录已购用户的压缩位图, 仿照 Roaring Bitmap: 32 位无符号用户id 按高 16 位分桶, 每个桶是一个容器.
+ * 桶内用户不超过 4096 个时容器是有序的 char 数组 (每个用户 2 字节), 超过后转为 65536 位的位图 (固定 8KB).
+ * 桶按高 16 位有序排列, 查找桶用二分 (最多 16 次比较), 桶内查找是二分或一次位运算; 用户数由计数器维护, 读取是 O(1).
+ * 与每个用户一个 String -> String 的 HashMap 项 (上百字节) 相比, 每个用户只占 1 位到 2 字节.
+ * <p>
+ * Redis 中的对应结构见 {@link RedisBuyerBitmap}. 非线程安全, {@link #add(long)} 和 {@link #contains(long)} 需要调用方同步;
+ * {@link #cardinality()} 可以在任意线程读取.
+ * @Author: Lyn
+ * @Date: 2019/4/23 上午9:40
+ * @version : V1.0
+ */
+public final class BuyerBitmap {
+
+    /**
+     * 最大用户id, 2^32 - 1
+     */
+    public static final long MAX_USER_ID = 0xFFFFFFFFL;
+
+    /**
+     * 数组容器的最大长度, 超过后转为位图容器; 4096 * 2 字节正好等于位图容器的 8KB
+     */
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    private char[] keys = new char[4];
+
+    private Object[] containers = new Object[4];
+
+    private int size;
+
+    private volatile long cardinality;
+
+    /**
+     * 记录一个用户
+     * @param userId 用户id, 0 到 {@link #MAX_USER_ID}
+     * @return 用户原来不在位图中时返回 true
+     */
+    public boolean add(long userId) {
+        checkUserId(userId);
+        char high = (char) (userId >>> 16);
+        char low = (char) userId;
+        int index = Arrays.binarySearch(this.keys, 0, this.size, high);
+        if (index < 0) {
+            ArrayContainer container = new ArrayContainer();
+            container.add(-1, low);
+            insertContainer(-index - 1, high, container);
+        }
+        else if (this.containers[index] instanceof long[]) {
+            long[] bitmap = (long[]) this.containers[index];
+            long mask = 1L << low;
+            if ((bitmap[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bitmap[low >>> 6] |= mask;
+        }
+        else {
+            ArrayContainer container = (ArrayContainer) this.containers[index];
+            int position = container.indexOf(low);
+            if (position >= 0) {
+                return false;
+            }
+            if (container.count < ARRAY_CONTAINER_MAX) {
+                container.add(position, low);
+            }
+            else {
+                long[] bitmap = container.toBitmap();
+                bitmap[low >>> 6] |= 1L << low;
+                this.containers[index] = bitmap;
+            }
+        }
+        this.cardinality++;
+        return true;
+    }
+
+    /**
+     * @param userId 用户id
+     * @return 用户是否已在位图中
+     */
+    public boolean contains(long userId) {
+        if (userId < 0 || userId > MAX_USER_ID) {
+            return false;
+        }
+        int index = Arrays.binarySearch(this.keys, 0, this.size, (char) (userId >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) userId;
+        Object container = this.containers[index];
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return ((ArrayContainer) container).indexOf(low) >= 0;
+    }
+
+    /**
+     * @return 用户数
+     */
+    public long cardinality() {
+        return this.cardinality;
+    }
+
+    /**
+     * @return 各容器数组占用的字节数估算, 不含对象头
+     */
+    public long sizeInBytes() {
+        long bytes = this.keys.length * 2L + this.containers.length * 8L;
+        for (int i = 0; i < this.size; i++) {
+            Object container = this.containers[i];
+            bytes += container instanceof long[] ? BITMAP_WORDS * 8L : ((ArrayContainer) container).values.length * 2L;
+        }
+        return bytes;
+    }
+
+    private void insertContainer(int index, char high, Object container) {
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.containers = Arrays.copyOf(this.containers, this.size * 2);
+        }
+        System.arraycopy(this.keys, index, this.keys, index + 1, this.size - index);
+        System.arraycopy(this.containers, index, this.containers, index + 1, this.size - index);
+        this.keys[index] = high;
+        this.containers[index] = container;
+        this.size++;
+    }
+
+    /**
+     * 把 userId 解析为位图中的用户id
+     * @param userId 用户id
+     * @return 0 到 {@link #MAX_USER_ID} 之间不带前导零的十进制数字时返回它的值, 否则返回 -1
+     */
+    public static long toUserId(String userId) {
+        int length = userId.length();
+        if (length == 0 || length > 10 || (length > 1 && userId.charAt(0) == '0')) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = 0; i < length; i++) {
+            char c = userId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id > MAX_USER_ID ? -1 : id;
+    }
+
+    private static void checkUserId(long userId) {
+        if (userId < 0 || userId > MAX_USER_ID) {
+            throw new IllegalArgumentException("'userId' must be between 0 and " + MAX_USER_ID + ": " + userId);
+        }
+    }
+
+    /**
+     * 有序 char 数组, 按 2 倍扩容, 有效长度为 count
+     */
+    private static final class ArrayContainer {
+
+        private char[] values = new char[4];
+
+        private int count;
+
+        int indexOf(char low) {
+            return Arrays.binarySearch(this.values, 0, this.count, low);
+        }
+
+        /**
+         * @param position {@link #indexOf(char)} 返回的负数插入位置
+         */
+        void add(int position, char low) {
+            int index = -position - 1;
+            if (this.count == this.values.length) {
+                this.values = Arrays.copyOf(this.values, Math.min(this.count * 2, ARRAY_CONTAINER_MAX));
+            }
+            System.arraycopy(this.values, index, this.values, index + 1, this.count - index);
+            this.values[index] = low;
+            this.count++;
+        }
+
+        long[] toBitmap() {
+            long[] bitmap = new long[BITMAP_WORDS];
+            for (int i = 0; i < this.count; i++) {
+                char low = this.values[i];
+                bitmap[low >>> 6] |= 1L << low;
+            }
+            return bitmap;
+        }
+
+    }
+
+}
@@ -0,0 +1,291 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * @ClassName: CachingSeckillServiceImpl
+ * @Description: 商品库存展示的两级缓存: 包装任意一个 {@link SeckillService}, queryProductStore 先查本地 L1 (按条数和写入时间淘汰),
+ * 再查 Redis 中的 L2 seckill:{productId}:view, 都没有时才调用被包装的实现, 结果写回两级缓存.
+ * <p>
+ * 每个商品有一个版本号 seckill:{productId}:version, 抢购成功或调用 {@link #invalidate(String)} 时加一, 并通过 seckill:version
+ * 频道通知所有节点. 缓存项记录生成时的版本, 版本落后时最多再使用该商品的 staleness 毫秒 (见 {@link #setStaleness(String, long)}),
+ * 之后重新生成. 因此秒杀期间展示的库存最多落后 staleness, 而读请求在大多数情况下只是一次本地查找.
+ * <p>
+ * 抢购成功引起的版本变化按 staleness 合并: 一个窗口内所有节点只加一次版本, 标记 seckill:{productId}:bumped 记录窗口结束时间,
+ * 随版本一起广播. 窗口内生成的缓存项可能漏掉之后的成交, 即使版本是最新的也只按 staleness 使用, 所以展示的库存仍然最多落后 staleness,
+ * 而热门商品每秒最多只有 1000 / staleness 次 INCR 和广播.
+ * @Author: Lyn
+ * @Date: 2019/4/25 上午10:20
+ * @version : V1.0
+ */
+public class CachingSeckillServiceImpl implements SeckillService, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(CachingSeckillServiceImpl.class);
+
+    static final String VERSION_CHANNEL = "seckill:version";
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final long DEFAULT_TIME_TO_LIVE = 60000L;
+
+    private static final long DEFAULT_STALENESS = 1000L;
+
+    /**
+     * KEYS: 版本号, 窗口标记; ARGV: 频道, 商品id, 窗口结束时间, 窗口长度.
+     * 窗口长度大于 0 且窗口内已经加过版本时返回 false, 否则版本号加一并广播 "版本号:窗口结束时间:商品id"
+     */
+    private static final String BUMP_VERSION_SCRIPT =
+            "if tonumber(ARGV[4]) > 0 and not redis.call('SET', KEYS[2], ARGV[3], 'PX', ARGV[4], 'NX') then\n" +
+                    "  return false\n" +
+                    "end\n" +
+                    "local version = redis.call('INCR', KEYS[1])\n" +
+                    "redis.call('PUBLISH', ARGV[1], version .. ':' .. ARGV[3] .. ':' .. ARGV[2])\n" +
+                    "return version";
+
+    private static final RedisScript<Long> bumpVersionScript = new DefaultRedisScript<>(BUMP_VERSION_SCRIPT, Long.class);
+
+    private final SeckillService delegate;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final Map<String, View> views;
+
+    /**
+     * 本节点已知的各商品最新版本
+     */
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点已知的各商品最近一个合并窗口的结束时间
+     */
+    private final Map<String, Long> coveredUntil = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> stalenessByProduct = new ConcurrentHashMap<>();
+
+    private final long timeToLive;
+
+    private volatile long defaultStaleness = DEFAULT_STALENESS;
+
+    public CachingSeckillServiceImpl(SeckillService delegate, RedisConnectionFactory connectionFactory) {
+        this(delegate, connectionFactory, DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param delegate 被包装的秒杀实现
+     * @param connectionFactory Redis 连接
+     * @param maxEntries L1 最多缓存的商品数, 超过后淘汰最久未访问的
+     * @param timeToLive 缓存项写入后的最长存活时间, 毫秒, 版本没有变化时也会过期
+     */
+    @SuppressWarnings("serial")
+    public CachingSeckillServiceImpl(SeckillService delegate, RedisConnectionFactory connectionFactory,
+                                     final int maxEntries, long timeToLive) {
+        Assert.notNull(delegate, "'delegate' cannot be null");
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        Assert.isTrue(maxEntries > 0, "'maxEntries' must be greater than 0");
+        Assert.isTrue(timeToLive > 0, "'timeToLive' must be greater than 0");
+        this.delegate = delegate;
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.timeToLive = timeToLive;
+        this.views = Collections.synchronizedMap(new LinkedHashMap<String, View>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, View> eldest) {
+                return size() > maxEntries;
+            }
+
+        });
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(connectionFactory);
+        this.listenerContainer.addMessageListener(new VersionListener(), new ChannelTopic(VERSION_CHANNEL));
+        this.listenerContainer.afterPropertiesSet();
+        this.listenerContainer.start();
+    }
+
+    /**
+     * 版本落后的缓存项还能使用多久, 默认 1000 毫秒
+     * @param staleness 毫秒
+     */
+    public void setDefaultStaleness(long staleness) {
+        Assert.isTrue(staleness >= 0, "'staleness' cannot be negative");
+        this.defaultStaleness = staleness;
+    }
+
+    /**
+     * 单独设置一个商品的 staleness
+     * @param productId 商品id
+     * @param staleness 毫秒, 0 表示版本变化后立即重新生成
+     */
+    public void setStaleness(String productId, long staleness) {
+        Assert.isTrue(staleness >= 0, "'staleness' cannot be negative");
+        this.stalenessByProduct.put(productId, staleness);
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        long now = System.currentTimeMillis();
+        View view = this.views.get(productId);
+        if (view != null && isUsable(productId, view, now)) {
+            return view.text;
+        }
+        List<String> values = this.redisTemplate.opsForValue().multiGet(Arrays.asList(viewKey(productId),
+                versionKey(productId), bumpedKey(productId)));
+        long version = values.get(1) == null ? 0 : Long.parseLong(values.get(1));
+        updateVersion(productId, version, values.get(2) == null ? 0 : Long.parseLong(values.get(2)));
+        view = View.parse(values.get(0));
+        if (view == null || !isUsable(productId, view, now)) {
+            view = new View(version, now, this.delegate.queryProductStore(productId));
+            this.redisTemplate.opsForValue().set(viewKey(productId), view.toString(), this.timeToLive,
+                    TimeUnit.MILLISECONDS);
+        }
+        this.views.put(productId, view);
+        return view.text;
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        SeckillResult result = this.delegate.seckill(productId, userId);
+        if (result == SeckillResult.SUCCESS) {
+            try {
+                bumpVersion(productId, staleness(productId));
+            }
+            catch (RuntimeException e) {
+                // 购买已经成功; 缓存最多在 timeToLive 后过期
+                logger.warn("Failed to bump the view version of product " + productId, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 库存变化后调用, 使所有节点上该商品的缓存在 staleness 后失效
+     * @param productId 商品id
+     */
+    public void invalidate(String productId) {
+        bumpVersion(productId, 0);
+    }
+
+    /**
+     * @param window 合并窗口, 毫秒; 0 表示总是加版本
+     */
+    private void bumpVersion(String productId, long window) {
+        long until = window > 0 ? System.currentTimeMillis() + window : 0;
+        Long version = this.redisTemplate.execute(bumpVersionScript,
+                Arrays.asList(versionKey(productId), bumpedKey(productId)),
+                VERSION_CHANNEL, productId, String.valueOf(until), String.valueOf(window));
+        if (version != null) {
+            updateVersion(productId, version, until);
+        }
+    }
+
+    private boolean isUsable(String productId, View view, long now) {
+        if (now - view.createdAt >= this.timeToLive) {
+            return false;
+        }
+        Long latest = this.versions.get(productId);
+        if ((latest == null || view.version >= latest)
+                && view.createdAt >= this.coveredUntil.getOrDefault(productId, 0L)) {
+            return true;
+        }
+        return now - view.createdAt < staleness(productId);
+    }
+
+    private long staleness(String productId) {
+        return this.stalenessByProduct.getOrDefault(productId, this.defaultStaleness);
+    }
+
+    private void updateVersion(String productId, long version, long until) {
+        this.versions.merge(productId, version, Math::max);
+        if (until > 0) {
+            this.coveredUntil.merge(productId, until, Math::max);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.listenerContainer.destroy();
+    }
+
+    static String viewKey(String productId) {
+        return "seckill:{" + productId + "}:view";
+    }
+
+    static String versionKey(String productId) {
+        return "seckill:{" + productId + "}:version";
+    }
+
+    static String bumpedKey(String productId) {
+        return "seckill:{" + productId + "}:bumped";
+    }
+
+    private final class VersionListener implements MessageListener {
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int first = body.indexOf(':');
+            int second = body.indexOf(':', first + 1);
+            updateVersion(body.substring(second + 1), Long.parseLong(body.substring(0, first)),
+                    Long.parseLong(body.substring(first + 1, second)));
+        }
+
+    }
+
+    /**
+     * 缓存项: 生成时的版本, 生成时间和展示文本; L2 中保存为 "版本:生成时间:文本"
+     */
+    private static final class View {
+
+        private final long version;
+
+        private final long createdAt;
+
+        private final String text;
+
+        View(long version, long createdAt, String text) {
+            this.version = version;
+            this.createdAt = createdAt;
+            this.text = text;
+        }
+
+        static View parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            int first = value.indexOf(':');
+            int second = value.indexOf(':', first + 1);
+            return new View(Long.parseLong(value.substring(0, first)), Long.parseLong(value.substring(first + 1, second)),
+                    value.substring(second + 1));
+        }
+
+        @Override
+        public String toString() {
+            return this.version + ":" + this.createdAt + ":" + this.text;
+        }
+
+    }
+
+}
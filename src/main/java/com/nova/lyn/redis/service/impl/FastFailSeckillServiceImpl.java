@@ -0,0 +1,219 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * @ClassName: FastFailSeckillServiceImpl
+ * @Description: 秒杀前置快速失败: 包装任意一个 {@link SeckillService}, 在访问 Redis 之前拦掉大部分注定失败的请求.
+ * <p>
+ * 售罄标记: 某个商品第一次返回 SOLD_OUT 时在本地记下, 并通过 seckill:soldout 频道通知所有节点, 之后该商品的请求
+ * 直接返回 SOLD_OUT. 只有被包装实现的 SOLD_OUT 表示全局售罄时标记才不会出错: {@link RedisSeckillServiceImpl} 和
+ * {@link BatchingSeckillServiceImpl} 的库存只减不增; {@link ShardedSeckillServiceImpl} 全部分片卖完才返回 SOLD_OUT, 只有
+ * pending 标记过期被取代时会还回扣掉的一件. {@link SegmentedSeckillServiceImpl} 的 SOLD_OUT 只说明中心库存暂时为空,
+ * 其他节点还会归还租到的库存, 所以包装它时默认不设售罄标记, 见 {@link #setSoldOutFinal(boolean)}.
+ * 重新初始化库存后需要调用 {@link #reset(String)}, 它通过 seckill:restock 频道清除所有节点的标记.
+ * <p>
+ * 重复购买过滤: 每个商品一个布隆过滤器, 记录经本节点抢购成功 (或被判重复) 的用户. 过滤器说"没有"一定没有, 请求照常交给
+ * 被包装的实现; 说"可能有"时默认用一次只读脚本确认: 用户已记在 seckill:{productId} 的已购用户位图或订单 hash 中
+ * (见 {@link RedisBuyerBitmap}) 就直接返回 REPEATED, 不执行抢购脚本; 没有记录 (过滤器误判, 或者被包装的实现不用这些 key)
+ * 时照常交给被包装的实现, 所以过滤器误判或被塞满都不会拒绝新用户. 能接受按 falsePositiveRate 误拒新用户时, 可以用
+ * {@link #setConfirmRepeats(boolean)} 关闭确认, 过滤器命中直接返回 REPEATED, 不访问 Redis.
+ * @Author: Lyn
+ * @Date: 2019/4/22 上午10:30
+ * @version : V1.0
+ */
+public class FastFailSeckillServiceImpl implements SeckillService, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(FastFailSeckillServiceImpl.class);
+
+    static final String SOLD_OUT_CHANNEL = "seckill:soldout";
+
+    static final String RESTOCK_CHANNEL = "seckill:restock";
+
+    private static final long DEFAULT_EXPECTED_BUYERS = 100_000L;
+
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    /**
+     * KEYS: 已购用户数, 订单; ARGV: userId. 用户已购返回 1, 否则返回 0
+     */
+    private static final String HAS_BOUGHT_SCRIPT = RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "return has_bought(KEYS[1], KEYS[2], ARGV[1]) and 1 or 0";
+
+    private static final RedisScript<Long> hasBoughtScript = new DefaultRedisScript<>(HAS_BOUGHT_SCRIPT, Long.class);
+
+    private final SeckillService delegate;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final Set<String> soldOut = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, BloomFilter> buyers = new ConcurrentHashMap<>();
+
+    private final long expectedBuyers;
+
+    private final double falsePositiveRate;
+
+    private volatile boolean confirmRepeats = true;
+
+    private volatile boolean soldOutFinal;
+
+    public FastFailSeckillServiceImpl(SeckillService delegate, RedisConnectionFactory connectionFactory) {
+        this(delegate, connectionFactory, DEFAULT_EXPECTED_BUYERS, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @param delegate 被包装的秒杀实现
+     * @param connectionFactory Redis 连接, 用于收发售罄通知
+     * @param expectedBuyers 每个商品预计的成功用户数, 决定布隆过滤器的大小
+     * @param falsePositiveRate 布隆过滤器的误判率
+     */
+    public FastFailSeckillServiceImpl(SeckillService delegate, RedisConnectionFactory connectionFactory,
+                                      long expectedBuyers, double falsePositiveRate) {
+        Assert.notNull(delegate, "'delegate' cannot be null");
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        Assert.isTrue(expectedBuyers > 0, "'expectedBuyers' must be greater than 0");
+        Assert.isTrue(falsePositiveRate > 0 && falsePositiveRate < 1, "'falsePositiveRate' must be between 0 and 1");
+        this.delegate = delegate;
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.expectedBuyers = expectedBuyers;
+        this.falsePositiveRate = falsePositiveRate;
+        this.soldOutFinal = !(delegate instanceof SegmentedSeckillServiceImpl);
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(connectionFactory);
+        this.listenerContainer.addMessageListener(new SoldOutListener(), new ChannelTopic(SOLD_OUT_CHANNEL));
+        this.listenerContainer.addMessageListener(new RestockListener(), new ChannelTopic(RESTOCK_CHANNEL));
+        this.listenerContainer.afterPropertiesSet();
+        this.listenerContainer.start();
+    }
+
+    /**
+     * 布隆过滤器命中时是否到 Redis 确认, 默认 true; 设为 false 时直接返回 REPEATED, 会按误判率误拒新用户
+     * @param confirmRepeats 是否确认
+     */
+    public void setConfirmRepeats(boolean confirmRepeats) {
+        this.confirmRepeats = confirmRepeats;
+    }
+
+    /**
+     * 被包装实现返回的 SOLD_OUT 是否表示全局售罄, 是则设置售罄标记; 包装 {@link SegmentedSeckillServiceImpl} 时默认 false,
+     * 其他实现默认 true
+     * @param soldOutFinal SOLD_OUT 是否表示全局售罄
+     */
+    public void setSoldOutFinal(boolean soldOutFinal) {
+        this.soldOutFinal = soldOutFinal;
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        return this.delegate.queryProductStore(productId);
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        BloomFilter bloomFilter = this.buyers.computeIfAbsent(productId,
+                key -> new BloomFilter(this.expectedBuyers, this.falsePositiveRate));
+        boolean mightHaveBought = bloomFilter.mightContain(userId);
+        if (mightHaveBought && !this.confirmRepeats) {
+            return SeckillResult.REPEATED;
+        }
+        if (this.soldOut.contains(productId)) {
+            return SeckillResult.SOLD_OUT;
+        }
+        if (mightHaveBought && hasBought(productId, userId)) {
+            return SeckillResult.REPEATED;
+        }
+        SeckillResult result = this.delegate.seckill(productId, userId);
+        if (result == SeckillResult.SUCCESS || result == SeckillResult.REPEATED) {
+            bloomFilter.put(userId);
+        }
+        else if (result == SeckillResult.SOLD_OUT && this.soldOutFinal && this.soldOut.add(productId)) {
+            publish(SOLD_OUT_CHANNEL, productId);
+        }
+        return result;
+    }
+
+    private boolean hasBought(String productId, String userId) {
+        Long bought = this.redisTemplate.execute(hasBoughtScript,
+                Arrays.asList(RedisBuyerBitmap.countKey(productId), RedisSeckillServiceImpl.ordersKey(productId)), userId);
+        return Long.valueOf(1L).equals(bought);
+    }
+
+    /**
+     * 商品是否已被标记为售罄
+     * @param productId 商品id
+     * @return 本节点是否已知该商品售罄
+     */
+    public boolean isSoldOut(String productId) {
+        return this.soldOut.contains(productId);
+    }
+
+    /**
+     * 清除所有节点上该商品的售罄标记和购买记录, 在重新初始化库存之后调用
+     * @param productId 商品id
+     */
+    public void reset(String productId) {
+        clear(productId);
+        this.redisTemplate.convertAndSend(RESTOCK_CHANNEL, productId);
+    }
+
+    private void clear(String productId) {
+        this.soldOut.remove(productId);
+        this.buyers.remove(productId);
+    }
+
+    private void publish(String channel, String productId) {
+        try {
+            this.redisTemplate.convertAndSend(channel, productId);
+        }
+        catch (RuntimeException e) {
+            // 其他节点会在自己第一次扣减失败时得到同样的结论
+            logger.warn("Failed to publish the sold out notification of product " + productId, e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.listenerContainer.destroy();
+    }
+
+    private final class SoldOutListener implements MessageListener {
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            FastFailSeckillServiceImpl.this.soldOut.add(new String(message.getBody(), StandardCharsets.UTF_8));
+        }
+
+    }
+
+    private final class RestockListener implements MessageListener {
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            clear(new String(message.getBody(), StandardCharsets.UTF_8));
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.ReactiveSeckillService;
+import com.nova.lyn.redis.service.SeckillResult;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * @ClassName: ReactiveRedisSeckillServiceImpl
+ * @Description: {@link RedisSeckillServiceImpl} 的非阻塞版本: 使用相同的 key 和 Lua 脚本, 命令通过响应式连接发送,
+ * 调用线程 (例如 Netty 的事件循环线程) 不会等待 Redis 的回复. 两者可以同时使用.
+ * @Author: Lyn
+ * @Date: 2019/4/26 上午10:30
+ * @version : V1.0
+ */
+public class ReactiveRedisSeckillServiceImpl implements ReactiveSeckillService {
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    public ReactiveRedisSeckillServiceImpl(ReactiveRedisConnectionFactory connectionFactory) {
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        this.redisTemplate = new ReactiveStringRedisTemplate(connectionFactory);
+    }
+
+    @Override
+    public Mono<String> queryProductStore(String productId) {
+        Mono<List<String>> stock = this.redisTemplate.opsForValue().multiGet(Arrays.asList(
+                RedisSeckillServiceImpl.totalKey(productId), RedisSeckillServiceImpl.stockKey(productId),
+                RedisBuyerBitmap.countKey(productId)));
+        Mono<Long> buyers = this.redisTemplate.opsForHash().size(RedisSeckillServiceImpl.ordersKey(productId));
+        return Mono.zip(stock, buyers, (values, size) -> "国庆活动，iPhone100，限量"
+                + values.get(0)
+                + "台,还剩:" + values.get(1)
+                + "台,该商品成功下单用户数:"
+                + (size + (values.get(2) == null ? 0 : Long.parseLong(values.get(2)))) + "人");
+    }
+
+    @Override
+    public Mono<SeckillResult> seckill(String productId, String userId) {
+        return this.redisTemplate.execute(RedisSeckillServiceImpl.seckillScript,
+                Arrays.asList(RedisSeckillServiceImpl.stockKey(productId), RedisSeckillServiceImpl.ordersKey(productId),
+                        RedisSeckillServiceImpl.streamKey(productId), RedisBuyerBitmap.countKey(productId)),
+                Arrays.asList(userId, String.valueOf(System.currentTimeMillis())))
+                .next()
+                .map(RedisSeckillServiceImpl::toResult);
+    }
+
+}
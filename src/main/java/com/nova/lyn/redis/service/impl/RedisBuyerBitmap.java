@@ -0,0 +1,155 @@
+package com.nova.lyn.redis.service.impl;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/***
+ * @ClassName: RedisBuyerBitmap
+ * @Description: {@link BuyerBitmap} 在 Redis 中的对应结构: 用户id 同样按高 16 位分块, 每块是一个 string 位图
+ * seckill:{productId}:buyers:{高16位}, 用 SETBIT/GETBIT 按低 16 位读写, 一块最多 8KB, 只有出现过用户的块才会分配;
+ * 用户数记在 seckill:{productId}:buyers 中, 用过的块编号记在 seckill:{productId}:buyers:chunks 中, 都与置位在同一个脚本里更新.
+ * 所有 key 使用 {productId} 作为 hash tag, 与商品的其他 key 在同一个 slot, 可以在秒杀脚本中一起访问.
+ * <p>
+ * 所有 Redis 秒杀实现都用 {@link #SCRIPT_FUNCTIONS} 判断和记录已购用户: {@link BuyerBitmap#toUserId(String)} 能解析的数字 userId
+ * 记在位图中, 每人 1 位, 下单时间只保留在订单流里; 其他 userId 仍然记在订单 hash seckill:{productId}:orders 中.
+ * 下单用户数是位图的用户数加上订单 hash 的长度.
+ * @Author: Lyn
+ * @Date: 2019/4/23 上午11:15
+ * @version : V1.0
+ */
+public class RedisBuyerBitmap {
+
+    /**
+     * 秒杀脚本共用的 Lua 函数, 参数 buyers 是用户数 key ({@link #countKey(String)}), 块位图和块编号集合的 key 由它拼出,
+     * 与它有相同的 hash tag:
+     * has_bought(buyers, orders, userId) 用户是否已购; record_buyer(buyers, orders, userId, time) 记录已购用户;
+     * add_buyer(buyers, userId) 把数字 userId 加入位图, 原来不在位图中时返回 true.
+     */
+    static final String SCRIPT_FUNCTIONS =
+            "local function buyer_bit(userId)\n" +
+                    "  if string.len(userId) > 10 or not (userId == '0' or string.match(userId, '^[1-9]%d*$')) then\n" +
+                    "    return nil\n" +
+                    "  end\n" +
+                    "  local id = tonumber(userId)\n" +
+                    "  if id > " + BuyerBitmap.MAX_USER_ID + " then\n" +
+                    "    return nil\n" +
+                    "  end\n" +
+                    "  return math.floor(id / 65536), id % 65536\n" +
+                    "end\n" +
+                    "local function add_buyer(buyers, userId)\n" +
+                    "  local chunk, offset = buyer_bit(userId)\n" +
+                    "  if redis.call('SETBIT', buyers .. ':' .. chunk, offset, 1) == 1 then\n" +
+                    "    return false\n" +
+                    "  end\n" +
+                    "  redis.call('INCR', buyers)\n" +
+                    "  redis.call('SADD', buyers .. ':chunks', chunk)\n" +
+                    "  return true\n" +
+                    "end\n" +
+                    "local function has_bought(buyers, orders, userId)\n" +
+                    "  local chunk, offset = buyer_bit(userId)\n" +
+                    "  if chunk then\n" +
+                    "    return redis.call('GETBIT', buyers .. ':' .. chunk, offset) == 1\n" +
+                    "  end\n" +
+                    "  return redis.call('HEXISTS', orders, userId) == 1\n" +
+                    "end\n" +
+                    "local function record_buyer(buyers, orders, userId, time)\n" +
+                    "  if buyer_bit(userId) then\n" +
+                    "    add_buyer(buyers, userId)\n" +
+                    "  else\n" +
+                    "    redis.call('HSET', orders, userId, time)\n" +
+                    "  end\n" +
+                    "end\n";
+
+    /**
+     * KEYS: 用户数; ARGV: userId. 返回 1 新增, 0 已存在
+     */
+    private static final String ADD_SCRIPT = SCRIPT_FUNCTIONS +
+            "return add_buyer(KEYS[1], ARGV[1]) and 1 or 0";
+
+    private static final RedisScript<Long> addScript = new DefaultRedisScript<>(ADD_SCRIPT, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    public RedisBuyerBitmap(RedisConnectionFactory connectionFactory) {
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    /**
+     * 记录一个用户
+     * @param productId 商品id
+     * @param userId 用户id, 0 到 {@link BuyerBitmap#MAX_USER_ID}
+     * @return 用户原来不在位图中时返回 true
+     */
+    public boolean add(String productId, long userId) {
+        checkUserId(userId);
+        Long added = this.redisTemplate.execute(addScript, Collections.singletonList(countKey(productId)),
+                String.valueOf(userId));
+        return Long.valueOf(1L).equals(added);
+    }
+
+    /**
+     * @param productId 商品id
+     * @param userId 用户id
+     * @return 用户是否已在位图中
+     */
+    public boolean contains(String productId, long userId) {
+        if (userId < 0 || userId > BuyerBitmap.MAX_USER_ID) {
+            return false;
+        }
+        return Boolean.TRUE.equals(this.redisTemplate.opsForValue().getBit(chunkKey(productId, userId), userId & 0xFFFF));
+    }
+
+    /**
+     * @param productId 商品id
+     * @return 用户数
+     */
+    public long cardinality(String productId) {
+        String count = this.redisTemplate.opsForValue().get(countKey(productId));
+        return count == null ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * 删除商品的全部购买记录
+     * @param productId 商品id
+     */
+    public void clear(String productId) {
+        Set<String> chunks = this.redisTemplate.opsForSet().members(chunksKey(productId));
+        List<String> keys = new ArrayList<>();
+        keys.add(countKey(productId));
+        keys.add(chunksKey(productId));
+        if (chunks != null) {
+            for (String chunk : chunks) {
+                keys.add(countKey(productId) + ":" + chunk);
+            }
+        }
+        this.redisTemplate.delete(keys);
+    }
+
+    private static void checkUserId(long userId) {
+        if (userId < 0 || userId > BuyerBitmap.MAX_USER_ID) {
+            throw new IllegalArgumentException("'userId' must be between 0 and " + BuyerBitmap.MAX_USER_ID + ": " + userId);
+        }
+    }
+
+    static String countKey(String productId) {
+        return "seckill:{" + productId + "}:buyers";
+    }
+
+    static String chunksKey(String productId) {
+        return countKey(productId) + ":chunks";
+    }
+
+    static String chunkKey(String productId, long userId) {
+        return countKey(productId) + ":" + (userId >>> 16);
+    }
+
+}
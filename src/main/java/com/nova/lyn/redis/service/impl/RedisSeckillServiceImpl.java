@@ -0,0 +1,136 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * @ClassName: RedisSeckillServiceImpl
+ * @Description: 基于 Redis 的秒杀实现: 每次抢购只执行一次 Lua 脚本, 在脚本内原子地检查库存、拒绝重复购买、
+ * 扣减库存并记录订单, 不需要任何分布式锁, 也不会超卖.
+ * 商品的 key 使用 {productId} 作为 hash tag, 集群模式下同一商品的 key 落在同一个 slot:
+ * seckill:{productId}:total 商品总量, seckill:{productId}:stock 剩余库存, 已购用户 (数字 userId 记在 {@link RedisBuyerBitmap} 位图中,
+ * 其他 userId 记在订单 hash seckill:{productId}:orders 中, userId -> 下单时间),
+ * seckill:{productId}:stream 成功订单流, 由 {@link SeckillOrderPersister} 异步写入数据库. 订单流用 MAXLEN ~ {@link #STREAM_MAX_LEN}
+ * 限制长度, 防止没有消费者时无限增长; 被裁掉的订单仍然记在 orders 中.
+ * @Author: Lyn
+ * @Date: 2019/4/12 上午10:20
+ * @version : V1.0
+ */
+public class RedisSeckillServiceImpl implements SeckillService {
+
+    private static final String KEY_PREFIX = "seckill:{";
+
+    /**
+     * 订单流的近似长度上限; 已落库的消息会被删除, 正常情况下远达不到
+     */
+    static final long STREAM_MAX_LEN = 1_000_000L;
+
+    /**
+     * KEYS: 库存, 订单, 订单流, 已购用户数; ARGV: userId, 下单时间.
+     * 返回 1 成功, 0 库存不足, -1 商品不存在, -2 重复购买
+     */
+    private static final String SECKILL_SCRIPT = RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "local stock = tonumber(redis.call('GET', KEYS[1]))\n" +
+                    "if not stock then\n" +
+                    "  return -1\n" +
+                    "end\n" +
+                    "if has_bought(KEYS[4], KEYS[2], ARGV[1]) then\n" +
+                    "  return -2\n" +
+                    "end\n" +
+                    "if stock <= 0 then\n" +
+                    "  return 0\n" +
+                    "end\n" +
+                    "redis.call('DECR', KEYS[1])\n" +
+                    "record_buyer(KEYS[4], KEYS[2], ARGV[1], ARGV[2])\n" +
+                    "redis.call('XADD', KEYS[3], 'MAXLEN', '~', " + STREAM_MAX_LEN + ", '*', 'userId', ARGV[1], 'time', ARGV[2])\n" +
+                    "return 1";
+
+    static final RedisScript<Long> seckillScript = new DefaultRedisScript<>(SECKILL_SCRIPT, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisBuyerBitmap buyerBitmap;
+
+    public RedisSeckillServiceImpl(RedisConnectionFactory connectionFactory) {
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.buyerBitmap = new RedisBuyerBitmap(connectionFactory);
+    }
+
+    /**
+     * 初始化商品库存, 清空已有订单
+     * @param productId 商品id
+     * @param quantity 秒杀总量
+     */
+    public void initProduct(String productId, int quantity) {
+        this.redisTemplate.delete(ordersKey(productId));
+        this.buyerBitmap.clear(productId);
+        this.redisTemplate.opsForValue().set(totalKey(productId), String.valueOf(quantity));
+        this.redisTemplate.opsForValue().set(stockKey(productId), String.valueOf(quantity));
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        List<String> values = this.redisTemplate.opsForValue().multiGet(
+                Arrays.asList(totalKey(productId), stockKey(productId), RedisBuyerBitmap.countKey(productId)));
+        long buyers = this.redisTemplate.opsForHash().size(ordersKey(productId))
+                + (values.get(2) == null ? 0 : Long.parseLong(values.get(2)));
+        return "国庆活动，iPhone100，限量"
+                + values.get(0)
+                + "台,还剩:" + values.get(1)
+                + "台,该商品成功下单用户数:"
+                + buyers + "人";
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        Long result = this.redisTemplate.execute(seckillScript,
+                Arrays.asList(stockKey(productId), ordersKey(productId), streamKey(productId),
+                        RedisBuyerBitmap.countKey(productId)),
+                userId, String.valueOf(System.currentTimeMillis()));
+        return toResult(result);
+    }
+
+    static SeckillResult toResult(Long result) {
+        if (result == null) {
+            throw new IllegalStateException("No result from the seckill script");
+        }
+        switch (result.intValue()) {
+            case 1:
+                return SeckillResult.SUCCESS;
+            case 0:
+                return SeckillResult.SOLD_OUT;
+            case -1:
+                return SeckillResult.NOT_FOUND;
+            case -2:
+                return SeckillResult.REPEATED;
+            default:
+                throw new IllegalStateException("Unexpected result from the seckill script: " + result);
+        }
+    }
+
+    static String totalKey(String productId) {
+        return KEY_PREFIX + productId + "}:total";
+    }
+
+    static String stockKey(String productId) {
+        return KEY_PREFIX + productId + "}:stock";
+    }
+
+    static String ordersKey(String productId) {
+        return KEY_PREFIX + productId + "}:orders";
+    }
+
+    static String streamKey(String productId) {
+        return KEY_PREFIX + productId + "}:stream";
+    }
+
+}
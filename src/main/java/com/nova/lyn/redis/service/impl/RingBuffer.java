@@ -0,0 +1,81 @@
+package com.nova.lyn.redis.service.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/***
+ * @ClassName: RingBuffer
+ * @Description: 有界无锁环形队列, 多个生产者, 一个消费者. 生产者用 CAS 抢占序号后写入槽位, 消费者按序号顺序读取,
+ * 遇到已抢占但尚未写入的槽位时自旋等待. 有多个线程消费时, 调用方需要保证同一时刻只有一个在调用 {@link #drainTo}.
+ * @Author: Lyn
+ * @Date: 2019/4/19 上午9:40
+ * @version : V1.0
+ */
+final class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    /**
+     * 下一个可抢占的序号
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 下一个要消费的序号, 只有消费者写
+     */
+    private volatile long head;
+
+    RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * 放入一个元素
+     * @return 队列已满时返回 false
+     */
+    boolean offer(E element) {
+        long sequence;
+        do {
+            sequence = this.tail.get();
+            if (sequence - this.head > this.mask) {
+                return false;
+            }
+        }
+        while (!this.tail.compareAndSet(sequence, sequence + 1));
+        this.slots.lazySet((int) sequence & this.mask, element);
+        return true;
+    }
+
+    /**
+     * 取出最多 max 个元素; 同一时刻只能有一个线程调用
+     * @return 取出的个数
+     */
+    int drainTo(List<? super E> to, int max) {
+        long head = this.head;
+        int count = (int) Math.min(max, this.tail.get() - head);
+        for (int i = 0; i < count; i++) {
+            int index = (int) (head + i) & this.mask;
+            E element;
+            while ((element = this.slots.get(index)) == null) {
+                Thread.yield();
+            }
+            this.slots.lazySet(index, null);
+            to.add(element);
+        }
+        this.head = head + count;
+        return count;
+    }
+
+    int size() {
+        return (int) (this.tail.get() - this.head);
+    }
+
+}
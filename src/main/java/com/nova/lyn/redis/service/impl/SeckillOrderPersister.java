@@ -0,0 +1,403 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.entity.SeckillOrder;
+import com.nova.lyn.redis.mapper.SeckillOrderMapper;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * @ClassName: SeckillOrderPersister
+ * @Description: 订单异步落库: 秒杀脚本在扣减库存的同时把成功订单 XADD 到 seckill:{productId}:stream,
+ * 抢购路径不等待数据库. 本类以消费组 seckill-orders 中的一个消费者身份读取订单流, 每批用一条多行 INSERT IGNORE 写入数据库,
+ * 写入返回 (即已提交) 后才 XACK 并删除这批消息.
+ * <p>
+ * 写入失败的消息留在本消费者的待确认列表中, 下一轮重新读取并重试, 连续失败时轮询间隔按指数退避; 消费者宕机时,
+ * 它的待确认消息空闲超过 claimIdle 后被其他消费者 XCLAIM 接管. 表上的唯一约束保证重复写入不会产生重复订单.
+ * <p>
+ * 毒消息: 格式错误的消息直接移到死信流 seckill:{productId}:stream:dead; 批量写入失败且批中有消息已投递
+ * {@link #setMaxDeliveries(int) maxDeliveries} 次时, 改为逐条写入, 仍然失败且达到投递次数的消息移到死信流, 不再挡住后面的订单.
+ * 死信流中的消息保留原消息 id 和字段, 可以人工修复后重新 XADD 到订单流.
+ * <p>
+ * Spring Data Redis 2.1 还没有 Stream 的 API, 这里直接使用 Lettuce 的命令, 因此需要 {@link LettuceConnectionFactory}.
+ * @Author: Lyn
+ * @Date: 2019/4/24 上午10:30
+ * @version : V1.0
+ */
+public class SeckillOrderPersister implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SeckillOrderPersister.class);
+
+    static final String GROUP = "seckill-orders";
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final long DEFAULT_POLL_INTERVAL = 100L;
+
+    private static final long DEFAULT_CLAIM_IDLE = 30000L;
+
+    private static final int DEFAULT_MAX_DELIVERIES = 16;
+
+    /**
+     * 连续失败时轮询间隔最多翻倍的次数
+     */
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * KEYS: 订单流; ARGV: 消费组. 订单流和消费组不存在时创建
+     */
+    private static final String CREATE_GROUP_SCRIPT =
+            "local result = redis.pcall('XGROUP', 'CREATE', KEYS[1], ARGV[1], '0', 'MKSTREAM')\n" +
+                    "if type(result) == 'table' and result.err and not string.find(result.err, 'BUSYGROUP') then\n" +
+                    "  return redis.error_reply(result.err)\n" +
+                    "end\n" +
+                    "return 1";
+
+    /**
+     * KEYS: 订单流; ARGV: 消费组, 消息id... 确认并删除已落库的消息
+     */
+    private static final String ACK_SCRIPT =
+            "redis.call('XACK', KEYS[1], ARGV[1], unpack(ARGV, 2))\n" +
+                    "return redis.call('XDEL', KEYS[1], unpack(ARGV, 2))";
+
+    /**
+     * KEYS: 订单流, 死信流; ARGV: 消费组, 消息id, 然后是消息的字段和值交替排列. 把消息移到死信流
+     */
+    private static final String DEAD_LETTER_SCRIPT =
+            "redis.call('XADD', KEYS[2], '*', 'id', ARGV[2], unpack(ARGV, 3))\n" +
+                    "redis.call('XACK', KEYS[1], ARGV[1], ARGV[2])\n" +
+                    "return redis.call('XDEL', KEYS[1], ARGV[2])";
+
+    private static final RedisScript<Long> createGroupScript = new DefaultRedisScript<>(CREATE_GROUP_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> ackScript = new DefaultRedisScript<>(ACK_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> deadLetterScript = new DefaultRedisScript<>(DEAD_LETTER_SCRIPT, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final SeckillOrderMapper orderMapper;
+
+    private final Consumer<byte[]> consumer;
+
+    private final Set<String> products = ConcurrentHashMap.newKeySet();
+
+    private final int batchSize;
+
+    private final long pollInterval;
+
+    private final long claimIdle;
+
+    private final Thread worker;
+
+    private volatile int maxDeliveries = DEFAULT_MAX_DELIVERIES;
+
+    private volatile boolean running = true;
+
+    public SeckillOrderPersister(RedisConnectionFactory connectionFactory, SeckillOrderMapper orderMapper,
+                                 String consumerName) {
+        this(connectionFactory, orderMapper, consumerName, DEFAULT_BATCH_SIZE, DEFAULT_POLL_INTERVAL, DEFAULT_CLAIM_IDLE);
+    }
+
+    /**
+     * @param connectionFactory Redis 连接, 必须是 Lettuce
+     * @param orderMapper 订单表
+     * @param consumerName 消费者名称, 每个节点不同
+     * @param batchSize 一次写入的最大订单数, 1 到 1000
+     * @param pollInterval 订单流为空时的轮询间隔, 毫秒
+     * @param claimIdle 其他消费者的待确认消息空闲多久后被接管, 毫秒
+     */
+    public SeckillOrderPersister(RedisConnectionFactory connectionFactory, SeckillOrderMapper orderMapper,
+                                 String consumerName, int batchSize, long pollInterval, long claimIdle) {
+        Assert.isInstanceOf(LettuceConnectionFactory.class, connectionFactory,
+                "Reading Redis Streams requires a LettuceConnectionFactory");
+        Assert.notNull(orderMapper, "'orderMapper' cannot be null");
+        Assert.hasText(consumerName, "'consumerName' must not be empty");
+        Assert.isTrue(batchSize > 0 && batchSize <= MAX_BATCH_SIZE, "'batchSize' must be between 1 and " + MAX_BATCH_SIZE);
+        Assert.isTrue(pollInterval > 0, "'pollInterval' must be greater than 0");
+        Assert.isTrue(claimIdle > 0, "'claimIdle' must be greater than 0");
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.orderMapper = orderMapper;
+        this.consumer = Consumer.from(bytes(GROUP), bytes(consumerName));
+        this.batchSize = batchSize;
+        this.pollInterval = pollInterval;
+        this.claimIdle = claimIdle;
+        this.worker = new Thread(this::run, "seckill-order-persister");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 设置消息最多投递几次后, 单独写入仍然失败就移到死信流; 默认 16
+     * @param maxDeliveries 投递次数
+     */
+    public void setMaxDeliveries(int maxDeliveries) {
+        Assert.isTrue(maxDeliveries > 0, "'maxDeliveries' must be greater than 0");
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    /**
+     * 开始持久化一个商品的订单; 可以在秒杀开始前或进行中调用, 之前进入订单流的订单也会被写入
+     * @param productId 商品id
+     */
+    public void watch(String productId) {
+        this.redisTemplate.execute(createGroupScript,
+                Collections.singletonList(RedisSeckillServiceImpl.streamKey(productId)), GROUP);
+        this.products.add(productId);
+    }
+
+    private void run() {
+        int failures = 0;
+        while (this.running) {
+            int persisted = 0;
+            boolean failed = false;
+            for (String productId : this.products) {
+                try {
+                    persisted += persist(productId);
+                }
+                catch (RuntimeException e) {
+                    // 消息留在待确认列表中, 下一轮重试
+                    failed = true;
+                    logger.error("Failed to persist the orders of product " + productId, e);
+                }
+            }
+            failures = failed ? failures + 1 : 0;
+            if (persisted == 0 || failed) {
+                try {
+                    Thread.sleep(this.pollInterval << Math.min(failures, MAX_BACKOFF_SHIFT));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取并写入一批订单
+     * @return 处理的订单数
+     */
+    int persist(String productId) {
+        String streamKey = RedisSeckillServiceImpl.streamKey(productId);
+        List<StreamMessage<byte[], byte[]>> messages = read(bytes(streamKey));
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        List<SeckillOrder> orders = new ArrayList<>(messages.size());
+        List<StreamMessage<byte[], byte[]>> wellFormed = new ArrayList<>(messages.size());
+        for (StreamMessage<byte[], byte[]> message : messages) {
+            try {
+                orders.add(toOrder(productId, message.getBody()));
+                wellFormed.add(message);
+            }
+            catch (RuntimeException e) {
+                deadLetter(streamKey, message, e);
+            }
+        }
+        if (orders.isEmpty()) {
+            return messages.size();
+        }
+        try {
+            this.orderMapper.insertIgnore(orders);
+        }
+        catch (RuntimeException e) {
+            if (!persistOneByOne(streamKey, wellFormed, orders)) {
+                throw e;
+            }
+            return messages.size();
+        }
+        ack(streamKey, wellFormed);
+        return messages.size();
+    }
+
+    /**
+     * 批量写入失败后, 如果批中有消息已达到最大投递次数, 逐条写入并把仍然失败的这些消息移到死信流
+     * @return 批中没有消息达到最大投递次数 (多半是数据库暂时不可用) 时返回 false, 整批留待重试
+     */
+    private boolean persistOneByOne(String streamKey, List<StreamMessage<byte[], byte[]>> messages,
+                                    List<SeckillOrder> orders) {
+        Map<String, Long> deliveries = deliveries(bytes(streamKey), messages);
+        int maxDeliveries = this.maxDeliveries;
+        if (deliveries.values().stream().noneMatch(count -> count >= maxDeliveries)) {
+            return false;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            StreamMessage<byte[], byte[]> message = messages.get(i);
+            try {
+                this.orderMapper.insertIgnore(Collections.singletonList(orders.get(i)));
+                ack(streamKey, Collections.singletonList(message));
+            }
+            catch (RuntimeException e) {
+                if (deliveries.getOrDefault(message.getId(), 0L) >= maxDeliveries) {
+                    deadLetter(streamKey, message, e);
+                }
+                else {
+                    logger.warn("Failed to persist order message " + message.getId() + " of " + streamKey, e);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void ack(String streamKey, List<StreamMessage<byte[], byte[]>> messages) {
+        Object[] ackArgs = new Object[messages.size() + 1];
+        ackArgs[0] = GROUP;
+        for (int i = 0; i < messages.size(); i++) {
+            ackArgs[i + 1] = messages.get(i).getId();
+        }
+        this.redisTemplate.execute(ackScript, Collections.singletonList(streamKey), ackArgs);
+    }
+
+    private void deadLetter(String streamKey, StreamMessage<byte[], byte[]> message, Exception cause) {
+        logger.error("Moving order message " + message.getId() + " of " + streamKey + " to the dead letter stream",
+                cause);
+        List<Object> args = new ArrayList<>();
+        args.add(GROUP);
+        args.add(message.getId());
+        for (Map.Entry<byte[], byte[]> field : message.getBody().entrySet()) {
+            args.add(string(field.getKey()));
+            args.add(string(field.getValue()));
+        }
+        this.redisTemplate.execute(deadLetterScript, Arrays.asList(streamKey, deadLetterKey(streamKey)),
+                args.toArray());
+    }
+
+    /**
+     * 本消费者待确认消息的投递次数, 消息id -> 次数
+     */
+    private Map<String, Long> deliveries(byte[] streamKey, List<StreamMessage<byte[], byte[]>> messages) {
+        String first = messages.get(0).getId();
+        String last = messages.get(messages.size() - 1).getId();
+        return this.redisTemplate.execute((RedisCallback<Map<String, Long>>) connection -> {
+            @SuppressWarnings("unchecked")
+            RedisStreamAsyncCommands<byte[], byte[]> commands =
+                    (RedisStreamAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            List<Object> pending = await(commands.xpending(streamKey, this.consumer, Range.create(first, last),
+                    Limit.from(this.batchSize)));
+            Map<String, Long> counts = new HashMap<>();
+            for (Object entry : pending) {
+                // [消息id, 消费者, 空闲毫秒数, 投递次数]
+                List<?> fields = (List<?>) entry;
+                counts.put(string(fields.get(0)), ((Number) fields.get(3)).longValue());
+            }
+            return counts;
+        });
+    }
+
+    static String deadLetterKey(String streamKey) {
+        return streamKey + ":dead";
+    }
+
+    /**
+     * 依次读取: 本消费者未确认的消息 (上次写入失败), 其他消费者空闲过久的消息, 新消息
+     */
+    private List<StreamMessage<byte[], byte[]>> read(byte[] streamKey) {
+        return this.redisTemplate.execute((RedisCallback<List<StreamMessage<byte[], byte[]>>>) connection -> {
+            @SuppressWarnings("unchecked")
+            RedisStreamAsyncCommands<byte[], byte[]> commands =
+                    (RedisStreamAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            XReadArgs count = XReadArgs.Builder.count(this.batchSize);
+            List<StreamMessage<byte[], byte[]>> messages = await(commands.xreadgroup(this.consumer, count,
+                    XReadArgs.StreamOffset.from(streamKey, "0")));
+            if (messages.isEmpty()) {
+                messages = claim(commands, streamKey);
+            }
+            if (messages.isEmpty()) {
+                messages = await(commands.xreadgroup(this.consumer, count, XReadArgs.StreamOffset.lastConsumed(streamKey)));
+            }
+            return messages;
+        });
+    }
+
+    private List<StreamMessage<byte[], byte[]>> claim(RedisStreamAsyncCommands<byte[], byte[]> commands, byte[] streamKey) {
+        List<Object> pending = await(commands.xpending(streamKey, this.consumer.getGroup(), Range.create("-", "+"),
+                Limit.from(this.batchSize)));
+        List<String> stale = new ArrayList<>();
+        for (Object entry : pending) {
+            // [消息id, 消费者, 空闲毫秒数, 投递次数]
+            List<?> fields = (List<?>) entry;
+            if (((Number) fields.get(2)).longValue() >= this.claimIdle) {
+                stale.add(string(fields.get(0)));
+            }
+        }
+        if (stale.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<StreamMessage<byte[], byte[]>> claimed = new ArrayList<>(await(commands.xclaim(streamKey, this.consumer,
+                this.claimIdle, stale.toArray(new String[0]))));
+        // 已被删除的消息返回 null
+        claimed.removeIf(message -> message == null || message.getBody() == null);
+        return claimed;
+    }
+
+    private static SeckillOrder toOrder(String productId, Map<byte[], byte[]> body) {
+        SeckillOrder order = new SeckillOrder();
+        order.setProductId(productId);
+        for (Map.Entry<byte[], byte[]> field : body.entrySet()) {
+            String name = string(field.getKey());
+            if ("userId".equals(name)) {
+                order.setUserId(string(field.getValue()));
+            }
+            else if ("time".equals(name)) {
+                order.setOrderTime(new Date(Long.parseLong(string(field.getValue()))));
+            }
+        }
+        if (order.getUserId() == null || order.getOrderTime() == null) {
+            throw new IllegalArgumentException("Malformed order message: " + body.size() + " fields");
+        }
+        return order;
+    }
+
+    private static <T> T await(RedisFuture<T> future) {
+        return LettuceFutures.awaitOrCancel(future, 10, TimeUnit.SECONDS);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(Object value) {
+        return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : String.valueOf(value);
+    }
+
+    /**
+     * 停止消费, 未确认的消息由其他消费者接管或在重启后处理
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        this.running = false;
+        this.worker.interrupt();
+        this.worker.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+}
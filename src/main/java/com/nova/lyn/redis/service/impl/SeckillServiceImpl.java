@@ -1,9 +1,12 @@
 package com.nova.lyn.redis.service.impl;
 
+import com.nova.lyn.redis.service.SeckillResult;
 import com.nova.lyn.redis.service.SeckillService;
 
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /***
  * @ClassName: SeckillServiceImpl
@@ -16,16 +19,19 @@ public class SeckillServiceImpl implements SeckillService {
 
     static Map<String,Integer> products;//模拟商品信息表
     static Map<String,Integer> stock;//模拟库存表
-    static Map<String,String> orders;//模拟下单成功用户表
+    static Map<String,BuyerBitmap> orders;//模拟下单成功用户表, 每个商品一个已购用户位图
+    static Map<String,Set<String>> otherOrders;//不是数字的 userId 放不进位图, 记在这里
     static {
         /**
          * 模拟多个表，商品信息表，库存表，秒杀成功订单表
          */
-        products = new HashMap<>();
-        stock = new HashMap<>();
-        orders = new HashMap<>();
+        products = new ConcurrentHashMap<>();
+        stock = new ConcurrentHashMap<>();
+        orders = new ConcurrentHashMap<>();
+        otherOrders = new ConcurrentHashMap<>();
         products.put("123456",100000);
         stock.put("123456",100000);
+        orders.put("123456",new BuyerBitmap());
     }
 
     private String queryMap(String productId){//模拟查询数据库
@@ -33,7 +39,13 @@ public class SeckillServiceImpl implements SeckillService {
                 +products.get(productId)
                 +"台,还剩:"+stock.get(productId)
                 +"台,该商品成功下单用户数:"
-                +orders.size()+"人";
+                +buyers(productId)+"人";
+    }
+
+    private long buyers(String productId){
+        BuyerBitmap buyers = orders.get(productId);
+        Set<String> others = otherOrders.get(productId);
+        return (buyers == null ? 0 : buyers.cardinality()) + (others == null ? 0 : others.size());
     }
 
     @Override
@@ -41,5 +53,32 @@ public class SeckillServiceImpl implements SeckillService {
         return this.queryMap(productId);
     }
 
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        long id = BuyerBitmap.toUserId(userId);//0 到 2^32 - 1 之间的数字记在位图中, 其他 userId 记在 otherOrders 中
+        synchronized (stock) {//检查库存和扣减库存必须一起完成
+            Integer remaining = stock.get(productId);
+            if (remaining == null) {
+                return SeckillResult.NOT_FOUND;
+            }
+            BuyerBitmap buyers = orders.computeIfAbsent(productId, key -> new BuyerBitmap());
+            Set<String> others = otherOrders.computeIfAbsent(productId, key -> new HashSet<>());
+            if (id < 0 ? others.contains(userId) : buyers.contains(id)) {
+                return SeckillResult.REPEATED;
+            }
+            if (remaining <= 0) {
+                return SeckillResult.SOLD_OUT;
+            }
+            stock.put(productId, remaining - 1);
+            if (id < 0) {
+                others.add(userId);
+            }
+            else {
+                buyers.add(id);
+            }
+            return SeckillResult.SUCCESS;
+        }
+    }
+
 
 }
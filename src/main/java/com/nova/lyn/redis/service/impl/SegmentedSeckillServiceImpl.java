@@ -0,0 +1,437 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/***
+ * @ClassName: SegmentedSeckillServiceImpl
+ * @Description: 分段库存秒杀实现: 每个节点从 Redis 的中心库存 seckill:{productId}:stock 租一批库存, 拆到按 CPU 核数划分的
+ * 本地分段 ({@link StockSegments}) 中, 抢购时只在本地扣减, 绝大多数请求不需要访问网络.
+ * <p>
+ * 每个节点租到且尚未记入订单的件数记在 seckill:{productId}:leases (nodeId -> 件数) 中, 所以
+ * stock + leases 之和始终等于尚未售出的库存. 对账任务每隔 reconcileInterval 毫秒:
+ * 把本地订单批量记入已购用户 (与 {@link RedisSeckillServiceImpl} 相同, 见 {@link RedisBuyerBitmap}) 和订单流, 并相应减少本节点的租约; 本地库存在一个周期内没有卖出时还给中心库存;
+ * 回收心跳超时 (默认 30 秒) 的节点的租约.
+ * <p>
+ * 超过 nodeTimeout / 2 没有对账成功的商品被隔离: 本地分段库存全部取出, 不再本地售卖, 抢购改走中心库存脚本
+ * ({@link RedisSeckillServiceImpl}), 所以租约被其他节点回收之前本节点已经停止使用它. 恢复对账后, 租约还在就把取出的库存还给中心库存,
+ * 租约已被回收就直接丢弃.
+ * <p>
+ * 注意: 订单最多延迟一个对账周期写入 Redis, 节点宕机会丢失尚未写入的订单. 同一用户在不同节点重复抢购只能在对账时发现;
+ * 租约被回收后中心库存也可能已经不够记入本节点隔离前卖出的订单. 这两种订单在对账时被丢弃, 并交给
+ * {@link #setDroppedOrderHandler(BiConsumer)} 设置的回调通知调用方 (默认只记录日志).
+ * @Author: Lyn
+ * @Date: 2019/4/15 下午3:30
+ * @version : V1.0
+ */
+public class SegmentedSeckillServiceImpl implements SeckillService, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SegmentedSeckillServiceImpl.class);
+
+    private static final int DEFAULT_LEASE_SIZE = 1000;
+
+    private static final long DEFAULT_RECONCILE_INTERVAL = 200L;
+
+    private static final long DEFAULT_NODE_TIMEOUT = 30000L;
+
+    /**
+     * 每次最多租走剩余中心库存的 1/LEASE_DIVISOR, 避免秒杀尾声时库存全部压在一个节点上
+     */
+    private static final int LEASE_DIVISOR = 4;
+
+    private static final String TIME =
+            "redis.replicate_commands()\n" +
+                    "local time = redis.call('TIME')\n" +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n";
+
+    /**
+     * KEYS: 库存, 租约, 心跳; ARGV: nodeId, 最多租多少件, LEASE_DIVISOR.
+     * 返回租到的件数, 商品不存在返回 -1
+     */
+    private static final String LEASE_SCRIPT = TIME +
+            "local stock = tonumber(redis.call('GET', KEYS[1]))\n" +
+            "if not stock then\n" +
+            "  return -1\n" +
+            "end\n" +
+            "redis.call('HSET', KEYS[3], ARGV[1], now)\n" +
+            "if stock <= 0 then\n" +
+            "  return 0\n" +
+            "end\n" +
+            "local units = math.min(tonumber(ARGV[2]), math.max(1, math.floor(stock / tonumber(ARGV[3]))))\n" +
+            "redis.call('DECRBY', KEYS[1], units)\n" +
+            "redis.call('HINCRBY', KEYS[2], ARGV[1], units)\n" +
+            "return units";
+
+    /**
+     * KEYS: 库存, 租约, 心跳; ARGV: nodeId, 归还件数
+     */
+    private static final String RETURN_SCRIPT =
+            "redis.call('INCRBY', KEYS[1], ARGV[2])\n" +
+                    "redis.call('HINCRBY', KEYS[2], ARGV[1], -tonumber(ARGV[2]))\n" +
+                    "return true";
+
+    /**
+     * KEYS: 库存, 租约, 心跳, 订单, 已购用户数, 订单流; ARGV: nodeId, 节点超时, 然后是 userId 和下单时间交替排列.
+     * 写入订单并减少本节点的租约, 回收超时节点的租约. 本节点的租约已被回收时订单改从中心库存扣减, 库存不足的订单被丢弃;
+     * 返回 {本节点的租约是否已被回收 (1/0), 被丢弃 (重复购买或库存不足) 的 userId...}
+     */
+    private static final String RECONCILE_SCRIPT = TIME + RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "local reclaimed = redis.call('HEXISTS', KEYS[3], ARGV[1]) == 0 and 1 or 0\n" +
+            "local result = {reclaimed}\n" +
+            "local recorded = 0\n" +
+            "for i = 3, #ARGV, 2 do\n" +
+            "  if not has_bought(KEYS[5], KEYS[4], ARGV[i])\n" +
+            "      and (reclaimed == 0 or tonumber(redis.call('GET', KEYS[1]) or '0') > 0) then\n" +
+            "    record_buyer(KEYS[5], KEYS[4], ARGV[i], ARGV[i + 1])\n" +
+            "    redis.call('XADD', KEYS[6], 'MAXLEN', '~', " + RedisSeckillServiceImpl.STREAM_MAX_LEN
+            + ", '*', 'userId', ARGV[i], 'time', ARGV[i + 1])\n" +
+            "    if reclaimed == 1 then\n" +
+            "      redis.call('DECR', KEYS[1])\n" +
+            "    end\n" +
+            "    recorded = recorded + 1\n" +
+            "  else\n" +
+            "    result[#result + 1] = ARGV[i]\n" +
+            "  end\n" +
+            "end\n" +
+            "if reclaimed == 0 and recorded > 0 then\n" +
+            "  redis.call('HINCRBY', KEYS[2], ARGV[1], -recorded)\n" +
+            "end\n" +
+            "redis.call('HSET', KEYS[3], ARGV[1], now)\n" +
+            "local heartbeats = redis.call('HGETALL', KEYS[3])\n" +
+            "for i = 1, #heartbeats, 2 do\n" +
+            "  if tonumber(heartbeats[i + 1]) < now - tonumber(ARGV[2]) then\n" +
+            "    local leased = tonumber(redis.call('HGET', KEYS[2], heartbeats[i]) or '0')\n" +
+            "    redis.call('INCRBY', KEYS[1], leased)\n" +
+            "    redis.call('HDEL', KEYS[2], heartbeats[i])\n" +
+            "    redis.call('HDEL', KEYS[3], heartbeats[i])\n" +
+            "  end\n" +
+            "end\n" +
+            "return result";
+
+    private static final RedisScript<Long> leaseScript = new DefaultRedisScript<>(LEASE_SCRIPT, Long.class);
+
+    private static final RedisScript<Boolean> returnScript = new DefaultRedisScript<>(RETURN_SCRIPT, Boolean.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> reconcileScript = new DefaultRedisScript<>(RECONCILE_SCRIPT, List.class);
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisSeckillServiceImpl redisSeckillService;
+
+    private final Map<String, ProductStock> products = new ConcurrentHashMap<>();
+
+    private final int leaseSize;
+
+    private final long nodeTimeout;
+
+    private volatile BiConsumer<String, String> droppedOrderHandler = (productId, userId) -> { };
+
+    private final ScheduledExecutorService reconciler =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("seckill-reconciler-"));
+
+    public SegmentedSeckillServiceImpl(RedisConnectionFactory connectionFactory) {
+        this(connectionFactory, DEFAULT_LEASE_SIZE, DEFAULT_RECONCILE_INTERVAL, DEFAULT_NODE_TIMEOUT);
+    }
+
+    /**
+     * @param connectionFactory Redis 连接
+     * @param leaseSize 每次最多租多少件库存
+     * @param reconcileInterval 对账周期, 毫秒
+     * @param nodeTimeout 节点心跳超时, 毫秒, 超时节点的租约被回收; 必须远大于对账周期
+     */
+    public SegmentedSeckillServiceImpl(RedisConnectionFactory connectionFactory, int leaseSize,
+                                       long reconcileInterval, long nodeTimeout) {
+        Assert.isTrue(leaseSize > 0, "'leaseSize' must be greater than 0");
+        Assert.isTrue(nodeTimeout > reconcileInterval * 10, "'nodeTimeout' must be much greater than 'reconcileInterval'");
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.redisSeckillService = new RedisSeckillServiceImpl(connectionFactory);
+        this.leaseSize = leaseSize;
+        this.nodeTimeout = nodeTimeout;
+        this.reconciler.scheduleWithFixedDelay(this::reconcile, reconcileInterval, reconcileInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置对账时丢弃订单的回调, 参数为商品id和userId; 回调在对账线程中执行, 不能阻塞
+     * @param droppedOrderHandler 回调
+     */
+    public void setDroppedOrderHandler(BiConsumer<String, String> droppedOrderHandler) {
+        Assert.notNull(droppedOrderHandler, "'droppedOrderHandler' cannot be null");
+        this.droppedOrderHandler = droppedOrderHandler;
+    }
+
+    /**
+     * 初始化商品库存, 清空已有订单和租约; 只能在秒杀开始前调用
+     * @param productId 商品id
+     * @param quantity 秒杀总量
+     */
+    public void initProduct(String productId, int quantity) {
+        this.redisTemplate.delete(Arrays.asList(leasesKey(productId), heartbeatsKey(productId)));
+        this.redisSeckillService.initProduct(productId, quantity);
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        List<String> values = this.redisTemplate.opsForValue().multiGet(Arrays.asList(RedisSeckillServiceImpl.totalKey(productId),
+                RedisSeckillServiceImpl.stockKey(productId), RedisBuyerBitmap.countKey(productId)));
+        long remaining = values.get(1) == null ? 0 : Long.parseLong(values.get(1));
+        for (Object leased : this.redisTemplate.opsForHash().values(leasesKey(productId))) {
+            remaining += Long.parseLong((String) leased);
+        }
+        long buyers = this.redisTemplate.opsForHash().size(RedisSeckillServiceImpl.ordersKey(productId))
+                + (values.get(2) == null ? 0 : Long.parseLong(values.get(2)));
+        return "国庆活动，iPhone100，限量"
+                + values.get(0)
+                + "台,还剩:" + remaining
+                + "台,该商品成功下单用户数:"
+                + buyers + "人";
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        ProductStock stock = this.products.computeIfAbsent(productId, ProductStock::new);
+        if (!stock.buyers.add(userId)) {
+            return SeckillResult.REPEATED;
+        }
+        if (stock.isFenced()) {
+            return stock.sellThroughRedis(userId);
+        }
+        SeckillResult result = stock.take();
+        if (result == SeckillResult.SUCCESS) {
+            stock.pendingOrders.add(new String[] { userId, String.valueOf(System.currentTimeMillis()) });
+            stock.sold.incrementAndGet();
+        }
+        else {
+            stock.buyers.remove(userId);
+        }
+        return result;
+    }
+
+    /**
+     * 立即对账一次; 对账任务会定期调用
+     */
+    public void reconcile() {
+        for (ProductStock stock : this.products.values()) {
+            try {
+                stock.reconcile();
+            }
+            catch (Exception e) {
+                logger.error("Failed to reconcile the stock of product " + stock.productId, e);
+            }
+        }
+    }
+
+    /**
+     * 停止对账任务, 写入剩余订单并归还全部本地库存
+     */
+    @Override
+    public void destroy() {
+        this.reconciler.shutdown();
+        try {
+            this.reconciler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ProductStock stock : this.products.values()) {
+            try {
+                stock.reconcile();
+                stock.returnUnits(stock.segments.drain());
+            }
+            catch (Exception e) {
+                logger.error("Failed to return the stock of product " + stock.productId, e);
+            }
+        }
+    }
+
+    static String leasesKey(String productId) {
+        return "seckill:{" + productId + "}:leases";
+    }
+
+    static String heartbeatsKey(String productId) {
+        return "seckill:{" + productId + "}:heartbeats";
+    }
+
+    private final class ProductStock {
+
+        private final String productId;
+
+        private final List<String> keys;
+
+        private final StockSegments segments = new StockSegments(Runtime.getRuntime().availableProcessors());
+
+        private final Set<String> buyers = ConcurrentHashMap.newKeySet();
+
+        private final Queue<String[]> pendingOrders = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong sold = new AtomicLong();
+
+        /**
+         * 上次对账时的 sold, 只在对账线程中访问
+         */
+        private long soldAtLastReconcile;
+
+        private volatile boolean notFound;
+
+        /**
+         * 上次对账成功的时间
+         */
+        private volatile long reconciledAt = System.currentTimeMillis();
+
+        /**
+         * 隔离时从本地分段取出、尚未还给中心库存的件数
+         */
+        private final AtomicInteger fencedUnits = new AtomicInteger();
+
+        ProductStock(String productId) {
+            this.productId = productId;
+            this.keys = Arrays.asList(RedisSeckillServiceImpl.stockKey(productId), leasesKey(productId),
+                    heartbeatsKey(productId), RedisSeckillServiceImpl.ordersKey(productId),
+                    RedisBuyerBitmap.countKey(productId), RedisSeckillServiceImpl.streamKey(productId));
+        }
+
+        SeckillResult take() {
+            if (this.segments.tryTake()) {
+                return SeckillResult.SUCCESS;
+            }
+            synchronized (this) {//同一时间只有一个线程去租库存, 其他线程等它租完再扣本地库存
+                if (this.segments.tryTake()) {
+                    return SeckillResult.SUCCESS;
+                }
+                Long leased = SegmentedSeckillServiceImpl.this.redisTemplate.execute(leaseScript,
+                        this.keys.subList(0, 3), SegmentedSeckillServiceImpl.this.nodeId,
+                        String.valueOf(SegmentedSeckillServiceImpl.this.leaseSize), String.valueOf(LEASE_DIVISOR));
+                if (leased == null || leased < 0) {
+                    this.notFound = true;
+                    return SeckillResult.NOT_FOUND;
+                }
+                this.notFound = false;
+                if (leased == 0) {
+                    return SeckillResult.SOLD_OUT;
+                }
+                this.segments.add(leased.intValue() - 1);
+                return SeckillResult.SUCCESS;
+            }
+        }
+
+        boolean isFenced() {
+            return System.currentTimeMillis() - this.reconciledAt > SegmentedSeckillServiceImpl.this.nodeTimeout / 2;
+        }
+
+        SeckillResult sellThroughRedis(String userId) {
+            int units = this.segments.drain();
+            if (units > 0) {
+                this.fencedUnits.addAndGet(units);
+                logger.warn("The stock of product " + this.productId + " has not been reconciled since "
+                        + this.reconciledAt + "; stopped selling " + units + " local units");
+            }
+            SeckillResult result;
+            try {
+                result = SegmentedSeckillServiceImpl.this.redisSeckillService.seckill(this.productId, userId);
+            }
+            catch (RuntimeException e) {
+                this.buyers.remove(userId);
+                throw e;
+            }
+            if (result != SeckillResult.SUCCESS && result != SeckillResult.REPEATED) {
+                this.buyers.remove(userId);
+            }
+            return result;
+        }
+
+        void reconcile() {
+            List<String[]> orders = new ArrayList<>();
+            String[] order;
+            while ((order = this.pendingOrders.poll()) != null) {
+                orders.add(order);
+            }
+            Object[] args = new Object[orders.size() * 2 + 2];
+            args[0] = SegmentedSeckillServiceImpl.this.nodeId;
+            args[1] = String.valueOf(SegmentedSeckillServiceImpl.this.nodeTimeout);
+            for (int i = 0; i < orders.size(); i++) {
+                args[i * 2 + 2] = orders.get(i)[0];
+                args[i * 2 + 3] = orders.get(i)[1];
+            }
+            List<?> result;
+            try {
+                result = SegmentedSeckillServiceImpl.this.redisTemplate.execute(reconcileScript, this.keys, args);
+            }
+            catch (RuntimeException e) {
+                this.pendingOrders.addAll(orders);
+                throw e;
+            }
+            if (result == null || result.isEmpty()) {
+                this.pendingOrders.addAll(orders);
+                throw new IllegalStateException("No result from the reconcile script");
+            }
+            this.reconciledAt = System.currentTimeMillis();
+            if (result.size() > 1) {
+                logger.warn("Dropped " + (result.size() - 1) + " orders of product " + this.productId
+                        + " already bought on another node or no longer in stock: " + result.subList(1, result.size()));
+                for (Object userId : result.subList(1, result.size())) {
+                    this.buyers.remove(userId);
+                    try {
+                        SegmentedSeckillServiceImpl.this.droppedOrderHandler.accept(this.productId, (String) userId);
+                    }
+                    catch (RuntimeException e) {
+                        logger.error("The dropped order handler failed for product " + this.productId, e);
+                    }
+                }
+            }
+            if (Long.valueOf(1L).equals(result.get(0))) {
+                // 本节点的租约被当作超时回收了, 本地剩余库存已经还给中心库存
+                int dropped = this.segments.drain() + this.fencedUnits.getAndSet(0);
+                logger.warn("The stock lease of product " + this.productId + " was reclaimed; dropped "
+                        + dropped + " local units");
+            }
+            else {
+                if (result.size() > 1) {
+                    this.segments.add(result.size() - 1);
+                }
+                returnUnits(this.fencedUnits.getAndSet(0));
+            }
+            long soldNow = this.sold.get();
+            if (soldNow == this.soldAtLastReconcile && !this.notFound) {
+                returnUnits(this.segments.drain());
+            }
+            this.soldAtLastReconcile = soldNow;
+        }
+
+        void returnUnits(int units) {
+            if (units > 0) {
+                SegmentedSeckillServiceImpl.this.redisTemplate.execute(returnScript, this.keys.subList(0, 3),
+                        SegmentedSeckillServiceImpl.this.nodeId, String.valueOf(units));
+            }
+        }
+
+    }
+
+}
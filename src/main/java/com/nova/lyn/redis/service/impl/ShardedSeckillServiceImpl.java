@@ -0,0 +1,272 @@
+package com.nova.lyn.redis.service.impl;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * @ClassName: ShardedSeckillServiceImpl
+ * @Description: 热点库存分片秒杀实现: 一个商品的库存平均拆到 K 个分片 seckill:{productId:i}:stock 上, 每个分片的 hash tag 不同,
+ * 集群模式下分布在不同的 slot 上, 单个热点 key 不再是瓶颈.
+ * <p>
+ * 已购用户按 userId 的 hash 记在用户的"主分片"中, 以便在分片内原子地拒绝重复购买: 数字 userId 记在主分片的位图
+ * ({@link RedisBuyerBitmap}, 用户数 key 为 seckill:{productId:h}:buyers) 中, 分片实现没有订单流, 不保留它们的下单时间;
+ * 其他 userId 记在 seckill:{productId:h}:orders 中, userId -> 下单时间.
+ * 抢购先执行主分片的脚本 (查重, 扣主分片库存, 记订单); 主分片卖完时, 脚本先在 seckill:{productId:h}:pending 中记下
+ * userId -> 标记时间占住位置, 再从一个随机分片开始依次尝试扣减其他分片的库存, 成功后确认订单, 全部卖完或出错时删除 pending 标记.
+ * 每次扣减都在脚本里检查库存, 不会超卖. 客户端宕机留下的 pending 标记超过 {@link #PENDING_TIMEOUT} 毫秒后视为不存在,
+ * 不会永久挡住该用户; pending 标记不计入下单用户数.
+ * <p>
+ * 库存只减不增, 所以某个分片返回卖完后本地就记住它, 以后不再访问; 全部分片都卖完时直接返回 SOLD_OUT, 不访问 Redis.
+ * @Author: Lyn
+ * @Date: 2019/4/17 上午11:20
+ * @version : V1.0
+ */
+public class ShardedSeckillServiceImpl implements SeckillService {
+
+    private static final int MAX_SHARDS = 64;
+
+    /**
+     * pending 标记的有效期, 毫秒; 远大于一次跨分片扣减所需的时间
+     */
+    static final long PENDING_TIMEOUT = 10000L;
+
+    /**
+     * KEYS: 主分片库存, 主分片订单, 主分片 pending, 主分片已购用户数; ARGV: userId, 下单时间, pending 有效期.
+     * 返回 1 成功, 0 主分片卖完 (已标记 pending, 值为下单时间), -1 商品不存在, -2 重复购买或正在其他分片抢购
+     */
+    private static final String PURCHASE_SCRIPT = RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "local stock = tonumber(redis.call('GET', KEYS[1]))\n" +
+                    "if not stock then\n" +
+                    "  return -1\n" +
+                    "end\n" +
+                    "if has_bought(KEYS[4], KEYS[2], ARGV[1]) then\n" +
+                    "  return -2\n" +
+                    "end\n" +
+                    "local pending = tonumber(redis.call('HGET', KEYS[3], ARGV[1]))\n" +
+                    "if pending and tonumber(ARGV[2]) - pending < tonumber(ARGV[3]) then\n" +
+                    "  return -2\n" +
+                    "end\n" +
+                    "if stock > 0 then\n" +
+                    "  redis.call('DECR', KEYS[1])\n" +
+                    "  record_buyer(KEYS[4], KEYS[2], ARGV[1], ARGV[2])\n" +
+                    "  if pending then\n" +
+                    "    redis.call('HDEL', KEYS[3], ARGV[1])\n" +
+                    "  end\n" +
+                    "  return 1\n" +
+                    "end\n" +
+                    "redis.call('HSET', KEYS[3], ARGV[1], ARGV[2])\n" +
+                    "return 0";
+
+    /**
+     * KEYS: 主分片订单, 主分片 pending, 主分片已购用户数; ARGV: userId, 下单时间.
+     * pending 标记还是本次抢购的就确认订单并返回 1, 否则 (已过期被其他请求取代) 返回 0
+     */
+    private static final String CONFIRM_SCRIPT = RedisBuyerBitmap.SCRIPT_FUNCTIONS +
+            "if redis.call('HGET', KEYS[2], ARGV[1]) ~= ARGV[2] then\n" +
+                    "  return 0\n" +
+                    "end\n" +
+                    "redis.call('HDEL', KEYS[2], ARGV[1])\n" +
+                    "record_buyer(KEYS[3], KEYS[1], ARGV[1], ARGV[2])\n" +
+                    "return 1";
+
+    /**
+     * KEYS: 主分片 pending; ARGV: userId, 下单时间. 只删除本次抢购的 pending 标记
+     */
+    private static final String CLEAR_SCRIPT =
+            "if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then\n" +
+                    "  redis.call('HDEL', KEYS[1], ARGV[1])\n" +
+                    "end\n" +
+                    "return 1";
+
+    /**
+     * KEYS: 分片库存. 返回 1 扣减成功, 0 分片卖完, -1 商品不存在
+     */
+    private static final String TAKE_SCRIPT =
+            "local stock = tonumber(redis.call('GET', KEYS[1]))\n" +
+                    "if not stock then\n" +
+                    "  return -1\n" +
+                    "end\n" +
+                    "if stock > 0 then\n" +
+                    "  redis.call('DECR', KEYS[1])\n" +
+                    "  return 1\n" +
+                    "end\n" +
+                    "return 0";
+
+    private static final RedisScript<Long> purchaseScript = new DefaultRedisScript<>(PURCHASE_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> takeScript = new DefaultRedisScript<>(TAKE_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> confirmScript = new DefaultRedisScript<>(CONFIRM_SCRIPT, Long.class);
+
+    private static final RedisScript<Long> clearScript = new DefaultRedisScript<>(CLEAR_SCRIPT, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisBuyerBitmap buyerBitmap;
+
+    private final int shards;
+
+    /**
+     * 每个商品已经卖完的分片, 按位记录
+     */
+    private final Map<String, AtomicLong> soldOutShards = new ConcurrentHashMap<>();
+
+    private final long allSoldOut;
+
+    /**
+     * @param connectionFactory Redis 连接
+     * @param shards 每个商品的库存分片数, 1 到 64
+     */
+    public ShardedSeckillServiceImpl(RedisConnectionFactory connectionFactory, int shards) {
+        Assert.notNull(connectionFactory, "'connectionFactory' cannot be null");
+        Assert.isTrue(shards > 0 && shards <= MAX_SHARDS, "'shards' must be between 1 and " + MAX_SHARDS);
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.buyerBitmap = new RedisBuyerBitmap(connectionFactory);
+        this.shards = shards;
+        this.allSoldOut = shards == MAX_SHARDS ? -1L : (1L << shards) - 1;
+    }
+
+    /**
+     * 初始化商品库存, 平均分到各个分片, 清空已有订单; 只能在秒杀开始前调用
+     * @param productId 商品id
+     * @param quantity 秒杀总量
+     */
+    public void initProduct(String productId, int quantity) {
+        this.redisTemplate.opsForValue().set(RedisSeckillServiceImpl.totalKey(productId), String.valueOf(quantity));
+        for (int i = 0; i < this.shards; i++) {
+            int share = quantity / this.shards + (i < quantity % this.shards ? 1 : 0);
+            this.redisTemplate.delete(Arrays.asList(ordersKey(productId, i), pendingKey(productId, i)));
+            this.buyerBitmap.clear(shardId(productId, i));
+            this.redisTemplate.opsForValue().set(stockKey(productId, i), String.valueOf(share));
+        }
+        this.soldOutShards.remove(productId);
+    }
+
+    @Override
+    public String queryProductStore(String productId) {
+        List<String> keys = new ArrayList<>(this.shards * 2 + 1);
+        keys.add(RedisSeckillServiceImpl.totalKey(productId));
+        for (int i = 0; i < this.shards; i++) {
+            keys.add(stockKey(productId, i));
+        }
+        for (int i = 0; i < this.shards; i++) {
+            keys.add(buyersKey(productId, i));
+        }
+        List<String> values = this.redisTemplate.opsForValue().multiGet(keys);
+        long remaining = 0;
+        for (String value : values.subList(1, this.shards + 1)) {
+            remaining += value == null ? 0 : Long.parseLong(value);
+        }
+        long buyers = 0;
+        for (String value : values.subList(this.shards + 1, values.size())) {
+            buyers += value == null ? 0 : Long.parseLong(value);
+        }
+        List<Object> sizes = this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < this.shards; i++) {
+                stringConnection.hLen(ordersKey(productId, i));
+            }
+            return null;
+        });
+        for (Object size : sizes) {
+            buyers += (Long) size;
+        }
+        return "国庆活动，iPhone100，限量"
+                + values.get(0)
+                + "台,还剩:" + remaining
+                + "台,该商品成功下单用户数:"
+                + buyers + "人";
+    }
+
+    @Override
+    public SeckillResult seckill(String productId, String userId) {
+        AtomicLong soldOut = this.soldOutShards.computeIfAbsent(productId, key -> new AtomicLong());
+        if (soldOut.get() == this.allSoldOut) {
+            return SeckillResult.SOLD_OUT;
+        }
+        int home = Math.floorMod(userId.hashCode(), this.shards);
+        List<String> orderKeys = Arrays.asList(ordersKey(productId, home), pendingKey(productId, home),
+                buyersKey(productId, home));
+        String time = String.valueOf(System.currentTimeMillis());
+        SeckillResult result = RedisSeckillServiceImpl.toResult(this.redisTemplate.execute(purchaseScript,
+                Arrays.asList(stockKey(productId, home), orderKeys.get(0), orderKeys.get(1), orderKeys.get(2)), userId, time,
+                String.valueOf(PENDING_TIMEOUT)));
+        if (result != SeckillResult.SOLD_OUT) {
+            return result;
+        }
+        markSoldOut(soldOut, home);
+        boolean confirmed = false;
+        try {
+            int start = ThreadLocalRandom.current().nextInt(this.shards);
+            for (int i = 0; i < this.shards; i++) {
+                int shard = (start + i) % this.shards;
+                if ((soldOut.get() & (1L << shard)) != 0) {
+                    continue;
+                }
+                String stockKey = stockKey(productId, shard);
+                Long taken = this.redisTemplate.execute(takeScript, Collections.singletonList(stockKey));
+                if (Long.valueOf(1L).equals(taken)) {
+                    confirmed = Long.valueOf(1L).equals(
+                            this.redisTemplate.execute(confirmScript, orderKeys, userId, time));
+                    if (confirmed) {
+                        return SeckillResult.SUCCESS;
+                    }
+                    // pending 标记已过期并被同一用户的其他请求取代, 把扣掉的库存还回去
+                    this.redisTemplate.opsForValue().increment(stockKey);
+                    return SeckillResult.REPEATED;
+                }
+                markSoldOut(soldOut, shard);
+            }
+            return SeckillResult.SOLD_OUT;
+        }
+        finally {
+            if (!confirmed) {
+                this.redisTemplate.execute(clearScript, Collections.singletonList(orderKeys.get(1)), userId, time);
+            }
+        }
+    }
+
+    private static void markSoldOut(AtomicLong soldOut, int shard) {
+        long bits;
+        while (((bits = soldOut.get()) & (1L << shard)) == 0 && !soldOut.compareAndSet(bits, bits | (1L << shard))) {
+            // retry
+        }
+    }
+
+    static String stockKey(String productId, int shard) {
+        return "seckill:{" + productId + ":" + shard + "}:stock";
+    }
+
+    static String ordersKey(String productId, int shard) {
+        return "seckill:{" + productId + ":" + shard + "}:orders";
+    }
+
+    static String pendingKey(String productId, int shard) {
+        return "seckill:{" + productId + ":" + shard + "}:pending";
+    }
+
+    static String buyersKey(String productId, int shard) {
+        return RedisBuyerBitmap.countKey(shardId(productId, shard));
+    }
+
+    private static String shardId(String productId, int shard) {
+        return productId + ":" + shard;
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.nova.lyn.redis.service.impl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/***
+ * @ClassName: StockSegments
+ * @Description: 本地库存分段: 节点租到的库存按 CPU 核数拆成多个计数器, 线程优先扣减自己的分段, 为空时再去其他分段取,
+ * 互不竞争同一个计数器. 每个计数器独占一个缓存行, 避免伪共享.
+ * @Author: Lyn
+ * @Date: 2019/4/15 下午2:10
+ * @version : V1.0
+ */
+final class StockSegments {
+
+    /**
+     * 一个缓存行 (64 字节) 可以放下的 int 个数
+     */
+    private static final int STRIDE = 16;
+
+    private final int mask;
+
+    private final AtomicIntegerArray counts;
+
+    StockSegments(int segments) {
+        int size = 1;
+        while (size < segments) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.counts = new AtomicIntegerArray(size * STRIDE);
+    }
+
+    /**
+     * 扣减一件库存
+     * @return 本地没有库存时返回 false
+     */
+    boolean tryTake() {
+        int home = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= this.mask; i++) {
+            int index = ((home + i) & this.mask) * STRIDE;
+            int count;
+            while ((count = this.counts.get(index)) > 0) {
+                if (this.counts.compareAndSet(index, count, count - 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把库存平均分到各个分段
+     * @param units 件数
+     */
+    void add(int units) {
+        int segments = this.mask + 1;
+        int base = units / segments;
+        int remainder = units % segments;
+        for (int i = 0; i < segments; i++) {
+            int share = base + (i < remainder ? 1 : 0);
+            if (share > 0) {
+                this.counts.addAndGet(i * STRIDE, share);
+            }
+        }
+    }
+
+    /**
+     * 取走全部本地库存
+     * @return 取走的件数
+     */
+    int drain() {
+        int drained = 0;
+        for (int i = 0; i <= this.mask; i++) {
+            drained += this.counts.getAndSet(i * STRIDE, 0);
+        }
+        return drained;
+    }
+
+    int available() {
+        int available = 0;
+        for (int i = 0; i <= this.mask; i++) {
+            available += this.counts.get(i * STRIDE);
+        }
+        return available;
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.nova.lyn.redis.web;
+
+import com.nova.lyn.redis.service.ReactiveSeckillService;
+import com.nova.lyn.redis.service.SeckillResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/***
+ * @ClassName: SeckillController
+ * @Description: 秒杀接口, 运行在 WebFlux 上, 整个请求链路不阻塞事件循环线程.
+ * <p>
+ * 每个商品同时在处理中的抢购请求最多 seckill.admission.max-pending 个 (相当于一个有界的准入队列), 超出的请求立即返回 429,
+ * 不再排队等待 Redis, 这样高峰期的延迟不会随积压增长. 请求完成, 出错或客户端断开时释放名额; 名额全部释放后删除该商品的计数,
+ * 所以计数表只包含有请求在处理中的商品, 不会被随意的商品id撑大.
+ * <p>
+ * 返回码: 200 抢购成功, 409 重复购买, 410 已售罄, 404 商品不存在, 429 请求过多请重试.
+ * @Author: Lyn
+ * @Date: 2019/4/26 上午11:00
+ * @version : V1.0
+ */
+@RestController
+@RequestMapping("/seckill")
+public class SeckillController {
+
+    private final ReactiveSeckillService seckillService;
+
+    private final int maxPending;
+
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+
+    public SeckillController(ReactiveSeckillService seckillService,
+                             @Value("${seckill.admission.max-pending:1000}") int maxPending) {
+        Assert.notNull(seckillService, "'seckillService' cannot be null");
+        Assert.isTrue(maxPending > 0, "'maxPending' must be greater than 0");
+        this.seckillService = seckillService;
+        this.maxPending = maxPending;
+    }
+
+    @GetMapping("/{productId}")
+    public Mono<String> queryProductStore(@PathVariable String productId) {
+        return this.seckillService.queryProductStore(productId);
+    }
+
+    @PostMapping("/{productId}")
+    public Mono<ResponseEntity<String>> seckill(@PathVariable String productId, @RequestParam String userId) {
+        return Mono.defer(() -> {
+            if (!admit(productId)) {
+                return Mono.just(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body("TOO_MANY_REQUESTS"));
+            }
+            return this.seckillService.seckill(productId, userId)
+                    .map(result -> ResponseEntity.status(toStatus(result)).body(result.name()))
+                    .doFinally(signal -> release(productId));
+        });
+    }
+
+    private boolean admit(String productId) {
+        AtomicBoolean admitted = new AtomicBoolean();
+        this.pending.compute(productId, (key, count) -> {
+            if (count == null) {
+                admitted.set(true);
+                return 1;
+            }
+            if (count < this.maxPending) {
+                admitted.set(true);
+                return count + 1;
+            }
+            return count;
+        });
+        return admitted.get();
+    }
+
+    private void release(String productId) {
+        this.pending.computeIfPresent(productId, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * 同时在处理中的抢购请求数
+     * @param productId 商品id
+     * @return 请求数
+     */
+    public int getPending(String productId) {
+        Integer pending = this.pending.get(productId);
+        return pending == null ? 0 : pending;
+    }
+
+    private static HttpStatus toStatus(SeckillResult result) {
+        switch (result) {
+            case SUCCESS:
+                return HttpStatus.OK;
+            case REPEATED:
+                return HttpStatus.CONFLICT;
+            case SOLD_OUT:
+                return HttpStatus.GONE;
+            default:
+                return HttpStatus.NOT_FOUND;
+        }
+    }
+
+}
@@ -3,7 +3,7 @@ package com.nova.lyn.springbootlearning;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-@SpringBootApplication
+@SpringBootApplication(scanBasePackages = "com.nova.lyn")
 public class SpringbootLearningApplication {
 
     public static void main(String[] args) {
@@ -0,0 +1,8 @@
+CREATE TABLE IF NOT EXISTS seckill_order (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  product_id VARCHAR(64) NOT NULL,
+  user_id VARCHAR(64) NOT NULL,
+  order_time TIMESTAMP NOT NULL,
+  PRIMARY KEY (id),
+  CONSTRAINT uk_seckill_order_product_user UNIQUE (product_id, user_id)
+);
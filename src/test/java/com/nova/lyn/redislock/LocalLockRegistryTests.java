@@ -0,0 +1,49 @@
+package com.nova.lyn.redislock;
+
+import com.nova.lyn.redis.lock.LocalLockRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName LocalLockRegistryTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/10 0010 下午 3:15
+ * @Version 1.0
+ */
+public class LocalLockRegistryTests {
+
+    @Test
+    public void testLockExcludesOtherThreads() throws Exception {
+        LocalLockRegistry registry = new LocalLockRegistry();
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        lock.lock();
+        Future<Boolean> other = Executors.newSingleThreadExecutor()
+                .submit(() -> registry.obtain("foo").tryLock(100, TimeUnit.MILLISECONDS));
+        assertThat(other.get(10, TimeUnit.SECONDS)).isFalse();
+        assertThat(registry.obtain("bar").tryLock()).isTrue();
+        lock.unlock();
+        lock.unlock();
+    }
+
+    @Test
+    public void testExpireUnusedOlderThan() throws Exception {
+        LocalLockRegistry registry = new LocalLockRegistry();
+        Lock held = registry.obtain("foo");
+        Lock unused = registry.obtain("bar");
+        held.lock();
+        Thread.sleep(10);
+        registry.expireUnusedOlderThan(0);
+        assertThat(registry.obtain("foo")).isSameAs(held);
+        assertThat(registry.obtain("bar")).isNotSameAs(unused);
+        held.unlock();
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.nova.lyn.redislock;
+
+import com.nova.lyn.redis.lock.ReactiveRedisLockRegistry;
+import com.nova.lyn.redis.lock.RedisServerCapabilities;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @ClassName ReactiveRedisLockRegistryTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/2 0002 下午 2:10
+ * @Version 1.0
+ */
+public class ReactiveRedisLockRegistryTests extends RedisAvailableTests {
+
+    private final String registryKey = UUID.randomUUID().toString();
+
+    @Before
+    @After
+    public void setupShutDown() {
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(this.registryKey + ":foo");
+    }
+
+    private ReactiveRedisLockRegistry createRegistry() {
+        return new ReactiveRedisLockRegistry((ReactiveRedisConnectionFactory) getConnectionFactoryForTest(),
+                this.registryKey);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testAcquireRelease() {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock = registry.obtain("foo");
+        StepVerifier.create(lock.acquire().then(lock.tryAcquire()))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(lock.release().then(lock.release()))
+                .verifyComplete();
+        StepVerifier.create(lock.release())
+                .verifyError(IllegalStateException.class);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testServerCapabilities() {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        RedisServerCapabilities capabilities = registry.getServerCapabilities().block(Duration.ofSeconds(10));
+        RedisServerCapabilities blocking =
+                RedisServerCapabilities.probe(new StringRedisTemplate(getConnectionFactoryForTest()));
+        assertEquals(blocking.toString(), capabilities.toString());
+        assertSame(capabilities, registry.getServerCapabilities().block(Duration.ofSeconds(10)));
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSecondHandleFailsWhileHeld() {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock1 = registry.obtain("foo");
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock2 = registry.obtain("foo");
+        StepVerifier.create(lock1.tryAcquire())
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(lock2.tryAcquire(Duration.ofMillis(200)))
+                .expectNext(false)
+                .verifyComplete();
+        StepVerifier.create(lock1.release().then(lock2.tryAcquire(Duration.ofSeconds(5))))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(lock2.release())
+                .verifyComplete();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testWaiterWokenByRelease() {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        registry.setMaxWaitBetweenTries(Duration.ofSeconds(60));
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock1 = registry.obtain("foo");
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock2 = registry.obtain("foo");
+        StepVerifier.create(lock1.acquire())
+                .verifyComplete();
+        Mono<Boolean> waiter = lock2.tryAcquire(Duration.ofSeconds(30))
+                .flatMap(locked -> lock2.release().thenReturn(locked));
+        StepVerifier.create(waiter)
+                .then(() -> lock1.release().delaySubscription(Duration.ofSeconds(1)).subscribe())
+                .expectNext(true)
+                .expectComplete()
+                .verify(Duration.ofSeconds(10));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testWaiterNeverMissesAnImmediateRelease() throws Exception {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        registry.setMaxWaitBetweenTries(Duration.ofSeconds(60));
+        registry.afterPropertiesSet();
+        awaitUnlocksSubscribed();
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock1 = registry.obtain("foo");
+        ReactiveRedisLockRegistry.ReactiveRedisLock lock2 = registry.obtain("foo");
+        for (int i = 0; i < 20; i++) {
+            StepVerifier.create(lock1.acquire())
+                    .verifyComplete();
+            // released while the waiter's first attempt is still in flight
+            Mono<Boolean> waiter = lock2.tryAcquire(Duration.ofSeconds(30))
+                    .flatMap(locked -> lock2.release().thenReturn(locked));
+            long start = System.currentTimeMillis();
+            StepVerifier.create(waiter)
+                    .then(() -> lock1.release().subscribe())
+                    .expectNext(true)
+                    .expectComplete()
+                    .verify(Duration.ofSeconds(10));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+        registry.destroy();
+    }
+
+    private void awaitUnlocksSubscribed() throws InterruptedException {
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        byte[] channel = (this.registryKey + ":unlocks").getBytes(StandardCharsets.UTF_8);
+        int n = 0;
+        while (n++ < 100) {
+            List<?> numsub = (List<?>) template.execute((RedisCallback<Object>) connection ->
+                    connection.execute("PUBSUB", "NUMSUB".getBytes(StandardCharsets.UTF_8), channel));
+            if (numsub != null && numsub.size() == 2 && ((Long) numsub.get(1)) > 0) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("The registry did not subscribe to its unlock channel");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testWithLock() {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        StepVerifier.create(registry.withLock("foo", Mono.just("bar")))
+                .expectNext("bar")
+                .verifyComplete();
+        StepVerifier.create(registry.withLock("foo", Mono.error(new IllegalArgumentException())))
+                .verifyError(IllegalArgumentException.class);
+        StepVerifier.create(registry.obtain("foo").tryAcquire())
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testWithLockReleasedOnCancel() throws Exception {
+        ReactiveRedisLockRegistry registry = createRegistry();
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        Disposable subscription = registry.withLock("foo", Mono.never()).subscribe();
+        int n = 0;
+        while (!template.hasKey(this.registryKey + ":foo") && n++ < 100) {
+            Thread.sleep(50);
+        }
+        assertTrue(template.hasKey(this.registryKey + ":foo"));
+        subscription.dispose();
+        n = 0;
+        while (template.hasKey(this.registryKey + ":foo") && n++ < 100) {
+            Thread.sleep(50);
+        }
+        assertFalse(template.hasKey(this.registryKey + ":foo"));
+        StepVerifier.create(registry.obtain("foo").tryAcquire())
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+}
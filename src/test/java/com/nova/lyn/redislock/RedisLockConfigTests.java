@@ -0,0 +1,83 @@
+package com.nova.lyn.redislock;
+
+import com.nova.lyn.redis.config.RedisLockConfig;
+import com.nova.lyn.redis.lock.LocalLockRegistry;
+import com.nova.lyn.redis.lock.RedisLockRegistry;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.integration.support.locks.ExpirableLockRegistry;
+
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName RedisLockConfigTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/29 0029 上午 10:20
+ * @Version 1.0
+ */
+public class RedisLockConfigTests extends RedisAvailableTests {
+
+    @Test
+    @RedisAvailable
+    public void testMetricsPublishedToMeterRegistry() {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.register(RedisLockConfig.class, MeterRegistryConfig.class);
+        context.getEnvironment().getSystemProperties().put("redis.lock.registry-key", UUID.randomUUID().toString());
+        context.refresh();
+        try {
+            Lock lock = context.getBean("lockRegistry", ExpirableLockRegistry.class).obtain("foo");
+            lock.lock();
+            lock.unlock();
+            MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+            assertThat(meterRegistry.get("redis.lock.acquire").tag("outcome", "acquired").timer().count())
+                    .isEqualTo(1L);
+            assertThat(meterRegistry.get("redis.lock.roundtrips").tag("operation", "obtain").counter().count())
+                    .isEqualTo(1.0);
+            assertThat(meterRegistry.get("redis.lock.roundtrips").tag("operation", "release").counter().count())
+                    .isEqualTo(1.0);
+        }
+        finally {
+            context.close();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testModesShareOneBeanName() {
+        for (String mode : new String[] { "redis", "local" }) {
+            AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+            context.register(RedisLockConfig.class);
+            context.getEnvironment().getSystemProperties().put("redis.lock.mode", mode);
+            context.refresh();
+            try {
+                assertThat(context.getBean("lockRegistry", ExpirableLockRegistry.class))
+                        .isInstanceOf("redis".equals(mode) ? RedisLockRegistry.class : LocalLockRegistry.class);
+                assertThat(context.getBeansOfType(ExpirableLockRegistry.class)).hasSize(1);
+            }
+            finally {
+                context.close();
+            }
+        }
+    }
+
+    @Configuration
+    static class MeterRegistryConfig {
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.nova.lyn.redislock;
+
+import com.nova.lyn.redis.lock.RedisLockRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * @ClassName RedisLockRegistryBenchmark
+ * @Description JMH benchmarks of the {@link RedisLockRegistry} acquire and release paths
+ * against a local redis-server ({@code -Dredis.host}, {@code -Dredis.port}; default
+ * 127.0.0.1:6379). Each benchmark reports throughput and sampled latency percentiles.
+ * Run {@code mvn test-compile} and then {@link #main(String[])} with the test classpath;
+ * an optional argument is a regular expression selecting benchmarks.
+ * @Author Lyn
+ * @Date 2019/4/8 0008 上午 10:20
+ * @Version 1.0
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RedisLockRegistryBenchmark {
+
+    private static final int CONTENDED_THREADS = 8;
+
+    @State(Scope.Benchmark)
+    public static class Registry {
+
+        @Param("60000")
+        long expireAfter;
+
+        @Param("4096")
+        int churnKeys;
+
+        LettuceConnectionFactory connectionFactory;
+
+        RedisLockRegistry registry;
+
+        Lock sharedLock;
+
+        final AtomicInteger threadSequence = new AtomicInteger();
+
+        final AtomicInteger churnSequence = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                    System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+            this.connectionFactory = new LettuceConnectionFactory(configuration);
+            this.connectionFactory.afterPropertiesSet();
+            this.registry = new RedisLockRegistry(this.connectionFactory, "benchmark:" + UUID.randomUUID(),
+                    this.expireAfter);
+            this.sharedLock = this.registry.obtain("shared");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.registry.destroy();
+            this.connectionFactory.destroy();
+        }
+
+        Lock nextChurnLock() {
+            return this.registry.obtain("churn-" + Math.floorMod(this.churnSequence.getAndIncrement(),
+                    this.churnKeys));
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKey {
+
+        Lock lock;
+
+        @Setup(Level.Trial)
+        public void setUp(Registry registry) {
+            this.lock = registry.registry.obtain("thread-" + registry.threadSequence.incrementAndGet());
+        }
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void uncontendedLockUnlock(ThreadKey key) {
+        key.lock.lock();
+        key.lock.unlock();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void reentrantLockUnlock(ThreadKey key) {
+        key.lock.lock();
+        key.lock.lock();
+        key.lock.unlock();
+        key.lock.unlock();
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void contendedSameKey(Registry registry) {
+        registry.sharedLock.lock();
+        registry.sharedLock.unlock();
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void distinctKeys(ThreadKey key) {
+        key.lock.lock();
+        key.lock.unlock();
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public boolean tryLockWithTimeout(Registry registry) throws InterruptedException {
+        if (registry.sharedLock.tryLock(10, TimeUnit.MILLISECONDS)) {
+            registry.sharedLock.unlock();
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void obtainChurn(Registry registry) {
+        Lock lock = registry.nextChurnLock();
+        lock.lock();
+        lock.unlock();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisLockRegistryBenchmark.class.getSimpleName() + "." + (args.length > 0 ? args[0] : ""))
+                .build();
+        new Runner(options).run();
+    }
+
+}
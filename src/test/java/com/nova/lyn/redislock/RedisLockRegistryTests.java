@@ -1,8 +1,12 @@
 package com.nova.lyn.redislock;
 
 import com.nova.lyn.redis.lock.RedisLockRegistry;
+import com.nova.lyn.redis.lock.RedisSemaphore;
+import com.nova.lyn.redis.lock.RedisServerCapabilities;
 import com.nova.lyn.rules.RedisAvailable;
 import com.nova.lyn.rules.RedisAvailableTests;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.After;
@@ -10,16 +14,25 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.integration.test.util.TestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
@@ -45,6 +58,10 @@ public class RedisLockRegistryTests extends RedisAvailableTests {
         StringRedisTemplate template = this.createTemplate();
         template.delete(this.registryKey + ":*");
         template.delete(this.registryKey2 + ":*");
+        template.delete(this.registryKey + ":foo:rw");
+        template.delete(this.registryKey + ":foo:semaphore");
+        template.delete(this.registryKey + ":foo:queue");
+        template.delete(this.registryKey + ":foo:timeouts");
     }
 
     private StringRedisTemplate createTemplate() {
@@ -334,6 +351,58 @@ public class RedisLockRegistryTests extends RedisAvailableTests {
                 .withMessageContaining("Lock was released in the store due to expiration.");
     }
 
+    @Test
+    @RedisAvailable
+    public void testUnlockAfterReacquiredElsewhere() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey, 100);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        Lock lock1 = registry1.obtain("foo");
+        assertThat(lock1.tryLock()).isTrue();
+        waitForExpire("foo");
+        Lock lock2 = registry2.obtain("foo");
+        assertThat(lock2.tryLock()).isTrue();
+        String owner = createTemplate().opsForValue().get(this.registryKey + ":foo");
+        assertThatIllegalStateException()
+                .isThrownBy(lock1::unlock)
+                .withMessageContaining("Lock was released in the store due to expiration.");
+        // the stale holder must not delete the key of the new one
+        assertThat(createTemplate().opsForValue().get(this.registryKey + ":foo")).isEqualTo(owner);
+        assertThat(lock1.tryLock()).isFalse();
+        lock2.unlock();
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testIsAcquiredInThisProcessMakesNoRoundTrip() {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        registry.setMeterRegistry(meterRegistry);
+        Lock lock = registry.obtain("foo");
+        assertThat((Boolean) ReflectionTestUtils.invokeMethod(lock, "isAcquiredInThisProcess")).isFalse();
+        lock.lock();
+        double roundTrips = roundTrips(meterRegistry);
+        // the answer comes from the local lease: deleting the key in the store does not change it
+        createTemplate().delete(this.registryKey + ":foo");
+        for (int i = 0; i < 100; i++) {
+            assertThat((Boolean) ReflectionTestUtils.invokeMethod(lock, "isAcquiredInThisProcess")).isTrue();
+        }
+        assertThat(roundTrips(meterRegistry)).isEqualTo(roundTrips);
+        assertThatIllegalStateException().isThrownBy(lock::unlock);
+        assertThat((Boolean) ReflectionTestUtils.invokeMethod(lock, "isAcquiredInThisProcess")).isFalse();
+        registry.destroy();
+    }
+
+    private static double roundTrips(SimpleMeterRegistry meterRegistry) {
+        double count = 0;
+        for (Counter counter : meterRegistry.find("redis.lock.roundtrips").counters()) {
+            count += counter.count();
+        }
+        return count;
+    }
+
 
     @Test
     @RedisAvailable
@@ -411,6 +480,386 @@ public class RedisLockRegistryTests extends RedisAvailableTests {
         lock.unlock();
     }
 
+    @Test
+    @RedisAvailable
+    public void testWaiterWokenByUnlockNotification() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        // no fallback retry can happen during the test, only a notification wakes the waiter
+        registry2.setMaxWaitBetweenTries(60000);
+        registry2.afterPropertiesSet();
+        awaitContainerSubscribed(TestUtils.getPropertyValue(registry2, "unlockListenerContainer",
+                RedisMessageListenerContainer.class));
+        Lock lock1 = registry1.obtain("foo");
+        lock1.lock();
+        AtomicReference<Thread> waiter = new AtomicReference<>();
+        Future<Boolean> result = Executors.newSingleThreadExecutor().submit(() -> {
+            waiter.set(Thread.currentThread());
+            Lock lock2 = registry2.obtain("foo");
+            boolean locked = lock2.tryLock(30, TimeUnit.SECONDS);
+            if (locked) {
+                lock2.unlock();
+            }
+            return locked;
+        });
+        int n = 0;
+        while ((waiter.get() == null || waiter.get().getState() != Thread.State.TIMED_WAITING) && n++ < 100) {
+            Thread.sleep(100);
+        }
+        assertThat(waiter.get().getState()).isEqualTo(Thread.State.TIMED_WAITING);
+        long start = System.currentTimeMillis();
+        lock1.unlock();
+        assertThat(result.get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(System.currentTimeMillis() - start).isLessThan(500);
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testLeaseRenewal() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey, 500);
+        registry.enableLeaseRenewal(100);
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        Thread.sleep(1500);
+        assertThat(getExpire(registry, "foo")).isGreaterThan(0L);
+        lock.unlock();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testObtainAll() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        Lock lock1 = registry1.obtainAll(Arrays.asList("foo", "bar"));
+        lock1.lock();
+        Future<Boolean> result = Executors.newSingleThreadExecutor().submit(() ->
+                registry2.obtain("bar").tryLock());
+        assertThat(result.get(10, TimeUnit.SECONDS)).isFalse();
+        Lock lock2 = registry2.obtainAll(Arrays.asList("baz", "bar"));
+        assertThat(lock2.tryLock()).isFalse();
+        assertThat(registry2.obtain("baz").tryLock()).isTrue();
+        registry2.obtain("baz").unlock();
+        lock1.unlock();
+        assertThat(lock2.tryLock(10, TimeUnit.SECONDS)).isTrue();
+        lock2.unlock();
+        registry1.expireUnusedOlderThan(-1000);
+        assertThat(TestUtils.getPropertyValue(registry1, "locks", Map.class).size()).isEqualTo(0);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testIdleEviction() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry.enableIdleEviction(100);
+        Lock held = registry.obtain("foo");
+        held.lock();
+        registry.obtain("bar");
+        Thread.sleep(1000);
+        Map<?, ?> locks = TestUtils.getPropertyValue(registry, "locks", Map.class);
+        assertThat(locks.size()).isEqualTo(1);
+        assertThat(registry.obtain("foo")).isSameAs(held);
+        held.unlock();
+        Thread.sleep(1000);
+        assertThat(locks.size()).isEqualTo(0);
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testIdleEvictionKeepsLocksInUse() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry.enableIdleEviction(400);
+        Lock lock = registry.obtain("foo");
+        Map<?, ?> locks = TestUtils.getPropertyValue(registry, "locks", Map.class);
+        // the instance is kept across calls and never resolved again, but locking it counts as a use
+        for (int i = 0; i < 12; i++) {
+            lock.lock();
+            lock.unlock();
+            Thread.sleep(100);
+        }
+        assertThat(locks.get("foo")).isSameAs(lock);
+        Thread.sleep(1500);
+        assertThat(locks.size()).isEqualTo(0);
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testReadWriteLock() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        ReadWriteLock lock1 = registry1.obtainReadWriteLock("foo");
+        ReadWriteLock lock2 = registry2.obtainReadWriteLock("foo");
+        lock1.readLock().lock();
+        assertThat(lock2.readLock().tryLock()).isTrue();
+        assertThat(lock2.writeLock().tryLock()).isFalse();
+        lock2.readLock().unlock();
+        assertThat(lock2.writeLock().tryLock()).isFalse();
+        lock1.readLock().unlock();
+        assertThat(lock2.writeLock().tryLock(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(lock2.writeLock().tryLock()).isTrue();
+        assertThat(lock1.readLock().tryLock()).isFalse();
+        lock2.readLock().lock();
+        lock2.writeLock().unlock();
+        lock2.writeLock().unlock();
+        assertThat(lock1.readLock().tryLock()).isTrue();
+        lock1.readLock().unlock();
+        lock2.readLock().unlock();
+        assertThat(lock1.writeLock().tryLock()).isTrue();
+        lock1.writeLock().unlock();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testReadWriteLeaseRenewal() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey, 500);
+        registry1.enableLeaseRenewal(100);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        ReadWriteLock lock1 = registry1.obtainReadWriteLock("foo");
+        ReadWriteLock lock2 = registry2.obtainReadWriteLock("foo");
+        lock1.writeLock().lock();
+        Thread.sleep(1500);
+        assertThat(lock2.readLock().tryLock()).isFalse();
+        assertThat(createTemplate().keys(this.registryKey + ":foo:rw*")).containsExactly(this.registryKey + ":foo:rw");
+        lock1.writeLock().unlock();
+        assertThat(lock2.readLock().tryLock()).isTrue();
+        lock2.readLock().unlock();
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSemaphore() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey, 500);
+        RedisSemaphore semaphore1 = registry1.obtainSemaphore("foo", 3);
+        RedisSemaphore semaphore2 = registry2.obtainSemaphore("foo", 3);
+        assertThat(semaphore1.tryAcquire(2)).isTrue();
+        assertThat(semaphore2.tryAcquire(2)).isFalse();
+        assertThat(semaphore2.tryAcquire()).isTrue();
+        assertThat(semaphore1.availablePermits()).isEqualTo(0);
+        semaphore1.release();
+        // semaphore2's permit lapses after 500 millis
+        assertThat(semaphore1.tryAcquire(2, 10, TimeUnit.SECONDS)).isTrue();
+        assertThatIllegalStateException()
+                .isThrownBy(semaphore2::release)
+                .withMessageContaining("Permits were released in the store due to expiration.");
+        semaphore1.release(3);
+        assertThat(semaphore1.availablePermits()).isEqualTo(3);
+        assertThatIllegalStateException()
+                .isThrownBy(semaphore1::release)
+                .withMessageContaining("You do not hold 1 permits");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSemaphoreLeaseRenewal() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey, 500);
+        registry1.enableLeaseRenewal(100);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisSemaphore semaphore1 = registry1.obtainSemaphore("foo", 1);
+        RedisSemaphore semaphore2 = registry2.obtainSemaphore("foo", 1);
+        assertThat(semaphore1.tryAcquire()).isTrue();
+        Thread.sleep(1500);
+        assertThat(semaphore2.tryAcquire()).isFalse();
+        semaphore1.release();
+        assertThat(semaphore2.tryAcquire()).isTrue();
+        semaphore2.release();
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSemaphoreWaiterWokenByReleaseNotification() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry2.setMaxWaitBetweenTries(60000);
+        registry2.afterPropertiesSet();
+        awaitContainerSubscribed(TestUtils.getPropertyValue(registry2, "unlockListenerContainer",
+                RedisMessageListenerContainer.class));
+        RedisSemaphore semaphore1 = registry1.obtainSemaphore("foo", 1);
+        assertThat(semaphore1.tryAcquire()).isTrue();
+        Future<Boolean> result = Executors.newSingleThreadExecutor().submit(() ->
+                registry2.obtainSemaphore("foo", 1).tryAcquire(1, 30, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        long start = System.currentTimeMillis();
+        semaphore1.release();
+        assertThat(result.get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(System.currentTimeMillis() - start).isLessThan(500);
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testLocalHandoff() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        registry.setMeterRegistry(meterRegistry);
+        registry.setLocalHandoff(1);
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        Future<?> waiter = Executors.newSingleThreadExecutor().submit(() -> {
+            lock.lock();
+            lock.unlock();
+        });
+        // give the waiter time to queue for the local lock
+        Thread.sleep(500);
+        lock.unlock();
+        waiter.get(10, TimeUnit.SECONDS);
+        assertThat(meterRegistry.get("redis.lock.handoffs").counter().count()).isEqualTo(1.0);
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testLocalHandoffTimeBound() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        registry.setMeterRegistry(meterRegistry);
+        registry.setLocalHandoff(100, 100);
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        ExecutorService exec = Executors.newFixedThreadPool(5);
+        List<Future<?>> waiters = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            waiters.add(exec.submit(() -> {
+                lock.lock();
+                try {
+                    Thread.sleep(150);
+                }
+                finally {
+                    lock.unlock();
+                }
+                return null;
+            }));
+        }
+        // give the waiters time to queue for the local lock
+        Thread.sleep(500);
+        lock.unlock();
+        for (Future<?> waiter : waiters) {
+            waiter.get(10, TimeUnit.SECONDS);
+        }
+        // each holder outlasts the time bound, so every streak ends after its first handoff
+        assertThat(meterRegistry.get("redis.lock.handoffs").counter().count()).isEqualTo(3.0);
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        exec.shutdownNow();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testAsyncRelease() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry.setReleaseQueue(1, 10);
+        registry.setAsyncRelease(true);
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        lock.unlock();
+        waitForExpire("foo");
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        for (int i = 0; i < 100; i++) {
+            lock.lock();
+            assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isTrue();
+            lock.unlock();
+        }
+        waitForExpire("foo");
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testQueuedReleaseNotExpired() throws Exception {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        List<Runnable> drains = new CopyOnWriteArrayList<>();
+        registry.setExecutor(drains::add);
+        registry.setAsyncRelease(true);
+        Lock lock = registry.obtain("foo");
+        lock.lock();
+        lock.unlock();
+        assertThat(drains).hasSize(1);
+        registry.expireUnusedOlderThan(-1000);
+        assertThat(registry.obtain("foo")).isSameAs(lock);
+        drains.get(0).run();
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo")).isFalse();
+        registry.expireUnusedOlderThan(-1000);
+        assertThat(registry.obtain("foo")).isNotSameAs(lock);
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testFairLock() throws Exception {
+        RedisLockRegistry registry1 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry2 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        RedisLockRegistry registry3 = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry1.setFair(true);
+        registry2.setFair(true);
+        registry3.setFair(true);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        Lock lock1 = registry1.obtain("foo");
+        lock1.lock();
+        Future<Boolean> waiter2 = Executors.newSingleThreadExecutor().submit(() -> {
+            Lock lock2 = registry2.obtain("foo");
+            boolean locked = lock2.tryLock(30, TimeUnit.SECONDS);
+            if (locked) {
+                order.add(2);
+                Thread.sleep(200);
+                lock2.unlock();
+            }
+            return locked;
+        });
+        // registry2 must join the queue first
+        Thread.sleep(500);
+        Future<Boolean> waiter3 = Executors.newSingleThreadExecutor().submit(() -> {
+            Lock lock3 = registry3.obtain("foo");
+            boolean locked = lock3.tryLock(30, TimeUnit.SECONDS);
+            if (locked) {
+                order.add(3);
+                lock3.unlock();
+            }
+            return locked;
+        });
+        Thread.sleep(500);
+        lock1.unlock();
+        assertThat(waiter2.get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(waiter3.get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly(2, 3);
+        assertThat(createTemplate().hasKey(this.registryKey + ":foo:queue")).isFalse();
+        registry1.destroy();
+        registry2.destroy();
+        registry3.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testServerCapabilities() {
+        RedisLockRegistry registry = new RedisLockRegistry(getConnectionFactoryForTest(), this.registryKey);
+        registry.afterPropertiesSet();
+        RedisServerCapabilities capabilities = registry.getServerCapabilities();
+        assertThat(capabilities.getVersion()).isNotEmpty();
+        assertThat(registry.getServerCapabilities()).isSameAs(capabilities);
+        assertThat(capabilities.getDeleteCommand()).isIn("UNLINK", "DEL");
+        assertThat(capabilities.isScriptCacheAvailable()).isTrue();
+        // GETDEL, SET GET and PXAT all arrived in 6.2, CLIENT TRACKING in 6.0
+        assertThat(capabilities.isSetGetAvailable()).isEqualTo(capabilities.isGetDelAvailable());
+        assertThat(capabilities.isPxAtAvailable()).isEqualTo(capabilities.isGetDelAvailable());
+        if (capabilities.isGetDelAvailable()) {
+            assertThat(capabilities.isClientTrackingAvailable()).isTrue();
+        }
+        if (capabilities.isClientTrackingAvailable()) {
+            assertThat(capabilities.isUnlinkAvailable()).isTrue();
+        }
+        registry.destroy();
+    }
+
     private Long getExpire(RedisLockRegistry registry, String lockKey) {
         StringRedisTemplate template = createTemplate();
         String registryKey = TestUtils.getPropertyValue(registry, "registryKey", String.class);
@@ -0,0 +1,144 @@
+package com.nova.lyn.redislock;
+
+import com.nova.lyn.redis.lock.RedlockRegistry;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Each node of the quorum is a separate database of the test Redis server, which keeps
+ * their key spaces independent.
+ *
+ * @ClassName RedlockRegistryTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/8 0008 上午 10:15
+ * @Version 1.0
+ */
+public class RedlockRegistryTests extends RedisAvailableTests {
+
+    private final String registryKey = UUID.randomUUID().toString();
+
+    private final List<LettuceConnectionFactory> nodes = new ArrayList<>();
+
+    @After
+    public void cleanUp() {
+        for (LettuceConnectionFactory node : this.nodes) {
+            new StringRedisTemplate(node).delete(this.registryKey + ":foo");
+            node.destroy();
+        }
+    }
+
+    private List<RedisConnectionFactory> createNodes() {
+        for (int database = 1; database <= 3; database++) {
+            RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration();
+            configuration.setDatabase(database);
+            LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+            connectionFactory.afterPropertiesSet();
+            this.nodes.add(connectionFactory);
+        }
+        return new ArrayList<>(this.nodes);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testQuorumLock() throws Exception {
+        List<RedisConnectionFactory> nodes = createNodes();
+        RedlockRegistry registry1 = new RedlockRegistry(nodes, this.registryKey);
+        registry1.afterPropertiesSet();
+        RedlockRegistry registry2 = new RedlockRegistry(nodes, this.registryKey);
+        registry2.afterPropertiesSet();
+        Lock lock1 = registry1.obtain("foo");
+        lock1.lock();
+        lock1.lock();
+        Future<Boolean> result = Executors.newSingleThreadExecutor().submit(() ->
+                registry2.obtain("foo").tryLock(200, TimeUnit.MILLISECONDS));
+        assertThat(result.get(10, TimeUnit.SECONDS)).isFalse();
+        lock1.unlock();
+        lock1.unlock();
+        Lock lock2 = registry2.obtain("foo");
+        assertThat(lock2.tryLock(10, TimeUnit.SECONDS)).isTrue();
+        lock2.unlock();
+        registry1.destroy();
+        registry2.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testMinorityHeldElsewhere() throws Exception {
+        List<RedisConnectionFactory> nodes = createNodes();
+        RedlockRegistry registry = new RedlockRegistry(nodes, this.registryKey);
+        registry.afterPropertiesSet();
+        StringRedisTemplate node1 = new StringRedisTemplate(nodes.get(0));
+        node1.opsForValue().set(this.registryKey + ":foo", "someone else", 10, TimeUnit.SECONDS);
+        Lock lock = registry.obtain("foo");
+        assertThat(lock.tryLock()).isTrue();
+        lock.unlock();
+        assertThat(node1.opsForValue().get(this.registryKey + ":foo")).isEqualTo("someone else");
+
+        new StringRedisTemplate(nodes.get(1)).opsForValue()
+                .set(this.registryKey + ":foo", "someone else", 10, TimeUnit.SECONDS);
+        assertThat(lock.tryLock()).isFalse();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testFreshTokenPerAcquisition() throws Exception {
+        List<RedisConnectionFactory> nodes = createNodes();
+        RedlockRegistry registry = new RedlockRegistry(nodes, this.registryKey);
+        registry.afterPropertiesSet();
+        StringRedisTemplate node1 = new StringRedisTemplate(nodes.get(0));
+        Lock lock = registry.obtain("foo");
+        assertThat(lock.tryLock()).isTrue();
+        String first = node1.opsForValue().get(this.registryKey + ":foo");
+        lock.unlock();
+        assertThat(lock.tryLock()).isTrue();
+        String second = node1.opsForValue().get(this.registryKey + ":foo");
+        assertThat(second).isNotNull().isNotEqualTo(first);
+        lock.unlock();
+        assertThat(node1.hasKey(this.registryKey + ":foo")).isFalse();
+        registry.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testQueueTimeDoesNotCountAgainstNodeTimeout() throws Exception {
+        List<RedisConnectionFactory> nodes = createNodes();
+        RedlockRegistry registry = new RedlockRegistry(nodes, this.registryKey);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        registry.setExecutor(executor);
+        registry.afterPropertiesSet();
+        // the scripts of all three nodes queue behind this task for longer than the node timeout
+        executor.execute(() -> {
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Lock lock = registry.obtain("foo");
+        assertThat(lock.tryLock()).isTrue();
+        lock.unlock();
+        registry.destroy();
+        executor.shutdown();
+    }
+
+}
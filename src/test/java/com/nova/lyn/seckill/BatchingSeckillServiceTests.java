@@ -0,0 +1,95 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.BatchingSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName BatchingSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/19 0019 下午 3:05
+ * @Version 1.0
+ */
+public class BatchingSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testBatchesResolveEveryPurchase() throws Exception {
+        new RedisSeckillServiceImpl(getConnectionFactoryForTest()).initProduct(this.productId, 100);
+        BatchingSeckillServiceImpl service = new BatchingSeckillServiceImpl(getConnectionFactoryForTest(), 32, 500, 64);
+        List<CompletableFuture<SeckillResult>> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            results.add(service.seckillAsync(this.productId, "user" + (i % 250)));
+        }
+        int succeeded = 0;
+        int repeated = 0;
+        for (CompletableFuture<SeckillResult> result : results) {
+            SeckillResult seckillResult = result.get(10, TimeUnit.SECONDS);
+            if (seckillResult == SeckillResult.SUCCESS) {
+                succeeded++;
+            }
+            else if (seckillResult == SeckillResult.REPEATED) {
+                repeated++;
+            }
+        }
+        assertThat(succeeded).isEqualTo(100);
+        assertThat(repeated).isLessThanOrEqualTo(50);
+        assertThat(service.seckill(UUID.randomUUID().toString(), "user")).isEqualTo(SeckillResult.NOT_FOUND);
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:0台", "成功下单用户数:100人");
+        service.destroy();
+    }
+
+    @Test
+    @RedisAvailable
+    public void testPurchasesRacingShutdownAreResolved() throws Exception {
+        new RedisSeckillServiceImpl(getConnectionFactoryForTest()).initProduct(this.productId, 1000);
+        BatchingSeckillServiceImpl service = new BatchingSeckillServiceImpl(getConnectionFactoryForTest(), 32, 500, 64);
+        List<CompletableFuture<SeckillResult>> results = new CopyOnWriteArrayList<>();
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            exec.execute(() -> {
+                for (int i = 0; i < 200; i++) {
+                    results.add(service.seckillAsync(this.productId, "user" + thread + ":" + i));
+                }
+            });
+        }
+        service.destroy();
+        exec.shutdown();
+        assertThat(exec.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(results).hasSize(800);
+        for (CompletableFuture<SeckillResult> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo(SeckillResult.SUCCESS);
+        }
+    }
+
+}
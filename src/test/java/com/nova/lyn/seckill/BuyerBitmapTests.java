@@ -0,0 +1,109 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.BuyerBitmap;
+import com.nova.lyn.redis.service.impl.RedisBuyerBitmap;
+import com.nova.lyn.redis.service.impl.SeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName BuyerBitmapTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/23 0023 下午 2:10
+ * @Version 1.0
+ */
+public class BuyerBitmapTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        if (getConnectionFactoryForTest() != null) {
+            new RedisBuyerBitmap(getConnectionFactoryForTest()).clear(this.productId);
+        }
+    }
+
+    @Test
+    public void testMatchesHashSet() {
+        BuyerBitmap bitmap = new BuyerBitmap();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // 一部分用户集中在少数几个桶内, 使桶转为位图容器
+            long userId = i % 2 == 0 ? random.nextInt(1 << 18) : random.nextLong() & BuyerBitmap.MAX_USER_ID;
+            assertThat(bitmap.add(userId)).isEqualTo(expected.add(userId));
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(expected.size());
+        for (Long userId : expected) {
+            assertThat(bitmap.contains(userId)).isTrue();
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long userId = random.nextLong() & BuyerBitmap.MAX_USER_ID;
+            assertThat(bitmap.contains(userId)).isEqualTo(expected.contains(userId));
+        }
+        assertThat(bitmap.contains(-1)).isFalse();
+        assertThat(bitmap.add(0)).isEqualTo(!expected.contains(0L));
+        assertThat(bitmap.add(BuyerBitmap.MAX_USER_ID)).isEqualTo(!expected.contains(BuyerBitmap.MAX_USER_ID));
+    }
+
+    @Test
+    public void testCompactForDenseIds() {
+        BuyerBitmap bitmap = new BuyerBitmap();
+        for (long userId = 1_000_000; userId < 2_000_000; userId++) {
+            bitmap.add(userId);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(1_000_000);
+        // 连续的一百万个用户约 16 个位图容器, 每个用户不到 2 位
+        assertThat(bitmap.sizeInBytes()).isLessThan(1_000_000 / 4);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testRedisBitmap() {
+        RedisBuyerBitmap bitmap = new RedisBuyerBitmap(getConnectionFactoryForTest());
+        assertThat(bitmap.add(this.productId, 7)).isTrue();
+        assertThat(bitmap.add(this.productId, 7)).isFalse();
+        assertThat(bitmap.add(this.productId, BuyerBitmap.MAX_USER_ID)).isTrue();
+        assertThat(bitmap.contains(this.productId, 7)).isTrue();
+        assertThat(bitmap.contains(this.productId, 8)).isFalse();
+        assertThat(bitmap.contains(this.productId, BuyerBitmap.MAX_USER_ID)).isTrue();
+        assertThat(bitmap.cardinality(this.productId)).isEqualTo(2);
+        bitmap.clear(this.productId);
+        assertThat(bitmap.cardinality(this.productId)).isEqualTo(0);
+        assertThat(bitmap.contains(this.productId, 7)).isFalse();
+    }
+
+    @Test
+    public void testToUserId() {
+        assertThat(BuyerBitmap.toUserId("0")).isEqualTo(0);
+        assertThat(BuyerBitmap.toUserId("70000")).isEqualTo(70000);
+        assertThat(BuyerBitmap.toUserId("4294967295")).isEqualTo(BuyerBitmap.MAX_USER_ID);
+        assertThat(BuyerBitmap.toUserId("4294967296")).isEqualTo(-1);
+        assertThat(BuyerBitmap.toUserId("070000")).isEqualTo(-1);
+        assertThat(BuyerBitmap.toUserId("-1")).isEqualTo(-1);
+        assertThat(BuyerBitmap.toUserId("")).isEqualTo(-1);
+        assertThat(BuyerBitmap.toUserId("user")).isEqualTo(-1);
+    }
+
+    @Test
+    public void testMockServiceAcceptsAnyUserId() {
+        SeckillServiceImpl service = new SeckillServiceImpl();
+        String userId = "user-" + UUID.randomUUID();
+        assertThat(service.seckill("123456", userId)).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill("123456", userId)).isEqualTo(SeckillResult.REPEATED);
+        assertThat(service.seckill("123456", "070000")).isNotEqualTo(SeckillResult.REPEATED);
+        assertThat(service.seckill("123456", "070000")).isEqualTo(SeckillResult.REPEATED);
+    }
+
+}
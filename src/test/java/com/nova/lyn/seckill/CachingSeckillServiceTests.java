@@ -0,0 +1,135 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import com.nova.lyn.redis.service.impl.CachingSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName CachingSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/25 0025 下午 2:30
+ * @Version 1.0
+ */
+public class CachingSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream",
+                "seckill:{" + this.productId + "}:view",
+                "seckill:{" + this.productId + "}:version",
+                "seckill:{" + this.productId + "}:bumped"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testViewIsCachedAcrossNodes() throws Exception {
+        SeckillService delegate = countingDelegate();
+        CachingSeckillServiceImpl node1 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        CachingSeckillServiceImpl node2 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        try {
+            assertThat(node1.queryProductStore(this.productId)).contains("还剩:10台");
+            assertThat(node1.queryProductStore(this.productId)).contains("还剩:10台");
+            // node2 的 L1 为空, 从 L2 读取
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:10台");
+            assertThat(this.queries.get()).isEqualTo(1);
+        }
+        finally {
+            node1.destroy();
+            node2.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testStockChangeInvalidatesAfterStaleness() throws Exception {
+        SeckillService delegate = countingDelegate();
+        CachingSeckillServiceImpl node1 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        CachingSeckillServiceImpl node2 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        node1.setStaleness(this.productId, 300);
+        node2.setStaleness(this.productId, 300);
+        try {
+            Thread.sleep(500);
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:10台");
+            assertThat(node1.seckill(this.productId, "user")).isEqualTo(SeckillResult.SUCCESS);
+            // 版本已变化, 但仍在 staleness 之内
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:10台");
+            Thread.sleep(400);
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:9台");
+            assertThat(node1.queryProductStore(this.productId)).contains("还剩:9台");
+            assertThat(this.queries.get()).isEqualTo(2);
+        }
+        finally {
+            node1.destroy();
+            node2.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testVersionBumpsCoalescedPerStalenessWindow() throws Exception {
+        SeckillService delegate = countingDelegate();
+        CachingSeckillServiceImpl node1 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        CachingSeckillServiceImpl node2 = new CachingSeckillServiceImpl(delegate, getConnectionFactoryForTest());
+        node1.setStaleness(this.productId, 300);
+        node2.setStaleness(this.productId, 300);
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        try {
+            assertThat(node1.seckill(this.productId, "user1")).isEqualTo(SeckillResult.SUCCESS);
+            // 在第一次成交之后, 同一窗口之内生成的缓存项
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:9台");
+            assertThat(node2.seckill(this.productId, "user2")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(node1.seckill(this.productId, "user3")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:version")).isEqualTo("1");
+            Thread.sleep(400);
+            // 窗口内合并掉的成交在 staleness 之后仍然可见
+            assertThat(node2.queryProductStore(this.productId)).contains("还剩:7台");
+            assertThat(node1.seckill(this.productId, "user4")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:version")).isEqualTo("2");
+        }
+        finally {
+            node1.destroy();
+            node2.destroy();
+        }
+    }
+
+    private SeckillService countingDelegate() {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 10);
+        return new SeckillService() {
+
+            @Override
+            public String queryProductStore(String productId) {
+                CachingSeckillServiceTests.this.queries.incrementAndGet();
+                return redisService.queryProductStore(productId);
+            }
+
+            @Override
+            public SeckillResult seckill(String productId, String userId) {
+                return redisService.seckill(productId, userId);
+            }
+
+        };
+    }
+
+}
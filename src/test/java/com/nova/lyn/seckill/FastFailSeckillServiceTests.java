@@ -0,0 +1,225 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.SeckillService;
+import com.nova.lyn.redis.service.impl.FastFailSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.RedisBuyerBitmap;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName FastFailSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/22 0022 上午 11:20
+ * @Version 1.0
+ */
+public class FastFailSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        new RedisBuyerBitmap(getConnectionFactoryForTest()).clear(this.productId);
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSoldOutPropagatesAndResets() throws Exception {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 1);
+        FastFailSeckillServiceImpl node1 = new FastFailSeckillServiceImpl(redisService, getConnectionFactoryForTest());
+        FastFailSeckillServiceImpl node2 = new FastFailSeckillServiceImpl(redisService, getConnectionFactoryForTest());
+        try {
+            waitForSubscribersToBeReady();
+            assertThat(node1.seckill(this.productId, "user1")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(node1.seckill(this.productId, "user1")).isEqualTo(SeckillResult.REPEATED);
+            assertThat(node1.seckill(this.productId, "user2")).isEqualTo(SeckillResult.SOLD_OUT);
+            assertThat(node1.isSoldOut(this.productId)).isTrue();
+            int n = 0;
+            while (!node2.isSoldOut(this.productId) && n++ < 100) {
+                Thread.sleep(50);
+            }
+            assertThat(node2.isSoldOut(this.productId)).isTrue();
+
+            redisService.initProduct(this.productId, 1);
+            node1.reset(this.productId);
+            n = 0;
+            while (node2.isSoldOut(this.productId) && n++ < 100) {
+                Thread.sleep(50);
+            }
+            assertThat(node1.isSoldOut(this.productId)).isFalse();
+            assertThat(node2.isSoldOut(this.productId)).isFalse();
+            assertThat(node2.seckill(this.productId, "user1")).isEqualTo(SeckillResult.SUCCESS);
+        }
+        finally {
+            node1.destroy();
+            node2.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testConfirmRepeats() throws Exception {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 1000);
+        FastFailSeckillServiceImpl service = new FastFailSeckillServiceImpl(redisService, getConnectionFactoryForTest(),
+                10, 0.5);
+        service.setConfirmRepeats(true);
+        try {
+            for (int i = 0; i < 500; i++) {
+                assertThat(service.seckill(this.productId, "user" + i)).isEqualTo(SeckillResult.SUCCESS);
+            }
+            assertThat(service.seckill(this.productId, "user0")).isEqualTo(SeckillResult.REPEATED);
+        }
+        finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSaturatedFilterDoesNotRejectNewBuyers() throws Exception {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 1000);
+        FastFailSeckillServiceImpl service = new FastFailSeckillServiceImpl(redisService, getConnectionFactoryForTest(),
+                1, 0.5);
+        try {
+            for (int i = 0; i < 200; i++) {
+                assertThat(service.seckill(this.productId, "user" + i)).isEqualTo(SeckillResult.SUCCESS);
+            }
+            assertThat(service.seckill(this.productId, "never-seen")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(service.seckill(this.productId, "never-seen")).isEqualTo(SeckillResult.REPEATED);
+        }
+        finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testFilterHitIsConfirmedWithoutPurchase() throws Exception {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 1000);
+        CountingSeckillService counting = new CountingSeckillService(redisService);
+        FastFailSeckillServiceImpl service = new FastFailSeckillServiceImpl(counting, getConnectionFactoryForTest(),
+                1, 0.5);
+        try {
+            assertThat(service.seckill(this.productId, "42")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(counting.calls.get()).isEqualTo(2);
+            // 位图和订单 hash 中的已购用户都由只读脚本确认, 不再执行抢购脚本
+            assertThat(service.seckill(this.productId, "42")).isEqualTo(SeckillResult.REPEATED);
+            assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.REPEATED);
+            assertThat(counting.calls.get()).isEqualTo(2);
+            for (int i = 0; i < 200; i++) {
+                assertThat(service.seckill(this.productId, "other" + i)).isEqualTo(SeckillResult.SUCCESS);
+            }
+            assertThat(counting.calls.get()).isEqualTo(202);
+        }
+        finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testUnconfirmedRepeatsSkipRedis() throws Exception {
+        RedisSeckillServiceImpl redisService = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        redisService.initProduct(this.productId, 1000);
+        CountingSeckillService counting = new CountingSeckillService(redisService);
+        FastFailSeckillServiceImpl service = new FastFailSeckillServiceImpl(counting, getConnectionFactoryForTest(),
+                1, 0.5);
+        service.setConfirmRepeats(false);
+        try {
+            assertThat(service.seckill(this.productId, "user0")).isEqualTo(SeckillResult.SUCCESS);
+            assertThat(service.seckill(this.productId, "user0")).isEqualTo(SeckillResult.REPEATED);
+            assertThat(counting.calls.get()).isEqualTo(1);
+            int rejected = 0;
+            for (int i = 1; i < 200; i++) {
+                if (service.seckill(this.productId, "user" + i) == SeckillResult.REPEATED) {
+                    rejected++;
+                }
+            }
+            // 过滤器被塞满后新用户也被误拒, 且不访问被包装的实现
+            assertThat(rejected).isGreaterThan(0);
+            assertThat(counting.calls.get()).isEqualTo(200 - rejected);
+        }
+        finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testSoldOutIsNotFinal() throws Exception {
+        SeckillService soldOut = new SeckillService() {
+
+            @Override
+            public String queryProductStore(String productId) {
+                return "";
+            }
+
+            @Override
+            public SeckillResult seckill(String productId, String userId) {
+                return SeckillResult.SOLD_OUT;
+            }
+
+        };
+        CountingSeckillService counting = new CountingSeckillService(soldOut);
+        FastFailSeckillServiceImpl service = new FastFailSeckillServiceImpl(counting, getConnectionFactoryForTest());
+        service.setSoldOutFinal(false);
+        try {
+            assertThat(service.seckill(this.productId, "user1")).isEqualTo(SeckillResult.SOLD_OUT);
+            assertThat(service.isSoldOut(this.productId)).isFalse();
+            assertThat(service.seckill(this.productId, "user2")).isEqualTo(SeckillResult.SOLD_OUT);
+            assertThat(counting.calls.get()).isEqualTo(2);
+        }
+        finally {
+            service.destroy();
+        }
+    }
+
+    private static final class CountingSeckillService implements SeckillService {
+
+        private final SeckillService delegate;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        CountingSeckillService(SeckillService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String queryProductStore(String productId) {
+            return this.delegate.queryProductStore(productId);
+        }
+
+        @Override
+        public SeckillResult seckill(String productId, String userId) {
+            this.calls.incrementAndGet();
+            return this.delegate.seckill(productId, userId);
+        }
+
+    }
+
+    private static void waitForSubscribersToBeReady() throws InterruptedException {
+        Thread.sleep(500);
+    }
+
+}
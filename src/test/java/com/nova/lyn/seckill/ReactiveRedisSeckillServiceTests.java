@@ -0,0 +1,60 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.ReactiveRedisSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName ReactiveRedisSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/26 0026 下午 3:00
+ * @Version 1.0
+ */
+public class ReactiveRedisSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testNoOversellUnderConcurrency() {
+        new RedisSeckillServiceImpl(getConnectionFactoryForTest()).initProduct(this.productId, 100);
+        ReactiveRedisSeckillServiceImpl service =
+                new ReactiveRedisSeckillServiceImpl((LettuceConnectionFactory) getConnectionFactoryForTest());
+        StepVerifier.create(Flux.range(0, 300)
+                .flatMap(i -> service.seckill(this.productId, "user" + i), 64)
+                .filter(result -> result == SeckillResult.SUCCESS)
+                .count())
+                .expectNext(100L)
+                .verifyComplete();
+        StepVerifier.create(service.seckill(this.productId, "user0"))
+                .expectNext(SeckillResult.REPEATED)
+                .verifyComplete();
+        StepVerifier.create(service.queryProductStore(this.productId))
+                .assertNext(store -> assertThat(store).contains("还剩:0台", "成功下单用户数:100人"))
+                .verifyComplete();
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.RedisBuyerBitmap;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName RedisSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/12 0012 上午 11:02
+ * @Version 1.0
+ */
+public class RedisSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        new RedisBuyerBitmap(getConnectionFactoryForTest()).clear(this.productId);
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testNoOversellUnderConcurrency() throws Exception {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        service.initProduct(this.productId, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<SeckillResult>> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String userId = "user" + i;
+            results.add(executor.submit(() -> service.seckill(this.productId, userId)));
+        }
+        int succeeded = 0;
+        for (Future<SeckillResult> result : results) {
+            if (result.get(10, TimeUnit.SECONDS) == SeckillResult.SUCCESS) {
+                succeeded++;
+            }
+            else {
+                assertThat(result.get()).isEqualTo(SeckillResult.SOLD_OUT);
+            }
+        }
+        executor.shutdown();
+        assertThat(succeeded).isEqualTo(100);
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:0台", "成功下单用户数:100人");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testRepeatedAndUnknown() {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        service.initProduct(this.productId, 10);
+        assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.REPEATED);
+        assertThat(service.seckill(UUID.randomUUID().toString(), "user")).isEqualTo(SeckillResult.NOT_FOUND);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testNumericBuyersInBitmap() {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        RedisBuyerBitmap bitmap = new RedisBuyerBitmap(getConnectionFactoryForTest());
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        String ordersKey = "seckill:{" + this.productId + "}:orders";
+        service.initProduct(this.productId, 10);
+        assertThat(service.seckill(this.productId, "4294967295")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "70000")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "70000")).isEqualTo(SeckillResult.REPEATED);
+        // 不是规范十进制数字或超出范围的 userId 记在订单 hash 中, 与位图中的用户互不影响
+        assertThat(service.seckill(this.productId, "070000")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "4294967296")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, "user")).isEqualTo(SeckillResult.REPEATED);
+        assertThat(bitmap.contains(this.productId, 70000)).isTrue();
+        assertThat(bitmap.contains(this.productId, 4294967295L)).isTrue();
+        assertThat(bitmap.cardinality(this.productId)).isEqualTo(2);
+        assertThat(template.opsForHash().keys(ordersKey)).containsOnly("070000", "4294967296", "user");
+        assertThat(template.execute(new DefaultRedisScript<>("return redis.call('XLEN', KEYS[1])", Long.class),
+                Collections.singletonList("seckill:{" + this.productId + "}:stream"))).isEqualTo(5L);
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:5台", "成功下单用户数:5人");
+        service.initProduct(this.productId, 10);
+        assertThat(bitmap.cardinality(this.productId)).isEqualTo(0);
+        assertThat(service.seckill(this.productId, "70000")).isEqualTo(SeckillResult.SUCCESS);
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.ReactiveSeckillService;
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.web.SeckillController;
+import org.junit.Test;
+import org.springframework.integration.test.util.TestUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName SeckillControllerTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/26 0026 下午 2:15
+ * @Version 1.0
+ */
+public class SeckillControllerTests {
+
+    @Test
+    public void testStatusCodes() {
+        ReactiveSeckillService service = new ReactiveSeckillService() {
+
+            @Override
+            public Mono<String> queryProductStore(String productId) {
+                return Mono.just("store of " + productId);
+            }
+
+            @Override
+            public Mono<SeckillResult> seckill(String productId, String userId) {
+                return Mono.just(SeckillResult.valueOf(userId));
+            }
+
+        };
+        WebTestClient client = WebTestClient.bindToController(new SeckillController(service, 10)).build();
+        client.get().uri("/seckill/123").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("store of 123");
+        client.post().uri("/seckill/123?userId=SUCCESS").exchange().expectStatus().isOk();
+        client.post().uri("/seckill/123?userId=REPEATED").exchange().expectStatus().isEqualTo(HttpStatus.CONFLICT);
+        client.post().uri("/seckill/123?userId=SOLD_OUT").exchange().expectStatus().isEqualTo(HttpStatus.GONE);
+        client.post().uri("/seckill/123?userId=NOT_FOUND").exchange().expectStatus().isNotFound();
+    }
+
+    @Test
+    public void testExcessRequestsAreShed() {
+        ReactiveSeckillService service = new ReactiveSeckillService() {
+
+            @Override
+            public Mono<String> queryProductStore(String productId) {
+                return Mono.never();
+            }
+
+            @Override
+            public Mono<SeckillResult> seckill(String productId, String userId) {
+                return Mono.never();
+            }
+
+        };
+        SeckillController controller = new SeckillController(service, 2);
+        Disposable first = controller.seckill("123", "user1").subscribe();
+        Disposable second = controller.seckill("123", "user2").subscribe();
+        assertThat(controller.getPending("123")).isEqualTo(2);
+        StepVerifier.create(controller.seckill("123", "user3"))
+                .assertNext(response -> assertThat(response.getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS))
+                .verifyComplete();
+        // 其他商品不受影响
+        controller.seckill("456", "user1").subscribe().dispose();
+        first.dispose();
+        assertThat(controller.getPending("123")).isEqualTo(1);
+        Disposable third = controller.seckill("123", "user3").subscribe();
+        assertThat(controller.getPending("123")).isEqualTo(2);
+        second.dispose();
+        third.dispose();
+        assertThat(controller.getPending("123")).isEqualTo(0);
+        assertThat(controller.getPending("456")).isEqualTo(0);
+    }
+
+    @Test
+    public void testCountersOfIdleProductsAreRemoved() {
+        ReactiveSeckillService service = new ReactiveSeckillService() {
+
+            @Override
+            public Mono<String> queryProductStore(String productId) {
+                return Mono.just(productId);
+            }
+
+            @Override
+            public Mono<SeckillResult> seckill(String productId, String userId) {
+                return Mono.just(SeckillResult.NOT_FOUND);
+            }
+
+        };
+        SeckillController controller = new SeckillController(service, 2);
+        for (int i = 0; i < 1000; i++) {
+            StepVerifier.create(controller.seckill(UUID.randomUUID().toString(), "user"))
+                    .assertNext(response -> assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND))
+                    .verifyComplete();
+        }
+        assertThat(TestUtils.getPropertyValue(controller, "pending", Map.class)).isEmpty();
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.entity.SeckillOrder;
+import com.nova.lyn.redis.mapper.SeckillOrderMapper;
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.RedisSeckillServiceImpl;
+import com.nova.lyn.redis.service.impl.SeckillOrderPersister;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mybatis.spring.SqlSessionFactoryBean;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName SeckillOrderPersisterTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/24 0024 下午 3:40
+ * @Version 1.0
+ */
+public class SeckillOrderPersisterTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    private SeckillOrderMapper orderMapper;
+
+    @Before
+    public void setUp() throws Exception {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:seckill;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("sql/seckill_order.sql")).execute(dataSource);
+        SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+        factoryBean.setDataSource(dataSource);
+        SqlSessionFactory sqlSessionFactory = factoryBean.getObject();
+        sqlSessionFactory.getConfiguration().addMapper(SeckillOrderMapper.class);
+        this.orderMapper = new SqlSessionTemplate(sqlSessionFactory).getMapper(SeckillOrderMapper.class);
+    }
+
+    @After
+    public void tearDown() {
+        if (getConnectionFactoryForTest() != null) {
+            new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                    "seckill:{" + this.productId + "}:total",
+                    "seckill:{" + this.productId + "}:stock",
+                    "seckill:{" + this.productId + "}:orders",
+                    "seckill:{" + this.productId + "}:stream",
+                    "seckill:{" + this.productId + "}:stream:dead"));
+        }
+    }
+
+    @Test
+    public void testInsertIgnoreIsIdempotent() {
+        SeckillOrder order = new SeckillOrder(this.productId, "user", new Date());
+        assertThat(this.orderMapper.insertIgnore(Collections.singletonList(order))).isEqualTo(1);
+        assertThat(this.orderMapper.insertIgnore(Arrays.asList(order,
+                new SeckillOrder(this.productId, "other", new Date())))).isEqualTo(1);
+        assertThat(this.orderMapper.countByProduct(this.productId)).isEqualTo(2);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testOrdersReachDatabase() throws Exception {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        service.initProduct(this.productId, 100);
+        SeckillOrderPersister persister = new SeckillOrderPersister(getConnectionFactoryForTest(), this.orderMapper,
+                "node1", 32, 10, 30000);
+        try {
+            persister.watch(this.productId);
+            int succeeded = 0;
+            for (int i = 0; i < 150; i++) {
+                if (service.seckill(this.productId, "user" + i) == SeckillResult.SUCCESS) {
+                    succeeded++;
+                }
+            }
+            assertThat(succeeded).isEqualTo(100);
+            int n = 0;
+            while (this.orderMapper.countByProduct(this.productId) < 100 && n++ < 100) {
+                Thread.sleep(100);
+            }
+            assertThat(this.orderMapper.countByProduct(this.productId)).isEqualTo(100);
+        }
+        finally {
+            persister.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testStaleOrdersAreClaimed() throws Exception {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        service.initProduct(this.productId, 10);
+        SeckillOrderMapper failingMapper = new SeckillOrderMapper() {
+
+            @Override
+            public int insertIgnore(List<SeckillOrder> orders) {
+                throw new IllegalStateException("database down");
+            }
+
+            @Override
+            public long countByProduct(String productId) {
+                return 0;
+            }
+
+        };
+        SeckillOrderPersister crashed = new SeckillOrderPersister(getConnectionFactoryForTest(), failingMapper,
+                "crashed", 32, 10, 200);
+        crashed.watch(this.productId);
+        for (int i = 0; i < 10; i++) {
+            service.seckill(this.productId, "user" + i);
+        }
+        Thread.sleep(200);
+        crashed.destroy();
+        SeckillOrderPersister survivor = new SeckillOrderPersister(getConnectionFactoryForTest(), this.orderMapper,
+                "survivor", 32, 10, 200);
+        try {
+            survivor.watch(this.productId);
+            int n = 0;
+            while (this.orderMapper.countByProduct(this.productId) < 10 && n++ < 100) {
+                Thread.sleep(100);
+            }
+            assertThat(this.orderMapper.countByProduct(this.productId)).isEqualTo(10);
+        }
+        finally {
+            survivor.destroy();
+        }
+    }
+
+    @Test
+    @RedisAvailable
+    public void testPoisonMessagesAreDeadLettered() throws Exception {
+        RedisSeckillServiceImpl service = new RedisSeckillServiceImpl(getConnectionFactoryForTest());
+        service.initProduct(this.productId, 10);
+        SeckillOrderMapper rejectingMapper = new SeckillOrderMapper() {
+
+            @Override
+            public int insertIgnore(List<SeckillOrder> orders) {
+                for (SeckillOrder order : orders) {
+                    if ("poison".equals(order.getUserId())) {
+                        throw new IllegalStateException("rejected by the database");
+                    }
+                }
+                return SeckillOrderPersisterTests.this.orderMapper.insertIgnore(orders);
+            }
+
+            @Override
+            public long countByProduct(String productId) {
+                return SeckillOrderPersisterTests.this.orderMapper.countByProduct(productId);
+            }
+
+        };
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        String streamKey = "seckill:{" + this.productId + "}:stream";
+        SeckillOrderPersister persister = new SeckillOrderPersister(getConnectionFactoryForTest(), rejectingMapper,
+                "node1", 32, 10, 30000);
+        persister.setMaxDeliveries(3);
+        try {
+            persister.watch(this.productId);
+            template.execute(new DefaultRedisScript<>(
+                    "redis.call('XADD', KEYS[1], '*', 'userId', 'malformed')\n" +
+                            "redis.call('XADD', KEYS[1], '*', 'userId', 'poison', 'time', ARGV[1])\n" +
+                            "return 1", Long.class),
+                    Collections.singletonList(streamKey), String.valueOf(System.currentTimeMillis()));
+            for (int i = 0; i < 5; i++) {
+                assertThat(service.seckill(this.productId, "user" + i)).isEqualTo(SeckillResult.SUCCESS);
+            }
+            int n = 0;
+            while ((this.orderMapper.countByProduct(this.productId) < 5 || deadLetters(template) < 2) && n++ < 100) {
+                Thread.sleep(100);
+            }
+            assertThat(this.orderMapper.countByProduct(this.productId)).isEqualTo(5);
+            assertThat(deadLetters(template)).isEqualTo(2);
+        }
+        finally {
+            persister.destroy();
+        }
+    }
+
+    private long deadLetters(StringRedisTemplate template) {
+        return template.execute(new DefaultRedisScript<>("return redis.call('XLEN', KEYS[1])", Long.class),
+                Collections.singletonList("seckill:{" + this.productId + "}:stream:dead"));
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.RedisBuyerBitmap;
+import com.nova.lyn.redis.service.impl.SegmentedSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName SegmentedSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/15 0015 下午 5:12
+ * @Version 1.0
+ */
+public class SegmentedSeckillServiceTests extends RedisAvailableTests {
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        new RedisBuyerBitmap(getConnectionFactoryForTest()).clear(this.productId);
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(Arrays.asList(
+                "seckill:{" + this.productId + "}:total",
+                "seckill:{" + this.productId + "}:stock",
+                "seckill:{" + this.productId + "}:orders",
+                "seckill:{" + this.productId + "}:stream",
+                "seckill:{" + this.productId + "}:leases",
+                "seckill:{" + this.productId + "}:heartbeats"));
+    }
+
+    @Test
+    @RedisAvailable
+    public void testTwoNodesSellExactlyTheStock() throws Exception {
+        SegmentedSeckillServiceImpl node1 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 50, 50, 30000);
+        SegmentedSeckillServiceImpl node2 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 50, 50, 30000);
+        node1.initProduct(this.productId, 500);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<SeckillResult>> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            SegmentedSeckillServiceImpl node = i % 2 == 0 ? node1 : node2;
+            String userId = "user" + i;
+            results.add(executor.submit(() -> node.seckill(this.productId, userId)));
+        }
+        int succeeded = 0;
+        for (Future<SeckillResult> result : results) {
+            if (result.get(10, TimeUnit.SECONDS) == SeckillResult.SUCCESS) {
+                succeeded++;
+            }
+        }
+        executor.shutdown();
+        node1.destroy();
+        node2.destroy();
+        assertThat(succeeded).isEqualTo(500);
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        assertThat(template.opsForHash().size("seckill:{" + this.productId + "}:orders")).isEqualTo(500L);
+        assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:stock")).isEqualTo("0");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testReclaimedLeaseKeepsStockConsistent() throws Exception {
+        // node1 只在手动调用时对账, node2 每 20 毫秒对账一次, 300 毫秒后回收 node1 的租约
+        SegmentedSeckillServiceImpl node1 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 10, 60000, 1000000);
+        SegmentedSeckillServiceImpl node2 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 10, 20, 300);
+        node1.initProduct(this.productId, 8);
+        assertThat(node1.seckill(this.productId, "a")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(node2.seckill(this.productId, "b")).isEqualTo(SeckillResult.SUCCESS);
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        Thread.sleep(600);
+        node1.reconcile();
+        assertThat(template.opsForHash().hasKey("seckill:{" + this.productId + "}:orders", "a")).isTrue();
+        assertThat(unsold(template) + template.opsForHash().size("seckill:{" + this.productId + "}:orders"))
+                .isEqualTo(8L);
+        assertThat(node1.seckill(this.productId, "c")).isEqualTo(SeckillResult.SUCCESS);
+        node1.destroy();
+        node2.destroy();
+        assertThat(template.opsForHash().size("seckill:{" + this.productId + "}:orders")).isEqualTo(3L);
+        assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:stock")).isEqualTo("5");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testCrossNodeRepeatIsSurfaced() throws Exception {
+        SegmentedSeckillServiceImpl node1 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 10, 60000, 1000000);
+        SegmentedSeckillServiceImpl node2 = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 10, 60000, 1000000);
+        List<String> dropped = new CopyOnWriteArrayList<>();
+        node2.setDroppedOrderHandler((productId, userId) -> dropped.add(productId + ":" + userId));
+        node1.initProduct(this.productId, 10);
+        assertThat(node1.seckill(this.productId, "u")).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(node2.seckill(this.productId, "u")).isEqualTo(SeckillResult.SUCCESS);
+        node1.reconcile();
+        node2.reconcile();
+        assertThat(dropped).containsExactly(this.productId + ":u");
+        node1.destroy();
+        node2.destroy();
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        assertThat(template.opsForHash().size("seckill:{" + this.productId + "}:orders")).isEqualTo(1L);
+        assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:stock")).isEqualTo("9");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testStalledNodeStopsLocalSales() throws Exception {
+        SegmentedSeckillServiceImpl node = new SegmentedSeckillServiceImpl(getConnectionFactoryForTest(), 10, 10, 200);
+        node.initProduct(this.productId, 10);
+        assertThat(node.seckill(this.productId, "a")).isEqualTo(SeckillResult.SUCCESS);
+        // 停掉对账任务, 100 毫秒后本节点被隔离, 抢购直接走中心库存
+        node.destroy();
+        Thread.sleep(300);
+        assertThat(node.seckill(this.productId, "b")).isEqualTo(SeckillResult.SUCCESS);
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        assertThat(template.opsForHash().hasKey("seckill:{" + this.productId + "}:orders", "b")).isTrue();
+        assertThat(template.opsForValue().get("seckill:{" + this.productId + "}:stock")).isEqualTo("8");
+    }
+
+    private long unsold(StringRedisTemplate template) {
+        long unsold = Long.parseLong(template.opsForValue().get("seckill:{" + this.productId + "}:stock"));
+        for (Object leased : template.opsForHash().values("seckill:{" + this.productId + "}:leases")) {
+            unsold += Long.parseLong((String) leased);
+        }
+        return unsold;
+    }
+
+}
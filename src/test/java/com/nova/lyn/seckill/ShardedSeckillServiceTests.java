@@ -0,0 +1,126 @@
+package com.nova.lyn.seckill;
+
+import com.nova.lyn.redis.service.SeckillResult;
+import com.nova.lyn.redis.service.impl.RedisBuyerBitmap;
+import com.nova.lyn.redis.service.impl.ShardedSeckillServiceImpl;
+import com.nova.lyn.rules.RedisAvailable;
+import com.nova.lyn.rules.RedisAvailableTests;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @ClassName ShardedSeckillServiceTests
+ * @Description TODO
+ * @Author Lyn
+ * @Date 2019/4/17 0017 下午 2:40
+ * @Version 1.0
+ */
+public class ShardedSeckillServiceTests extends RedisAvailableTests {
+
+    private static final int SHARDS = 4;
+
+    private final String productId = UUID.randomUUID().toString();
+
+    @After
+    public void tearDown() {
+        List<String> keys = new ArrayList<>();
+        keys.add("seckill:{" + this.productId + "}:total");
+        for (int i = 0; i < SHARDS; i++) {
+            keys.add("seckill:{" + this.productId + ":" + i + "}:stock");
+            keys.add("seckill:{" + this.productId + ":" + i + "}:orders");
+            keys.add("seckill:{" + this.productId + ":" + i + "}:pending");
+            new RedisBuyerBitmap(getConnectionFactoryForTest()).clear(this.productId + ":" + i);
+        }
+        new StringRedisTemplate(getConnectionFactoryForTest()).delete(keys);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testNoOversellAcrossShards() throws Exception {
+        ShardedSeckillServiceImpl service = new ShardedSeckillServiceImpl(getConnectionFactoryForTest(), SHARDS);
+        service.initProduct(this.productId, 101);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<SeckillResult>> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String userId = "user" + i;
+            results.add(executor.submit(() -> service.seckill(this.productId, userId)));
+        }
+        int succeeded = 0;
+        for (Future<SeckillResult> result : results) {
+            if (result.get(10, TimeUnit.SECONDS) == SeckillResult.SUCCESS) {
+                succeeded++;
+            }
+        }
+        executor.shutdown();
+        assertThat(succeeded).isEqualTo(101);
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:0台", "成功下单用户数:101人");
+        assertThat(service.seckill(this.productId, "late")).isEqualTo(SeckillResult.SOLD_OUT);
+        assertThat(service.seckill(this.productId, "user0")).isIn(SeckillResult.REPEATED, SeckillResult.SOLD_OUT);
+    }
+
+    @Test
+    @RedisAvailable
+    public void testCrossShardPurchase() {
+        ShardedSeckillServiceImpl service = new ShardedSeckillServiceImpl(getConnectionFactoryForTest(), SHARDS);
+        service.initProduct(this.productId, SHARDS);
+        List<String> users = usersOfShard(0, 3);
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        String pendingKey = "seckill:{" + this.productId + ":0}:pending";
+        // 超时的 pending 标记不挡住用户, 有效的 pending 标记说明该用户正在其他分片抢购
+        template.opsForHash().put(pendingKey, users.get(0), String.valueOf(System.currentTimeMillis() - 60000));
+        template.opsForHash().put(pendingKey, users.get(2), String.valueOf(System.currentTimeMillis()));
+        assertThat(service.seckill(this.productId, users.get(0))).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, users.get(2))).isEqualTo(SeckillResult.REPEATED);
+        template.delete(pendingKey);
+        // 主分片 0 已卖完, 从其他分片扣减
+        assertThat(service.seckill(this.productId, users.get(1))).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(template.opsForHash().hasKey("seckill:{" + this.productId + ":0}:orders", users.get(1))).isTrue();
+        assertThat(template.hasKey(pendingKey)).isFalse();
+        assertThat(service.seckill(this.productId, users.get(1))).isEqualTo(SeckillResult.REPEATED);
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:2台", "成功下单用户数:2人");
+    }
+
+    @Test
+    @RedisAvailable
+    public void testNumericBuyersInBitmap() {
+        ShardedSeckillServiceImpl service = new ShardedSeckillServiceImpl(getConnectionFactoryForTest(), SHARDS);
+        service.initProduct(this.productId, SHARDS);
+        List<String> users = usersOfShard(0, 2, "");
+        StringRedisTemplate template = new StringRedisTemplate(getConnectionFactoryForTest());
+        RedisBuyerBitmap bitmap = new RedisBuyerBitmap(getConnectionFactoryForTest());
+        assertThat(service.seckill(this.productId, users.get(0))).isEqualTo(SeckillResult.SUCCESS);
+        // 主分片 0 已卖完, 从其他分片扣减后确认订单, 同样记在主分片的位图中
+        assertThat(service.seckill(this.productId, users.get(1))).isEqualTo(SeckillResult.SUCCESS);
+        assertThat(service.seckill(this.productId, users.get(1))).isEqualTo(SeckillResult.REPEATED);
+        assertThat(bitmap.contains(this.productId + ":0", Long.parseLong(users.get(0)))).isTrue();
+        assertThat(bitmap.contains(this.productId + ":0", Long.parseLong(users.get(1)))).isTrue();
+        assertThat(template.hasKey("seckill:{" + this.productId + ":0}:orders")).isFalse();
+        assertThat(service.queryProductStore(this.productId)).contains("还剩:2台", "成功下单用户数:2人");
+    }
+
+    private List<String> usersOfShard(int shard, int count) {
+        return usersOfShard(shard, count, "user");
+    }
+
+    private List<String> usersOfShard(int shard, int count, String prefix) {
+        List<String> users = new ArrayList<>();
+        for (int i = 0; users.size() < count; i++) {
+            if (Math.floorMod((prefix + i).hashCode(), SHARDS) == shard) {
+                users.add(prefix + i);
+            }
+        }
+        return users;
+    }
+
+}
@@ -5,8 +5,19 @@ import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+/**
+ * 只检查容器能否启动, 不依赖外部服务: 使用内存锁注册表和 H2 内存数据库; Redis 连接工厂只在第一次使用时连接,
+ * 没有配置 seckill.products 时订单落库线程也不访问 Redis
+ */
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = {
+        "redis.lock.mode=local",
+        "seckill.products=",
+        "spring.datasource.url=jdbc:h2:mem:seckill;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password="
+})
 public class SpringbootLearningApplicationTests {
 
     @Test